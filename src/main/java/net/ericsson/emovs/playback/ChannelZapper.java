@@ -0,0 +1,350 @@
+package net.ericsson.emovs.playback;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import net.ericsson.emovs.utilities.models.EmpChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *     Zapping controller for linear TV built on top of EMPPlayer.
+ * </p>
+ * <p>
+ *     Given an ordered channel list, it keeps the neighbours of the current channel (previous and next) warm in
+ *     secondary pipelines: entitled, with the manifest loaded and a small buffer ready. A channel up/down then swaps the
+ *     warm pipeline into the player view instead of starting from scratch.
+ * </p>
+ * <p>
+ *     The amount of warm pipelines is bounded both by the neighbour count and by a memory budget. Warm pipelines are
+ *     renewed before they expire (play token lifetime), so neighbours stay warm however long a channel is watched.
+ * </p>
+ */
+public class ChannelZapper {
+    /**
+     * Fixed cost of a warm pipeline (decoders, DRM session, player internals) used for the memory budget
+     */
+    public static final long PIPELINE_OVERHEAD_BYTES = 8L * 1024L * 1024L;
+    public static final long MIN_REWARM_DELAY_MS = 1000L;
+
+    private final EMPPlayer player;
+    private final Config config;
+    private final ArrayList<EmpChannel> channels;
+    private final ArrayList<EmpChannel> warmChannels;
+    private final Handler handler;
+    private final Runnable rewarm;
+    private PlaybackProperties properties;
+    private int currentIndex;
+
+    /**
+     * Configuration of the zapping controller
+     */
+    public static class Config {
+        int neighbourCount;
+        long warmBufferMs;
+        long memoryBudgetBytes;
+        int estimatedBitrate;
+        boolean wrapAround;
+
+        public Config() {
+            this.neighbourCount = 1;
+            this.warmBufferMs = 3000L;
+            this.memoryBudgetBytes = 48L * 1024L * 1024L;
+            this.estimatedBitrate = 5000000;
+            this.wrapAround = true;
+        }
+
+        /**
+         * @param neighbourCount number of channels kept warm on each side of the current channel
+         * @return this
+         */
+        public Config withNeighbourCount(int neighbourCount) {
+            this.neighbourCount = Math.max(0, neighbourCount);
+            return this;
+        }
+
+        /**
+         * @param warmBufferMs media duration buffered by each warm pipeline
+         * @return this
+         */
+        public Config withWarmBufferMs(long warmBufferMs) {
+            this.warmBufferMs = Math.max(0, warmBufferMs);
+            return this;
+        }
+
+        /**
+         * @param memoryBudgetBytes maximum memory that all warm pipelines together may use
+         * @return this
+         */
+        public Config withMemoryBudgetBytes(long memoryBudgetBytes) {
+            this.memoryBudgetBytes = Math.max(0, memoryBudgetBytes);
+            return this;
+        }
+
+        /**
+         * @param estimatedBitrate bitrate (bps) used to estimate the buffer size when no max bitrate is set in the playback properties
+         * @return this
+         */
+        public Config withEstimatedBitrate(int estimatedBitrate) {
+            this.estimatedBitrate = Math.max(0, estimatedBitrate);
+            return this;
+        }
+
+        /**
+         * @param wrapAround when set, channel up on the last channel goes to the first one and vice-versa
+         * @return this
+         */
+        public Config withWrapAround(boolean wrapAround) {
+            this.wrapAround = wrapAround;
+            return this;
+        }
+
+        public int getNeighbourCount() {
+            return neighbourCount;
+        }
+
+        public long getWarmBufferMs() {
+            return warmBufferMs;
+        }
+
+        public long getMemoryBudgetBytes() {
+            return memoryBudgetBytes;
+        }
+
+        public int getEstimatedBitrate() {
+            return estimatedBitrate;
+        }
+
+        public boolean isWrapAround() {
+            return wrapAround;
+        }
+    }
+
+    /**
+     * @param player player that renders the current channel
+     * @param channels ordered channel list
+     * @param config zapping configuration (null for defaults)
+     */
+    public ChannelZapper(EMPPlayer player, List<EmpChannel> channels, Config config) {
+        this.player = player;
+        this.config = config == null ? new Config() : config;
+        this.channels = new ArrayList<>();
+        this.warmChannels = new ArrayList<>();
+        this.handler = new Handler(Looper.getMainLooper());
+        this.rewarm = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ChannelZapper.this) {
+                    if (currentIndex >= 0) {
+                        warmNeighbours();
+                    }
+                }
+            }
+        };
+        this.properties = PlaybackProperties.DEFAULT;
+        this.currentIndex = -1;
+        setChannels(channels);
+    }
+
+    /**
+     * Replaces the channel list - current channel is kept if still in the list
+     *
+     * @param channels ordered channel list
+     */
+    public synchronized void setChannels(List<EmpChannel> channels) {
+        EmpChannel current = getCurrentChannel();
+        this.channels.clear();
+        if (channels != null) {
+            this.channels.addAll(channels);
+        }
+        this.currentIndex = current == null ? -1 : indexOf(current);
+        if (this.currentIndex >= 0) {
+            warmNeighbours();
+        }
+        else {
+            coolDown(new ArrayList<EmpChannel>());
+        }
+    }
+
+    /**
+     * @param properties playback properties used for every zap (live edge by default)
+     */
+    public synchronized void setPlaybackProperties(PlaybackProperties properties) {
+        this.properties = properties == null ? PlaybackProperties.DEFAULT : properties;
+    }
+
+    /**
+     * Plays the channel at a given position of the list and warms up its neighbours
+     *
+     * @param index position in the channel list
+     */
+    public synchronized void zapTo(int index) {
+        if (index < 0 || index >= channels.size()) {
+            return;
+        }
+        this.currentIndex = index;
+        player.play(channels.get(index), properties);
+        warmNeighbours();
+    }
+
+    /**
+     * Plays a channel of the list and warms up its neighbours
+     *
+     * @param channel channel to play
+     */
+    public synchronized void zapTo(EmpChannel channel) {
+        zapTo(indexOf(channel));
+    }
+
+    /**
+     * Zaps to the next channel of the list
+     */
+    public synchronized void channelUp() {
+        int next = neighbourIndex(currentIndex, 1);
+        if (next >= 0) {
+            zapTo(next);
+        }
+    }
+
+    /**
+     * Zaps to the previous channel of the list
+     */
+    public synchronized void channelDown() {
+        int previous = neighbourIndex(currentIndex, -1);
+        if (previous >= 0) {
+            zapTo(previous);
+        }
+    }
+
+    /**
+     * @return channel being played - null if none
+     */
+    public synchronized EmpChannel getCurrentChannel() {
+        if (currentIndex < 0 || currentIndex >= channels.size()) {
+            return null;
+        }
+        return channels.get(currentIndex);
+    }
+
+    /**
+     * @return position of the current channel in the list - -1 if none
+     */
+    public synchronized int getCurrentIndex() {
+        return currentIndex;
+    }
+
+    /**
+     * @return channels currently kept warm
+     */
+    public synchronized List<EmpChannel> getWarmChannels() {
+        return new ArrayList<>(warmChannels);
+    }
+
+    /**
+     * @return maximum number of warm pipelines allowed by the neighbour count and the memory budget
+     */
+    public int getWarmSetSize() {
+        long perPipelineBytes = estimatePipelineBytes();
+        long byBudget = perPipelineBytes <= 0 ? Long.MAX_VALUE : config.memoryBudgetBytes / perPipelineBytes;
+        return (int) Math.min(2L * config.neighbourCount, byBudget);
+    }
+
+    /**
+     * Discards all the warm pipelines
+     */
+    public synchronized void release() {
+        coolDown(new ArrayList<EmpChannel>());
+    }
+
+    private long estimatePipelineBytes() {
+        long bitrate = properties.getMaxBitrate() != null ? properties.getMaxBitrate() : config.estimatedBitrate;
+        return PIPELINE_OVERHEAD_BYTES + bitrate / 8L * config.warmBufferMs / 1000L;
+    }
+
+    private void warmNeighbours() {
+        ArrayList<EmpChannel> wanted = new ArrayList<>();
+        int warmSetSize = getWarmSetSize();
+        for (int distance = 1; distance <= config.neighbourCount && wanted.size() < warmSetSize; ++distance) {
+            // Next channel first: zapping up is the most common direction
+            addNeighbour(wanted, neighbourIndex(currentIndex, distance), warmSetSize);
+            addNeighbour(wanted, neighbourIndex(currentIndex, -distance), warmSetSize);
+        }
+        coolDown(wanted);
+        for (EmpChannel channel : wanted) {
+            if (warmChannels.contains(channel) == false) {
+                warmChannels.add(channel);
+            }
+            player.preload(channel, properties, config.warmBufferMs);
+        }
+        scheduleRewarm();
+    }
+
+    private void scheduleRewarm() {
+        handler.removeCallbacks(rewarm);
+        long nextExpiry = Long.MAX_VALUE;
+        for (EmpChannel channel : warmChannels) {
+            long expiry = player.getPreloadExpiryTime(channel);
+            if (expiry > 0) {
+                nextExpiry = Math.min(nextExpiry, expiry);
+            }
+        }
+        if (nextExpiry == Long.MAX_VALUE) {
+            return;
+        }
+        // preload() renews a warm pipeline that expires within PRELOAD_RENEW_LEAD_MS
+        long delayMs = nextExpiry - EMPPlayer.PRELOAD_RENEW_LEAD_MS / 2 - player.getServerTime();
+        handler.postDelayed(rewarm, Math.max(MIN_REWARM_DELAY_MS, delayMs));
+    }
+
+    private void addNeighbour(ArrayList<EmpChannel> wanted, int index, int warmSetSize) {
+        if (index < 0 || index == currentIndex || wanted.size() >= warmSetSize) {
+            return;
+        }
+        EmpChannel channel = channels.get(index);
+        if (wanted.contains(channel) == false) {
+            wanted.add(channel);
+        }
+    }
+
+    private void coolDown(List<EmpChannel> keep) {
+        if (keep.isEmpty()) {
+            handler.removeCallbacks(rewarm);
+        }
+        EmpChannel current = getCurrentChannel();
+        for (EmpChannel channel : new ArrayList<>(warmChannels)) {
+            if (keep.contains(channel) == false) {
+                warmChannels.remove(channel);
+                if (channel != current) {
+                    player.cancelPreload(channel);
+                }
+            }
+        }
+    }
+
+    private int neighbourIndex(int index, int offset) {
+        int size = channels.size();
+        if (size == 0 || index < 0) {
+            return -1;
+        }
+        int neighbour = index + offset;
+        if (config.wrapAround) {
+            return ((neighbour % size) + size) % size;
+        }
+        return neighbour >= 0 && neighbour < size ? neighbour : -1;
+    }
+
+    private int indexOf(EmpChannel channel) {
+        if (channel == null) {
+            return -1;
+        }
+        for (int i = 0; i < channels.size(); ++i) {
+            EmpChannel candidate = channels.get(i);
+            if (candidate == channel || (candidate.channelId != null && candidate.channelId.equals(channel.channelId))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -4,10 +4,22 @@ import android.app.Activity;
 import android.util.Log;
 import android.view.ViewGroup;
 
+import net.ericsson.emovs.playback.interfaces.IPreloadableTech;
+import net.ericsson.emovs.playback.interfaces.ISourceSwitchableTech;
+import net.ericsson.emovs.playback.interfaces.ITokenRefreshableTech;
+import net.ericsson.emovs.playback.interfaces.ITech;
+import net.ericsson.emovs.playback.scheduling.CancellationToken;
+import net.ericsson.emovs.playback.scheduling.PlayRequestScheduler;
+import net.ericsson.emovs.playback.scheduling.SeekScheduler;
+import net.ericsson.emovs.playback.scheduling.StartupGraph;
+import net.ericsson.emovs.playback.services.EntitlementCache;
+import net.ericsson.emovs.playback.services.EntitlementKeeper;
+import net.ericsson.emovs.playback.services.EntitlementIntervalCache;
+import net.ericsson.emovs.playback.services.EpgCache;
+import net.ericsson.emovs.playback.services.EpgSnapshotStore;
 import net.ericsson.emovs.playback.services.ProgramService;
 import net.ericsson.emovs.utilities.emp.UniversalPackagerHelper;
 import net.ericsson.emovs.utilities.entitlements.EntitledRunnable;
-import net.ericsson.emovs.utilities.entitlements.EntitlementCallback;
 import net.ericsson.emovs.utilities.errors.Error;
 import net.ericsson.emovs.utilities.errors.Warning;
 import net.ericsson.emovs.utilities.interfaces.IEntitledPlayer;
@@ -24,14 +36,15 @@ import net.ericsson.emovs.utilities.analytics.AnalyticsPlaybackConnector;
 import net.ericsson.emovs.utilities.entitlements.Entitlement;
 import net.ericsson.emovs.utilities.errors.ErrorCodes;
 import net.ericsson.emovs.utilities.errors.ErrorRunnable;
-import net.ericsson.emovs.utilities.queries.EpgQueryParameters;
 import net.ericsson.emovs.utilities.system.FileSerializer;
 import net.ericsson.emovs.utilities.entitlements.IEntitlementProvider;
+import net.ericsson.emovs.utilities.system.ParameterizedRunnable;
 import net.ericsson.emovs.utilities.system.RunnableThread;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
 
 import static net.ericsson.emovs.utilities.errors.Warning.SEEK_TO_UNAVAILABLE_POSITION;
@@ -40,28 +53,77 @@ import static net.ericsson.emovs.utilities.errors.Warning.SEEK_TO_UNAVAILABLE_PO
  * Player with EMP business logic
  */
 public class EMPPlayer extends Player implements IEntitledPlayer {
+    private static final String STAGE_ENTITLEMENT = "entitlement";
+    private static final String STAGE_EPG_SNAPSHOT = "epgSnapshot";
+    private static final String STAGE_EPG = "epg";
+    private static final String STAGE_PROGRAM_DETAILS = "programDetails";
+    private static final String STAGE_MANIFEST_PREFETCH = "manifestPrefetch";
+    private static final String STAGE_PLAYBACK = "playback";
+
+    public static final long DEFAULT_PRELOAD_BUFFER_MS = 4000L;
+    public static final long PRELOAD_MAX_AGE_MS = 60000L;
+    public static final long PRELOAD_RENEW_LEAD_MS = 10000L;
+
     protected IPlayable playable;
     protected Entitlement entitlement;
     protected IEntitlementProvider entitlementProvider;
     protected IMetadataProvider metadataProvider;
     protected ProgramService programService;
-    protected long lastPlayTimeMs;
-    protected long lastSeekToTimeMs;
+    protected final PlayRequestScheduler playRequestScheduler = new PlayRequestScheduler();
+    protected final SeekScheduler seekScheduler = new SeekScheduler(new SeekScheduler.Target() {
+        @Override
+        public long getPlayheadTime() {
+            return EMPPlayer.this.getPlayheadTime();
+        }
+
+        @Override
+        public void performSeekTo(long positionMs) {
+            seekToPositionInternal(positionMs);
+        }
+
+        @Override
+        public void performSeekToTime(long unixTimeMs) {
+            seekToTimeInternal(unixTimeMs, false);
+        }
+    }, SeekScheduler.DEFAULT_COALESCING_WINDOW_MS);
+
+    private final HashMap<String, Preload> preloads = new HashMap<>();
+    private Preload activePreload;
+    private volatile EmpProgram nextProgram;
+    private volatile EntitlementKeeper entitlementKeeper;
 
     private EmptyPlaybackEventListener empPlaybackListener = new EmptyPlaybackEventListener(this) {
         @Override
         public void onPlaybackEnd() {
             disposeProgrameService();
+            stopEntitlementKeeper();
         }
 
         @Override
         public void onDispose() {
             disposeProgrameService();
+            stopEntitlementKeeper();
         }
 
         @Override
         public void onStop() {
             disposeProgrameService();
+            stopEntitlementKeeper();
+        }
+
+        @Override
+        public void onSeek(long position) {
+            pokeProgramService();
+        }
+
+        @Override
+        public void onPause() {
+            pokeProgramService();
+        }
+
+        @Override
+        public void onResume() {
+            pokeProgramService();
         }
     };
 
@@ -80,6 +142,8 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         super(analyticsConnector, techFactory, context, host, monotonicTimeService);
         this.entitlementProvider = entitlementProvider;
         this.metadataProvider = metadataProvider;
+        // Maps the on-disk EPG snapshot in the background, ahead of the first play
+        EpgSnapshotStore.getInstance(context);
     }
 
     /**
@@ -108,17 +172,21 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
      *  <p>
      *      If Bookmark is not set, then default start procedure shall apply.
      *  </p>
+     *  <p>
+     *      Play requests are latest-wins: a new call abandons the entitlement, EPG and manifest work of the previous one.
+     *  </p>
      * @param playable the playable you want to play: asset, program or channel
      * @param properties playback properties, like autoplay, startTime, etc.. use PlaybackProperties.DEFAULT for default props
      */
     public void play(IPlayable playable, PlaybackProperties properties) {
         try {
-            if (getServerTime() - lastPlayTimeMs < 1000L) {
-                return;
-            }
-            lastPlayTimeMs = getServerTime();
-
+            StartupGraph startupGraph = playRequestScheduler.newRequest();
+            seekScheduler.cancel();
+            Preload preload = takePreload(playable);
+            // Set before init so that no tech is built when the preloaded one is swapped in
+            this.activePreload = preload;
             init(properties);
+            this.nextProgram = null;
 
             super.onPlay();
             if (playable == null) {
@@ -128,22 +196,22 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
             if (playable instanceof EmpProgram) {
                 this.playable = playable;
                 EmpProgram playableProgram = (EmpProgram) playable;
-                playProgram(playableProgram);
+                playProgram(playableProgram, startupGraph);
             }
             else if (playable instanceof EmpOfflineAsset) {
                 this.playable = playable;
                 EmpOfflineAsset offlineAsset = (EmpOfflineAsset) playable;
-                playOffline(offlineAsset);
+                playOffline(offlineAsset, startupGraph);
             }
             else if (playable instanceof EmpChannel) {
                 this.playable = playable;
                 EmpChannel channel = (EmpChannel) playable;
-                playLive(channel);
+                playLive(channel, startupGraph);
             }
             else if (playable instanceof EmpAsset) {
                 this.playable = playable;
                 EmpAsset asset = (EmpAsset) playable;
-                playVod(asset);
+                playVod(asset, startupGraph);
             }
             else {
                 this.onError(ErrorCodes.PLAYBACK_INVALID_EMP_PLAYABLE, "");
@@ -157,6 +225,172 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         }
     }
 
+    /**
+     * <p>
+     *     Warms up a playable that is likely to be played next (e.g. focused tile or next item of a playlist)
+     * </p>
+     * <p>
+     *     The entitlement is requested and the manifest fetched in the background. If the tech supports it and the start
+     *     position is known upfront (live edge for channels, beginning for catchup programs and assets) the stream is also
+     *     loaded and buffered without being rendered. A later play() of the same playable starts from that warm state.
+     * </p>
+     * @param playable the playable you want to warm up: asset, program or channel
+     * @param properties playback properties that will be used to play it
+     */
+    public void preload(IPlayable playable, PlaybackProperties properties) {
+        preload(playable, properties, DEFAULT_PRELOAD_BUFFER_MS);
+    }
+
+    /**
+     * Warms up a playable that is likely to be played next
+     *
+     * @param playable the playable you want to warm up: asset, program or channel
+     * @param properties playback properties that will be used to play it
+     * @param warmBufferMs maximum media duration to buffer in the background
+     */
+    public void preload(IPlayable playable, PlaybackProperties properties, long warmBufferMs) {
+        final String key = getPreloadKey(playable);
+        if (key == null || getEntitlementProvider() == null) {
+            return;
+        }
+
+        final Preload preload;
+        try {
+            preload = new Preload(key, playable, (properties == null ? PlaybackProperties.DEFAULT : properties).clone(), getServerTime(), warmBufferMs);
+        }
+        catch (CloneNotSupportedException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        synchronized (preloads) {
+            Preload existing = preloads.get(key);
+            // Preloads about to expire are renewed, so a warm playable kept by the caller stays warm
+            if (existing != null && existing.isUsable(getServerTime() + PRELOAD_RENEW_LEAD_MS)) {
+                return;
+            }
+            if (existing != null) {
+                existing.release();
+            }
+            preloads.put(key, preload);
+        }
+
+        EntitledRunnable onEntitlementRunnable = new EntitledRunnable() {
+            @Override
+            public void run() {
+                onPreloadEntitlement(preload, this.entitlement);
+            }
+        };
+        ErrorRunnable onErrorRunnable = new ErrorRunnable() {
+            @Override
+            public void run(int errorCode, String errorMessage) {
+                preload.failed = true;
+            }
+        };
+
+        if (playable instanceof EmpProgram) {
+            EmpProgram program = (EmpProgram) playable;
+            requestEntitlement(EntitlementCache.Request.catchup(program.channelId, program.programId), preload.properties, onEntitlementRunnable, onErrorRunnable);
+        }
+        else if (playable instanceof EmpChannel) {
+            EmpChannel channel = (EmpChannel) playable;
+            requestEntitlement(EntitlementCache.Request.live(channel.channelId), preload.properties, onEntitlementRunnable, onErrorRunnable);
+        }
+        else if (playable instanceof EmpAsset) {
+            EmpAsset asset = (EmpAsset) playable;
+            requestEntitlement(EntitlementCache.Request.vod(asset.assetId), preload.properties, onEntitlementRunnable, onErrorRunnable);
+        }
+    }
+
+    /**
+     * Discards the warm state of a playable
+     *
+     * @param playable playable previously passed to preload()
+     */
+    public void cancelPreload(IPlayable playable) {
+        String key = getPreloadKey(playable);
+        if (key == null) {
+            return;
+        }
+        Preload preload;
+        synchronized (preloads) {
+            preload = preloads.remove(key);
+        }
+        if (preload != null) {
+            preload.release();
+        }
+    }
+
+    /**
+     * Discards the warm state of all preloaded playables
+     */
+    public void clearPreloads() {
+        ArrayList<Preload> discarded;
+        synchronized (preloads) {
+            discarded = new ArrayList<>(preloads.values());
+            preloads.clear();
+        }
+        for (Preload preload : discarded) {
+            preload.release();
+        }
+    }
+
+    /**
+     * @param playable playable previously passed to preload()
+     * @return true if the playable is entitled and its tech loaded in the background
+     */
+    public boolean isPreloaded(IPlayable playable) {
+        String key = getPreloadKey(playable);
+        if (key == null) {
+            return false;
+        }
+        synchronized (preloads) {
+            Preload preload = preloads.get(key);
+            return preload != null && preload.isUsable(getServerTime()) && preload.tech instanceof IPreloadableTech && ((IPreloadableTech) preload.tech).isPreloaded();
+        }
+    }
+
+    /**
+     * @param playable playable previously passed to preload()
+     * @return server time at which its warm state expires (play token expiry when known), -1 if it is not preloaded
+     */
+    long getPreloadExpiryTime(IPlayable playable) {
+        String key = getPreloadKey(playable);
+        if (key == null) {
+            return -1;
+        }
+        synchronized (preloads) {
+            Preload preload = preloads.get(key);
+            return preload == null ? -1 : preload.expiresAtMs;
+        }
+    }
+
+    /**
+     * Stops ongoing playback and abandons the pending startup work of the session
+     */
+    @Override
+    public void stop() {
+        playRequestScheduler.cancel();
+        seekScheduler.cancel();
+        super.stop();
+    }
+
+    /**
+     * Releases the player, its tech and any preloaded playable
+     */
+    @Override
+    public void release() {
+        playRequestScheduler.cancel();
+        seekScheduler.cancel();
+        clearPreloads();
+        stopEntitlementKeeper();
+        if (this.activePreload != null) {
+            this.activePreload.release();
+            this.activePreload = null;
+        }
+        super.release();
+    }
+
     /**
      * @return the entitlement of a given playback session
      */
@@ -185,7 +419,7 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
     }
 
     /**
-     * Set timeshift delay for a stream (requires reloading the asset)
+     * Set timeshift delay for a stream (reloads the asset only if the delayed position is outside the seekable window)
      * @param timeshift sets timeshift delay (in seconds) from live point
      */
     @Override
@@ -193,10 +427,14 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         if (this.programService == null) {
             return;
         }
+        final CancellationToken sessionToken = playRequestScheduler.getCancellationToken();
         long timeshiftUnixTime = getMonotonicTimeService().currentTime() - timeshift * 1000;
         this.programService.isEntitled (timeshiftUnixTime, new Runnable() {
             @Override
             public void run() {
+                if (sessionToken.isCancelled()) {
+                    return;
+                }
                 if (tech != null) {
                     context.runOnUiThread(new Runnable() {
                         @Override
@@ -209,6 +447,9 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         }, new ErrorRunnable() {
             @Override
             public void run(final int errorCode, final String errorMessage) {
+                if (sessionToken.isCancelled()) {
+                    return;
+                }
                 context.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -234,6 +475,17 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         return null;
     }
 
+    /**
+     * @return entitled/blocked program intervals of the seek window resolved so far (sorted by start time), e.g. to
+     * show the blocked regions on a time bar. Empty if the stream has no EPG monitoring.
+     */
+    public List<EntitlementIntervalCache.Decision> getEntitlementMap() {
+        if (this.programService != null) {
+            return this.programService.getEntitlementMap();
+        }
+        return new ArrayList<>();
+    }
+
     /**
      * Triggers an event from an external source
      * @param eventId event type to be triggered
@@ -269,6 +521,7 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         if (getEntitlementProvider() == null) {
             throw new Exception("Do not use default constructor on EMPPlayer.");
         }
+        stopEntitlementKeeper();
         this.entitlement = null;
         this.playable = null;
 
@@ -277,14 +530,26 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
 
     /**
      * Seeks to a specific stream offset (range: [0..duration]
+     * <p>
+     *     Seeks issued in a quick burst are coalesced: only the last one is performed.
+     * </p>
      * @param positionMs offset in milliseconds
      */
     @Override
     public void seekTo(final long positionMs) {
-        if (getServerTime() - lastSeekToTimeMs < 500L) {
-            return;
-        }
-        lastSeekToTimeMs = getServerTime();
+        seekScheduler.seekTo(positionMs);
+    }
+
+    /**
+     * Seeks relative to the current playhead time - repeated calls in a quick burst add up to a single seek
+     * @param deltaMs offset in milliseconds (negative to seek backwards)
+     */
+    @Override
+    public void seekBy(long deltaMs) {
+        seekScheduler.seekBy(deltaMs);
+    }
+
+    protected void seekToPositionInternal(final long positionMs) {
         if (this.tech != null && this.isPlaying()) {
             long playheadPosition = getPlayheadPosition();
             if (positionMs > playheadPosition && this.entitlement.ffEnabled == false) {
@@ -297,15 +562,21 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
                 this.tech.seekTo(positionMs);
             }
             else {
+                final CancellationToken sessionToken = playRequestScheduler.getCancellationToken();
                 long unixTimeToCheck = range[0] + positionMs;
                 programService.isEntitled (unixTimeToCheck, new Runnable() {
                     @Override
                     public void run() {
-                        tech.seekTo(positionMs);
+                        if (sessionToken.isCancelled() == false && tech != null) {
+                            tech.seekTo(positionMs);
+                        }
                     }
                 }, new ErrorRunnable() {
                     @Override
                     public void run(final int errorCode, final String errorMessage) {
+                        if (sessionToken.isCancelled()) {
+                            return;
+                        }
                         onWarning(Warning.SEEK_NOT_POSSIBLE.getCode(), Warning.SEEK_NOT_POSSIBLE.toString());
                     }
                 }, true);
@@ -336,15 +607,19 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
      *        </li>
      *    </ul>
      * </p>
+     * <p>
+     *     Seeks issued in a quick burst are coalesced: only the last one is performed.
+     * </p>
      * @param _unixTimeMs unix time to seek to in milliseconds
      */
     @Override
     public void seekToTime(long _unixTimeMs) {
-        this.seekToTimeInternal(_unixTimeMs, false);
+        seekScheduler.seekToTime(_unixTimeMs);
     }
 
     protected void seekToTimeInternal(long _unixTimeMs, boolean avoidContract) {
         if (this.tech != null) {
+            final CancellationToken sessionToken = playRequestScheduler.getCancellationToken();
             if (avoidContract == false && this.isPlaying()) {
                 long playheadTime = getPlayheadTime();
                 if (_unixTimeMs > playheadTime && this.entitlement.ffEnabled == false) {
@@ -365,11 +640,16 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
                     programService.isEntitled (_unixTimeMs, new Runnable() {
                         @Override
                         public void run() {
-                            tech.seekToTime(seekToTime);
+                            if (sessionToken.isCancelled() == false && tech != null) {
+                                tech.seekToTime(seekToTime);
+                            }
                         }
                     }, new ErrorRunnable() {
                         @Override
                         public void run(final int errorCode, final String errorMessage) {
+                            if (sessionToken.isCancelled()) {
+                                return;
+                            }
                             onWarning(Warning.SEEK_NOT_POSSIBLE.getCode(), Warning.SEEK_NOT_POSSIBLE.toString());
                         }
                     }, true);
@@ -389,34 +669,32 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
                 }
                 final long unixTimeMs = _unixTimeMs;
 
-                EpgQueryParameters epgParams = new EpgQueryParameters();
-                epgParams.setFutureTimeFrame(0);
-                epgParams.setPastTimeFrame(0);
-
-                getMetadataProvider().getEpgWithTime(this.entitlement.channelId, unixTimeMs, new IMetadataCallback<ArrayList<EmpProgram>>() {
+                getEpgCache().getProgramsAt(this.entitlement.channelId, unixTimeMs, new IMetadataCallback<ArrayList<EmpProgram>>() {
                     @Override
                     public void onMetadata(ArrayList<EmpProgram> programs) {
+                        if (sessionToken.isCancelled()) {
+                            return;
+                        }
                         try {
                             if (programs.size() > 0) {
                                 final EmpProgram program = programs.get(0);
                                 final PlaybackProperties newProps = properties.clone();
                                 newProps.playFrom = new PlaybackProperties.PlayFrom.StartTime(unixTimeMs);
                                 newProps.withAutoplay(isPaused() == false);
-                                final HashMap<IPlaybackEventListener, IPlaybackEventListener> listeners = (HashMap<IPlaybackEventListener, IPlaybackEventListener>) eventListeners.clone();
                                 programService.isEntitled (unixTimeMs, new Runnable() {
                                     @Override
                                     public void run() {
-                                        if(isPlaying()) {
-                                            stop();
-                                        }
-                                        play(program, newProps);
-                                        for(IPlaybackEventListener listener : listeners.keySet()) {
-                                            addListener(listener);
+                                        if (sessionToken.isCancelled()) {
+                                            return;
                                         }
+                                        switchToProgram(program, newProps, sessionToken);
                                     }
                                 }, new ErrorRunnable() {
                                     @Override
                                     public void run(final int errorCode, final String errorMessage) {
+                                        if (sessionToken.isCancelled()) {
+                                            return;
+                                        }
                                         onWarning(Warning.SEEK_NOT_POSSIBLE.getCode(), Warning.SEEK_NOT_POSSIBLE.toString());
                                     }
                                 }, true);
@@ -431,13 +709,136 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
 
                     @Override
                     public void onError(final Error error) {
+                        if (sessionToken.isCancelled()) {
+                            return;
+                        }
                         fail (ErrorCodes.GENERIC_PLAYBACK_FAILED, error.toString());
                     }
-                }, epgParams);
+                });
             }
         }
     }
 
+    /**
+     * Moves playback to another program of the current channel: techs that implement ISourceSwitchableTech swap the
+     * stream on the running player, other techs are stopped and the program is played from scratch
+     *
+     * @param program program to switch to
+     * @param newProps playback properties of the program (start time)
+     * @param sessionToken cancellation token of the session that requested the switch
+     */
+    protected void switchToProgram(final EmpProgram program, final PlaybackProperties newProps, final CancellationToken sessionToken) {
+        if (this.tech instanceof ISourceSwitchableTech == false || this.isPlaying() == false) {
+            restartWithProgram(program, newProps);
+            return;
+        }
+        Entitlement prefetched = takePrefetchedEntitlement(program);
+        if (prefetched != null) {
+            switchToEntitlement(program, newProps, prefetched, sessionToken);
+            return;
+        }
+        requestEntitlement(EntitlementCache.Request.catchup(program.channelId, program.programId), newProps, new EntitledRunnable() {
+            @Override
+            public void run() {
+                if (sessionToken.isCancelled()) {
+                    return;
+                }
+                switchToEntitlement(program, newProps, this.entitlement, sessionToken);
+            }
+        }, new ErrorRunnable() {
+            @Override
+            public void run(final int errorCode, final String errorMessage) {
+                if (sessionToken.isCancelled()) {
+                    return;
+                }
+                onWarning(Warning.SEEK_NOT_POSSIBLE.getCode(), Warning.SEEK_NOT_POSSIBLE.toString());
+            }
+        });
+    }
+
+    private void switchToEntitlement(final EmpProgram program, final PlaybackProperties newProps, final Entitlement newEntitlement, final CancellationToken sessionToken) {
+        applyEntitlementProperties(newProps, newEntitlement);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (sessionToken.isCancelled() || tech == null) {
+                    return;
+                }
+                if (tech instanceof ISourceSwitchableTech == false ||
+                    ((ISourceSwitchableTech) tech).switchSource(newEntitlement.playToken, newProps, newEntitlement.programId, newEntitlement.mediaLocator) == false) {
+                    restartWithProgram(program, newProps);
+                    return;
+                }
+                properties = newProps;
+                playable = program;
+                entitlement = newEntitlement;
+                nextProgram = null;
+                onEntitlementChange();
+                prepareProgramService(program);
+                startEntitlementKeeper(newEntitlement);
+            }
+        });
+    }
+
+    /**
+     * Takes the entitlement prefetched for a program (see prefetchNextProgram) - the warm tech of the prefetch is
+     * released since the running tech switches to the stream in place
+     *
+     * @return null if the program was not prefetched or its entitlement is not usable anymore
+     */
+    private Entitlement takePrefetchedEntitlement(IPlayable playable) {
+        String key = getPreloadKey(playable);
+        if (key == null) {
+            return null;
+        }
+        Preload preload;
+        synchronized (preloads) {
+            preload = preloads.remove(key);
+        }
+        if (preload == null) {
+            return null;
+        }
+        Entitlement prefetched = preload.isUsable(getServerTime()) ? preload.entitlement : null;
+        preload.release();
+        return prefetched;
+    }
+
+    private void restartWithProgram(EmpProgram program, PlaybackProperties newProps) {
+        final HashMap<IPlaybackEventListener, IPlaybackEventListener> listeners = (HashMap<IPlaybackEventListener, IPlaybackEventListener>) eventListeners.clone();
+        if(isPlaying()) {
+            stop();
+        }
+        play(program, newProps);
+        for(IPlaybackEventListener listener : listeners.keySet()) {
+            addListener(listener);
+        }
+    }
+
+    /**
+     * Continues into the program that follows the static catch-up program being played. Its EPG entry, entitlement
+     * and manifest are prefetched a lead time before the program end (see PlaybackProperties.withNextProgramPrefetchLeadTime)
+     * and the running tech switches to it in place when it supports it
+     *
+     * @return false if the next program is not known (yet)
+     */
+    public boolean playNextProgram() {
+        EmpProgram program = this.nextProgram;
+        if (program == null || this.properties == null) {
+            return false;
+        }
+        try {
+            PlaybackProperties newProps = this.properties.clone();
+            newProps.withPlayFrom(PlaybackProperties.PlayFrom.BEGINNING);
+            newProps.withAutoplay(isPaused() == false);
+            switchToProgram(program, newProps, playRequestScheduler.getCancellationToken());
+            return true;
+        }
+        catch (CloneNotSupportedException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     /**
      * Use this method to check if stream can be seeked forward
      */
@@ -505,6 +906,7 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
      */
     @Override
     public void seekToLive() {
+        seekScheduler.cancel();
         if (this.tech == null || this.entitlement == null || this.entitlement.channelId == null) {
             return;
         }
@@ -514,13 +916,26 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         }
         long nowMs = getServerTime();
         if (UniversalPackagerHelper.isStaticCatchup(this.entitlement.mediaLocator)) {
-            EpgQueryParameters epgParams = new EpgQueryParameters();
-            epgParams.setFutureTimeFrame(0);
-            epgParams.setPastTimeFrame(0);
-            epgParams.setPageSize(10);
-            getMetadataProvider().getEpgWithTime(this.entitlement.channelId, nowMs, new IMetadataCallback<ArrayList<EmpProgram>>() {
+            EmpProgram prefetchedProgram = this.nextProgram;
+            if (prefetchedProgram != null && prefetchedProgram.liveNow()) {
+                try {
+                    PlaybackProperties newProps = properties.clone();
+                    newProps.playFrom = PlaybackProperties.PlayFrom.LIVE_EDGE;
+                    newProps.withAutoplay(isPaused() == false);
+                    switchToProgram(prefetchedProgram, newProps, playRequestScheduler.getCancellationToken());
+                    return;
+                }
+                catch (CloneNotSupportedException e) {
+                    e.printStackTrace();
+                }
+            }
+            final CancellationToken sessionToken = playRequestScheduler.getCancellationToken();
+            getEpgCache().getProgramsAt(this.entitlement.channelId, nowMs, new IMetadataCallback<ArrayList<EmpProgram>>() {
                 @Override
                 public void onMetadata(ArrayList<EmpProgram> programs) {
+                    if (sessionToken.isCancelled()) {
+                        return;
+                    }
                     try {
                         if (programs.size() > 0) {
                             EmpProgram program = programs.get(0);
@@ -544,9 +959,12 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
 
                 @Override
                 public void onError(final Error error) {
+                    if (sessionToken.isCancelled()) {
+                        return;
+                    }
                     fail (ErrorCodes.GENERIC_PLAYBACK_FAILED, error.toString());
                 }
-            }, epgParams);
+            });
         }
         else {
             seekToTimeInternal(Math.min(nowMs, seekTimeRange[1] - SAFETY_LIVE_DELAY), true);
@@ -579,105 +997,475 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
 
         this.entitlement = entitlement;
         this.onEntitlementChange();
+        startEntitlementKeeper(entitlement);
 
-        if (this.properties != null && entitlement != null) {
+        applyEntitlementProperties(this.properties, entitlement);
+
+        Log.d("EMP MEDIA LOCATOR", entitlement.mediaLocator);
+        if (activatePreloadedTech(entitlement)) {
+            return;
+        }
+        tech.init(this, context, entitlement.playToken, this.properties);
+        tech.load(mediaId, entitlement.mediaLocator, false);
+    }
+
+    private void applyEntitlementProperties(PlaybackProperties properties, Entitlement entitlement) {
+        if (properties != null && entitlement != null) {
             if (entitlement.licenseServerUrl != null) {
                 PlaybackProperties.DRMProperties drmProps = new PlaybackProperties.DRMProperties();
                 drmProps.licenseServerUrl = entitlement.licenseServerUrl;
                 drmProps.initDataBase64 = entitlement.drmInitDataBase64;
-                this.properties.withDRMProperties(drmProps);
+                properties.withDRMProperties(drmProps);
             }
             else {
-                this.properties.withDRMProperties(null);
+                properties.withDRMProperties(null);
             }
 
             if (entitlement.maxBitrate != null &&
-                    (this.properties.getMaxBitrate() == null || entitlement.maxBitrate < this.properties.getMaxBitrate())) {
-                this.properties.withMaxBitrate(entitlement.maxBitrate);
+                    (properties.getMaxBitrate() == null || entitlement.maxBitrate < properties.getMaxBitrate())) {
+                properties.withMaxBitrate(entitlement.maxBitrate);
             }
         }
+    }
 
-        Log.d("EMP MEDIA LOCATOR", entitlement.mediaLocator);
-        tech.init(this, context, entitlement.playToken, this.properties);
-        tech.load(mediaId, entitlement.mediaLocator, false);
+    private boolean activatePreloadedTech(Entitlement entitlement) {
+        Preload preload = this.activePreload;
+        this.activePreload = null;
+        if (preload == null) {
+            return false;
+        }
+        ITech warmTech = preload.detachTech();
+        if (warmTech == null ||
+            preload.entitlement != entitlement ||
+            warmTech instanceof IPreloadableTech == false ||
+            ((IPreloadableTech) warmTech).isPreloaded() == false ||
+            isSameStart(preload.properties.getPlayFrom(), this.properties.getPlayFrom()) == false) {
+            if (warmTech != null) {
+                warmTech.release();
+            }
+            if (this.tech == null) {
+                this.tech = techFactory.build();
+            }
+            return false;
+        }
+        swapTech(warmTech);
+        ((IPreloadableTech) warmTech).activate(this, context, this.properties);
+        return true;
+    }
+
+    private boolean completeFromPreload(StartupGraph graph) {
+        Preload preload = this.activePreload;
+        if (preload == null || preload.entitlement == null) {
+            return false;
+        }
+        graph.complete(STAGE_ENTITLEMENT, preload.entitlement);
+        return true;
+    }
+
+    private Preload takePreload(IPlayable playable) {
+        if (this.activePreload != null) {
+            this.activePreload.release();
+            this.activePreload = null;
+        }
+        String key = getPreloadKey(playable);
+        if (key == null) {
+            return null;
+        }
+        Preload preload;
+        synchronized (preloads) {
+            preload = preloads.remove(key);
+        }
+        if (preload == null) {
+            return null;
+        }
+        if (preload.isUsable(getServerTime()) == false || preload.entitlement == null) {
+            preload.release();
+            return null;
+        }
+        return preload;
+    }
+
+    private void onPreloadEntitlement(Preload preload, Entitlement entitlement) {
+        if (preload.cancellationToken.isCancelled()) {
+            return;
+        }
+        synchronized (preloads) {
+            if (preloads.get(preload.key) != preload) {
+                return;
+            }
+            preload.entitlement = entitlement;
+            long tokenExpiry = EntitlementCache.getPlayTokenExpiry(entitlement);
+            if (tokenExpiry > 0) {
+                // Warm state lives as long as its play token rather than a fixed age
+                preload.expiresAtMs = tokenExpiry - EntitlementCache.EXPIRY_MARGIN_MS;
+            }
+        }
+        if (entitlement == null || entitlement.mediaLocator == null) {
+            return;
+        }
+        if (techFactory != null) {
+            techFactory.prefetch(context, entitlement.mediaLocator, preload.cancellationToken);
+        }
+        if (resolvePreloadStart(preload.playable, preload.properties) == false) {
+            // Start position depends on data only known at play time (bookmark, EPG lookup): entitlement and manifest are warm anyway
+            return;
+        }
+        ITech warmTech = techFactory == null ? null : techFactory.build();
+        if (warmTech instanceof IPreloadableTech == false) {
+            return;
+        }
+        applyEntitlementProperties(preload.properties, entitlement);
+        if (preload.attachTech(warmTech) == false) {
+            return;
+        }
+        String mediaId = entitlement.assetId;
+        if (preload.playable instanceof EmpChannel) {
+            mediaId = entitlement.channelId;
+        }
+        else if (preload.playable instanceof EmpProgram) {
+            mediaId = entitlement.programId;
+        }
+        ((IPreloadableTech) warmTech).preload(this, context, entitlement.playToken, preload.properties, mediaId, entitlement.mediaLocator, preload.warmBufferMs);
+    }
+
+    private static boolean resolvePreloadStart(IPlayable playable, PlaybackProperties properties) {
+        PlaybackProperties.PlayFromItem playFrom = properties.getPlayFrom();
+        if (playable instanceof EmpProgram) {
+            EmpProgram program = (EmpProgram) playable;
+            if (program.startDateTime == null || program.endDateTime == null || program.liveNow()) {
+                return false;
+            }
+            if (playFrom != null && PlaybackProperties.PlayFrom.isBeginning(playFrom) == false) {
+                return false;
+            }
+            PlaybackProperties.PlayFrom.Beginning beginning = new PlaybackProperties.PlayFrom.Beginning();
+            beginning.withStartTime(program.startDateTime.getMillis());
+            properties.withPlayFrom(beginning);
+            return true;
+        }
+        else if (playable instanceof EmpChannel) {
+            if (playFrom != null && PlaybackProperties.PlayFrom.isLiveEdge(playFrom) == false) {
+                return false;
+            }
+            properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
+            return true;
+        }
+        return playFrom == null;
+    }
+
+    private static boolean isSameStart(PlaybackProperties.PlayFromItem warmStart, PlaybackProperties.PlayFromItem start) {
+        if (warmStart == null || start == null) {
+            return warmStart == start;
+        }
+        if (warmStart.type.equals(start.type) == false) {
+            return false;
+        }
+        if (PlaybackProperties.PlayFrom.isLiveEdge(warmStart)) {
+            return true;
+        }
+        if (warmStart instanceof PlaybackProperties.PlayFrom.StartTime && start instanceof PlaybackProperties.PlayFrom.StartTime) {
+            return ((PlaybackProperties.PlayFrom.StartTime) warmStart).startTime == ((PlaybackProperties.PlayFrom.StartTime) start).startTime;
+        }
+        return true;
+    }
+
+    private static String getPreloadKey(IPlayable playable) {
+        if (playable == null || playable instanceof EmpOfflineAsset) {
+            return null;
+        }
+        if (playable instanceof EmpProgram) {
+            EmpProgram program = (EmpProgram) playable;
+            return "program:" + program.channelId + ":" + program.programId;
+        }
+        if (playable instanceof EmpChannel) {
+            return "channel:" + ((EmpChannel) playable).channelId;
+        }
+        if (playable instanceof EmpAsset) {
+            return "asset:" + ((EmpAsset) playable).assetId;
+        }
+        return null;
+    }
+
+    static EntitlementCache.Request getEntitlementRequest(IPlayable playable) {
+        if (playable == null || playable instanceof EmpOfflineAsset) {
+            return null;
+        }
+        if (playable instanceof EmpProgram) {
+            EmpProgram program = (EmpProgram) playable;
+            return EntitlementCache.Request.catchup(program.channelId, program.programId);
+        }
+        if (playable instanceof EmpChannel) {
+            return EntitlementCache.Request.live(((EmpChannel) playable).channelId);
+        }
+        if (playable instanceof EmpAsset) {
+            return EntitlementCache.Request.vod(((EmpAsset) playable).assetId);
+        }
+        return null;
+    }
+
+    /**
+     * Keeps the entitlement of the session valid while it plays: it is refreshed ahead of the play token expiry and
+     * the new play token is swapped into the running tech, so long sessions do not stall on license renewals
+     */
+    private void startEntitlementKeeper(Entitlement entitlement) {
+        stopEntitlementKeeper();
+        final EntitlementCache.Request request = getEntitlementRequest(this.playable);
+        if (request == null) {
+            return;
+        }
+        final EntitlementKeeper keeper = new EntitlementKeeper(getEntitlementCache(), request, new EntitlementKeeper.Target() {
+            @Override
+            public void onEntitlementRefreshed(final Entitlement refreshed) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        applyRefreshedEntitlement(request, refreshed);
+                    }
+                });
+            }
+        });
+        if (keeper.start(entitlement)) {
+            this.entitlementKeeper = keeper;
+        }
+    }
+
+    /**
+     * Takes the play token of a refreshed entitlement - the rest of the session entitlement (playSessionId, bookmarks)
+     * is kept, so analytics and the backend still see the same playback session
+     */
+    void applyRefreshedEntitlement(EntitlementCache.Request request, Entitlement refreshed) {
+        EntitlementCache.Request current = getEntitlementRequest(this.playable);
+        if (this.entitlementKeeper == null || this.entitlementKeeper.isRunning() == false || this.entitlement == null ||
+            current == null || current.getKey().equals(request.getKey()) == false || this.tech == null) {
+            return;
+        }
+        if (this.tech instanceof ITokenRefreshableTech == false ||
+            ((ITokenRefreshableTech) this.tech).refreshPlayToken(refreshed.playToken) == false) {
+            stopEntitlementKeeper();
+            return;
+        }
+        this.entitlement.playToken = refreshed.playToken;
+    }
+
+    private void stopEntitlementKeeper() {
+        if (this.entitlementKeeper != null) {
+            this.entitlementKeeper.stop();
+            this.entitlementKeeper = null;
+        }
     }
 
     private void prepareProgramService(EmpProgram program) {
         disposeProgrameService();
         this.programService = new ProgramService(this, getEntitlement(), program);
+        this.programService.setPlaybackRate(getPlaybackRate());
+        if (this.properties != null) {
+            if (this.properties.getEntitlementFuzzyMaxDelay() != null) {
+                this.programService.setEntitlementFuzzyMaxDelay(this.properties.getEntitlementFuzzyMaxDelay());
+            }
+            this.programService.setRetryPolicy(this.properties.getProgramServiceRetryPolicy());
+        }
+        setupNextProgramPrefetch(this.programService);
         this.programService.start();
     }
 
+    private void setupNextProgramPrefetch(ProgramService service) {
+        Entitlement entitlement = getEntitlement();
+        if (this.properties == null || entitlement == null || entitlement.mediaLocator == null || UniversalPackagerHelper.isStaticCatchup(entitlement.mediaLocator) == false) {
+            return;
+        }
+        // Preloads expire after PRELOAD_MAX_AGE_MS, so a longer lead time would discard the prefetch before the boundary
+        long leadTimeMs = Math.min(this.properties.getNextProgramPrefetchLeadTime(), PRELOAD_MAX_AGE_MS / 2);
+        if (leadTimeMs <= 0) {
+            return;
+        }
+        final CancellationToken sessionToken = playRequestScheduler.getCancellationToken();
+        service.setProgramBoundaryListener(leadTimeMs, new ProgramService.ProgramBoundaryListener() {
+            @Override
+            public void onProgramEnding(EmpProgram program) {
+                prefetchNextProgram(program, sessionToken);
+            }
+        });
+    }
+
+    private void prefetchNextProgram(final EmpProgram currentProgram, final CancellationToken sessionToken) {
+        if (sessionToken.isCancelled() || this.entitlement == null || this.entitlement.channelId == null) {
+            return;
+        }
+        final long endTime = currentProgram.endDateTime.getMillis();
+        getEpgCache().getProgramsAt(this.entitlement.channelId, endTime, new IMetadataCallback<ArrayList<EmpProgram>>() {
+            @Override
+            public void onMetadata(ArrayList<EmpProgram> programs) {
+                if (sessionToken.isCancelled() || programs == null) {
+                    return;
+                }
+                for (EmpProgram program : programs) {
+                    if (program.startDateTime == null || program.startDateTime.getMillis() < endTime ||
+                        (program.programId != null && program.programId.equals(currentProgram.programId))) {
+                        continue;
+                    }
+                    try {
+                        PlaybackProperties nextProps = properties.clone();
+                        nextProps.withPlayFrom(PlaybackProperties.PlayFrom.BEGINNING);
+                        nextProgram = program;
+                        preload(program, nextProps);
+                    }
+                    catch (CloneNotSupportedException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+            }
+
+            @Override
+            public void onError(final Error error) {
+                // Continuing into the next program falls back to resolving it on the spot
+            }
+        });
+    }
+
+    private void pokeProgramService() {
+        if (this.programService != null) {
+            this.programService.poke();
+        }
+    }
+
+    /**
+     * Called by the tech when the playback rate changes: program boundaries are reached sooner or later than in wall clock time
+     *
+     * @param rate new playback rate (1.0 is normal speed)
+     */
+    @Override
+    public void onPlaybackRateChanged(float rate) {
+        super.onPlaybackRateChanged(rate);
+        if (this.programService != null) {
+            this.programService.setPlaybackRate(rate);
+        }
+    }
+
     private void disposeProgrameService() {
-        if (this.programService != null && this.programService.isAlive() && this.programService.isInterrupted() == false) {
+        if (this.programService != null && this.programService.isRunning()) {
             this.programService.interrupt();
         }
     }
 
-    private ErrorRunnable getErrorRunnable() {
+    private ErrorRunnable getErrorRunnable(final StartupGraph startupGraph) {
         final ErrorRunnable onErrorRunnable = new ErrorRunnable() {
             @Override
             public void run(int errorCode, String errorMessage) {
+                if (startupGraph.isCancelled()) {
+                    return;
+                }
                 onError(errorCode, errorMessage);
             }
         };
         return onErrorRunnable;
     }
 
-    private void playLive(final EmpChannel channel) {
+    private void addManifestPrefetchStage(StartupGraph startupGraph) {
+        startupGraph.addStage(STAGE_MANIFEST_PREFETCH, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                Entitlement entitlement = (Entitlement) graph.getResult(STAGE_ENTITLEMENT);
+                if (techFactory != null && entitlement != null && entitlement.mediaLocator != null) {
+                    techFactory.prefetch(context, entitlement.mediaLocator, graph.getCancellationToken());
+                }
+                graph.complete(STAGE_MANIFEST_PREFETCH);
+            }
+        }, STAGE_ENTITLEMENT);
+    }
+
+    private void playLive(final EmpChannel channel, final StartupGraph startupGraph) {
+        final boolean needsEpg = PlaybackProperties.PlayFrom.isBeginning(properties.getPlayFrom()) && channel.programs == null;
         final EntitledRunnable onEntitlementRunnable = new EntitledRunnable() {
             @Override
             public void run() {
+                startupGraph.complete(STAGE_ENTITLEMENT, this.entitlement);
+            }
+        };
+
+        startupGraph.addStage(STAGE_ENTITLEMENT, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                onEntitlementLoadStart();
+                if (completeFromPreload(graph)) {
+                    return;
+                }
+                requestEntitlement(EntitlementCache.Request.live(channel.channelId), properties, onEntitlementRunnable, getErrorRunnable(startupGraph));
+            }
+        });
+        if (needsEpg) {
+            startupGraph.addStage(STAGE_EPG_SNAPSHOT, new StartupGraph.Stage() {
+                @Override
+                public void run(final StartupGraph graph) {
+                    // A fresh on-disk snapshot resolves the live program without a round trip
+                    getEpgSnapshotStore().getProgramAt(channel.channelId, getServerTime(), EpgSnapshotStore.STARTUP_MAX_AGE_MS, new ParameterizedRunnable<EmpProgram>() {
+                        @Override
+                        public void run(EmpProgram program) {
+                            graph.complete(STAGE_EPG_SNAPSHOT, program);
+                        }
+                    });
+                }
+            });
+            startupGraph.addStage(STAGE_EPG, new StartupGraph.Stage() {
+                @Override
+                public void run(final StartupGraph graph) {
+                    if (graph.getResult(STAGE_EPG_SNAPSHOT) != null) {
+                        graph.complete(STAGE_EPG, null);
+                        return;
+                    }
+                    getEpgCache().getProgramsAt(channel.channelId, getServerTime(), new IMetadataCallback<ArrayList<EmpProgram>>() {
+                        @Override
+                        public void onMetadata(ArrayList<EmpProgram> programs) {
+                            graph.complete(STAGE_EPG, programs != null && programs.size() > 0 ? programs.get(0) : null);
+                        }
+
+                        @Override
+                        public void onError(final Error error) {
+                            graph.complete(STAGE_EPG, null);
+                        }
+                    });
+                }
+            }, STAGE_EPG_SNAPSHOT);
+        }
+        addManifestPrefetchStage(startupGraph);
+        startupGraph.addStage(STAGE_PLAYBACK, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                Entitlement entitlement = (Entitlement) graph.getResult(STAGE_ENTITLEMENT);
+                EmpProgram liveProgram = null;
+                // Program resolved at startup (snapshot first, then EPG): the program service starts from it
+                EmpProgram startupProgram = null;
+                if (needsEpg) {
+                    startupProgram = (EmpProgram) graph.getResult(STAGE_EPG_SNAPSHOT);
+                    if (startupProgram == null) {
+                        startupProgram = (EmpProgram) graph.getResult(STAGE_EPG);
+                    }
+                }
+
                 if (PlaybackProperties.PlayFrom.isBookmark(properties.getPlayFrom())) {
                     prepareBookmark(channel, entitlement);
                 }
 
                 if (PlaybackProperties.PlayFrom.isBeginning(properties.getPlayFrom())) {
-                    if (channel.programs != null) {
-                        boolean foundLive = false;
-                        for (EmpProgram program : channel.programs) {
-                            if (program.liveNow()) {
-                                PlaybackProperties.PlayFrom.Beginning beginningOpt = new PlaybackProperties.PlayFrom.Beginning();
-                                beginningOpt.withStartTime(program.startDateTime.getMillis());
-                                properties.withPlayFrom(beginningOpt);
-                                foundLive = true;
-                                break;
-                            }
-                        }
-                        if (!foundLive) {
-                            properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
+                    if (needsEpg) {
+                        liveProgram = startupProgram;
+                    }
+                    else {
+                        EpgCache epgCache = getEpgCache();
+                        long nowMs = getServerTime();
+                        liveProgram = epgCache.getProgramAt(channel.channelId, nowMs);
+                        if (liveProgram == null) {
+                            epgCache.put(channel.channelId, channel.programs);
+                            liveProgram = epgCache.getProgramAt(channel.channelId, nowMs);
                         }
                     }
+                    if (liveProgram != null) {
+                        PlaybackProperties.PlayFrom.Beginning beginningOpt = new PlaybackProperties.PlayFrom.Beginning();
+                        beginningOpt.withStartTime(liveProgram.startDateTime.getMillis());
+                        properties.withPlayFrom(beginningOpt);
+                    }
                     else {
-                        EpgQueryParameters epgParams = new EpgQueryParameters();
-                        epgParams.setFutureTimeFrame(0);
-                        epgParams.setPastTimeFrame(0);
-                        epgParams.setPageSize(10);
-                        getMetadataProvider().getEpgWithTime(this.entitlement.channelId, getServerTime(), new IMetadataCallback<ArrayList<EmpProgram>>() {
-                            @Override
-                            public void onMetadata(ArrayList<EmpProgram> programs) {
-                                if (programs.size() > 0) {
-                                    EmpProgram program = programs.get(0);
-                                    PlaybackProperties.PlayFrom.Beginning beginningOpt = new PlaybackProperties.PlayFrom.Beginning();
-                                    beginningOpt.withStartTime(program.startDateTime.getMillis());
-                                    properties.withPlayFrom(beginningOpt);
-                                }
-                                else {
-                                    properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
-                                }
-
-                                preparePlayback(entitlement.channelId, entitlement);
-                                prepareProgramService(programs.size() > 0 ? programs.get(0) : null);
-                            }
-
-                            @Override
-                            public void onError(final Error error) {
-                                properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
-                                preparePlayback(entitlement.channelId, entitlement);
-                                prepareProgramService(null);
-                            }
-                        }, epgParams);
-                        return;
+                        properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
                     }
                 }
 
@@ -686,18 +1474,62 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
                 }
 
                 preparePlayback(entitlement.channelId, entitlement);
-                prepareProgramService(null);
+                prepareProgramService(startupProgram);
             }
-        };
-        super.onEntitlementLoadStart();
-        getEntitlementProvider().playLive(channel.channelId, new EntitlementCallback(null, channel.channelId, null, onEntitlementRunnable, getErrorRunnable()));
+        }, needsEpg ? new String[] { STAGE_ENTITLEMENT, STAGE_EPG } : new String[] { STAGE_ENTITLEMENT });
+        startupGraph.start();
     }
 
-    private void playProgram(final EmpProgram program) {
+    private void playProgram(final EmpProgram program, final StartupGraph startupGraph) {
+        final boolean hasProgramTimes = program.startDateTime != null && program.endDateTime != null;
+        final boolean mayNeedDetails = hasProgramTimes == false &&
+                (PlaybackProperties.PlayFrom.isBeginning(properties.getPlayFrom()) ||
+                 PlaybackProperties.PlayFrom.isLiveEdge(properties.getPlayFrom()) ||
+                 PlaybackProperties.PlayFrom.isBookmark(properties.getPlayFrom()) ||
+                 properties.getPlayFrom() == null);
         final EntitledRunnable onEntitlementRunnable = new EntitledRunnable() {
             @Override
             public void run() {
-                if (PlaybackProperties.PlayFrom.isStartTime(properties.getPlayFrom()) && program.startDateTime != null && program.endDateTime != null) {
+                startupGraph.complete(STAGE_ENTITLEMENT, this.entitlement);
+            }
+        };
+
+        startupGraph.addStage(STAGE_ENTITLEMENT, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                onEntitlementLoadStart();
+                if (completeFromPreload(graph)) {
+                    return;
+                }
+                requestEntitlement(EntitlementCache.Request.catchup(program.channelId, program.programId), properties, onEntitlementRunnable, getErrorRunnable(startupGraph));
+            }
+        });
+        if (mayNeedDetails) {
+            // Program details are fetched speculatively alongside the entitlement: a missing bookmark only becomes known once the entitlement arrives
+            startupGraph.addStage(STAGE_PROGRAM_DETAILS, new StartupGraph.Stage() {
+                @Override
+                public void run(final StartupGraph graph) {
+                    getMetadataProvider().getProgramDetails(program.channelId, program.programId, new IMetadataCallback<EmpProgram>() {
+                        @Override
+                        public void onMetadata(EmpProgram fullProgram) {
+                            graph.complete(STAGE_PROGRAM_DETAILS, fullProgram);
+                        }
+
+                        @Override
+                        public void onError(Error error) {
+                            graph.complete(STAGE_PROGRAM_DETAILS, error);
+                        }
+                    });
+                }
+            });
+        }
+        addManifestPrefetchStage(startupGraph);
+        startupGraph.addStage(STAGE_PLAYBACK, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                Entitlement entitlement = (Entitlement) graph.getResult(STAGE_ENTITLEMENT);
+
+                if (PlaybackProperties.PlayFrom.isStartTime(properties.getPlayFrom()) && hasProgramTimes) {
                     long startTime = ((PlaybackProperties.PlayFrom.StartTime) properties.getPlayFrom()).startTime;
                     if (startTime < program.startDateTime.getMillis() || startTime > program.endDateTime.getMillis()) {
                         trigger(EventId.WARNING, Warning.INVALID_START_TIME);
@@ -717,76 +1549,80 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
                 if (PlaybackProperties.PlayFrom.isBeginning(properties.getPlayFrom()) ||
                     PlaybackProperties.PlayFrom.isLiveEdge(properties.getPlayFrom()) ||
                     properties.getPlayFrom() == null) {
-                    if (program.startDateTime != null && program.endDateTime != null) {
-                        if (program.liveNow() && properties.getPlayFrom() == null) {
-                            properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
-                        }
-                        if (!program.liveNow() && properties.getPlayFrom() == null) {
-                            properties.withPlayFrom(PlaybackProperties.PlayFrom.BEGINNING);
+                    EmpProgram fullProgram = program;
+                    if (hasProgramTimes == false) {
+                        Object details = graph.getResult(STAGE_PROGRAM_DETAILS);
+                        if (details instanceof Error) {
+                            properties.withPlayFrom(null);
+                            preparePlayback(entitlement.programId, entitlement);
+                            prepareProgramService(program);
+                            return;
                         }
-                        if (PlaybackProperties.PlayFrom.isBeginning(properties.getPlayFrom())) {
-                            ((PlaybackProperties.PlayFrom.StartTime) properties.getPlayFrom()).startTime = program.startDateTime.getMillis();
+                        if (details == null) {
+                            return;
                         }
-                        preparePlayback(entitlement.programId, entitlement);
-                        prepareProgramService(program);
+                        fullProgram = (EmpProgram) details;
                     }
-                    else {
-                        getMetadataProvider().getProgramDetails(program.channelId, program.programId, new IMetadataCallback<EmpProgram>() {
-                            @Override
-                            public void onMetadata(EmpProgram fullProgram) {
-                                if (fullProgram == null) {
-                                    return;
-                                }
-                                if (fullProgram.liveNow() && properties.getPlayFrom() == null) {
-                                    properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
-                                }
-                                if (!fullProgram.liveNow() && properties.getPlayFrom() == null) {
-                                    properties.withPlayFrom(PlaybackProperties.PlayFrom.BEGINNING);
-                                }
-                                if (PlaybackProperties.PlayFrom.isBeginning(properties.getPlayFrom())) {
-                                    ((PlaybackProperties.PlayFrom.StartTime) properties.getPlayFrom()).startTime = fullProgram.startDateTime.getMillis();
-                                }
-                                preparePlayback(entitlement.programId, entitlement);
-                                prepareProgramService(fullProgram);
-                            }
-
-                            @Override
-                            public void onError(Error error) {
-                                properties.withPlayFrom(null);
-                                preparePlayback(entitlement.programId, entitlement);
-                                prepareProgramService(program);
-                            }
-                        });
+                    if (fullProgram.liveNow() && properties.getPlayFrom() == null) {
+                        properties.withPlayFrom(PlaybackProperties.PlayFrom.LIVE_EDGE);
+                    }
+                    if (!fullProgram.liveNow() && properties.getPlayFrom() == null) {
+                        properties.withPlayFrom(PlaybackProperties.PlayFrom.BEGINNING);
+                    }
+                    if (PlaybackProperties.PlayFrom.isBeginning(properties.getPlayFrom())) {
+                        ((PlaybackProperties.PlayFrom.StartTime) properties.getPlayFrom()).startTime = fullProgram.startDateTime.getMillis();
                     }
+                    preparePlayback(entitlement.programId, entitlement);
+                    prepareProgramService(fullProgram);
                 }
                 else {
                     preparePlayback(entitlement.programId, entitlement);
                     prepareProgramService(program);
                 }
             }
-        };
-        super.onEntitlementLoadStart();
-        getEntitlementProvider().playCatchup(program.channelId, program.programId, new EntitlementCallback(null, program.channelId, program.programId, onEntitlementRunnable, getErrorRunnable()));
+        }, mayNeedDetails ? new String[] { STAGE_ENTITLEMENT, STAGE_PROGRAM_DETAILS } : new String[] { STAGE_ENTITLEMENT });
+        startupGraph.start();
     }
 
-    private void playVod(final EmpAsset asset) {
+    private void playVod(final EmpAsset asset, final StartupGraph startupGraph) {
         final EntitledRunnable onEntitlementRunnable = new EntitledRunnable() {
             @Override
             public void run() {
+                startupGraph.complete(STAGE_ENTITLEMENT, this.entitlement);
+            }
+        };
+
+        startupGraph.addStage(STAGE_ENTITLEMENT, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                onEntitlementLoadStart();
+                if (completeFromPreload(graph)) {
+                    return;
+                }
+                requestEntitlement(EntitlementCache.Request.vod(asset.assetId), properties, onEntitlementRunnable, getErrorRunnable(startupGraph));
+            }
+        });
+        addManifestPrefetchStage(startupGraph);
+        startupGraph.addStage(STAGE_PLAYBACK, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                Entitlement entitlement = (Entitlement) graph.getResult(STAGE_ENTITLEMENT);
                 prepareBookmark(asset, entitlement);
                 preparePlayback(entitlement.assetId, entitlement);
             }
-        };
-        super.onEntitlementLoadStart();
-        getEntitlementProvider().playVod(asset.assetId, new EntitlementCallback(asset.assetId, null, null, onEntitlementRunnable, getErrorRunnable()));
+        }, STAGE_ENTITLEMENT);
+        startupGraph.start();
     }
 
-    private boolean playOffline(final EmpOfflineAsset offlineAsset) {
+    private boolean playOffline(final EmpOfflineAsset offlineAsset, final StartupGraph startupGraph) {
         // TODO: missing eventListeners.onEntitlementLoadStart();
         final EMPPlayer self = this;
         new RunnableThread(new Runnable() {
             @Override
             public void run() {
+                if (startupGraph.isCancelled()) {
+                    return;
+                }
                 final String manifestPath = offlineAsset.localMediaPath;
                 File manifestUrl = new File(manifestPath);
                 File manifestFolder = manifestUrl.getParentFile();
@@ -800,6 +1636,9 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
                 tech.load(self.entitlement.assetId, manifestPath, true);
                 context.runOnUiThread(new Runnable() {
                     public void run() {
+                        if (startupGraph.isCancelled() || tech == null) {
+                            return;
+                        }
                         tech.play(manifestPath);
                     }
                 });
@@ -808,6 +1647,76 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
         return true;
     }
 
+    /**
+     * Background warm-up state of a single playable
+     */
+    private static class Preload {
+        final String key;
+        final IPlayable playable;
+        final PlaybackProperties properties;
+        final long createdAtMs;
+        final long warmBufferMs;
+        volatile long expiresAtMs;
+        final CancellationToken cancellationToken;
+        volatile Entitlement entitlement;
+        volatile boolean failed;
+        private ITech tech;
+        private volatile boolean released;
+
+        Preload(String key, IPlayable playable, PlaybackProperties properties, long createdAtMs, long warmBufferMs) {
+            this.key = key;
+            this.playable = playable;
+            this.properties = properties;
+            this.createdAtMs = createdAtMs;
+            this.warmBufferMs = warmBufferMs;
+            this.expiresAtMs = createdAtMs + PRELOAD_MAX_AGE_MS;
+            this.cancellationToken = new CancellationToken();
+        }
+
+        boolean isUsable(long nowMs) {
+            return failed == false && released == false && nowMs < expiresAtMs;
+        }
+
+        synchronized boolean hasWarmTech() {
+            return tech instanceof IPreloadableTech && ((IPreloadableTech) tech).isPreloaded();
+        }
+
+        synchronized boolean attachTech(ITech tech) {
+            if (released) {
+                return false;
+            }
+            this.tech = tech;
+            return true;
+        }
+
+        synchronized ITech detachTech() {
+            ITech detached = this.tech;
+            this.tech = null;
+            this.released = true;
+            return detached;
+        }
+
+        void release() {
+            cancellationToken.cancel();
+            ITech detached = detachTech();
+            if (detached != null) {
+                detached.release();
+            }
+        }
+    }
+
+    /**
+     * Skips building a tech when the playback starts from a preloaded one (it is swapped in once the entitlement is known)
+     */
+    @Override
+    protected ITech buildTech() {
+        Preload preload = this.activePreload;
+        if (preload != null && preload.hasWarmTech()) {
+            return null;
+        }
+        return super.buildTech();
+    }
+
     public IEntitlementProvider getEntitlementProvider() {
         return entitlementProvider;
     }
@@ -815,4 +1724,43 @@ public class EMPPlayer extends Player implements IEntitledPlayer {
     public IMetadataProvider getMetadataProvider() {
         return metadataProvider;
     }
+
+    /**
+     * @return entitlement response cache in front of the entitlement provider
+     */
+    protected EntitlementCache getEntitlementCache() {
+        return EntitlementCache.getInstance(getEntitlementProvider());
+    }
+
+    /**
+     * Requests the entitlement of a new playback - cached entitlements carry the bookmark of the time they were fetched,
+     * so plays that resume from the bookmark always ask the backend
+     */
+    private void requestEntitlement(EntitlementCache.Request request, PlaybackProperties props, EntitledRunnable onEntitlement, ErrorRunnable onError) {
+        if (props != null && props.getPlayFrom() instanceof PlaybackProperties.PlayFrom.Bookmark) {
+            getEntitlementCache().fetch(request, onEntitlement, onError);
+        }
+        else {
+            getEntitlementCache().play(request, onEntitlement, onError);
+        }
+    }
+
+    /**
+     * @return EPG cache of the metadata provider, backed by the on-disk EPG snapshot once it is opened
+     */
+    protected EpgCache getEpgCache() {
+        EpgCache epgCache = EpgCache.getInstance(getMetadataProvider());
+        EpgSnapshotStore snapshotStore = getEpgSnapshotStore();
+        if (snapshotStore.isOpened()) {
+            epgCache.setSnapshotStore(snapshotStore);
+        }
+        return epgCache;
+    }
+
+    /**
+     * @return on-disk EPG snapshot of the process
+     */
+    protected EpgSnapshotStore getEpgSnapshotStore() {
+        return EpgSnapshotStore.getInstance(this.context);
+    }
 }
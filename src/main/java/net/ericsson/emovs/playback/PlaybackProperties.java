@@ -1,5 +1,7 @@
 package net.ericsson.emovs.playback;
 
+import net.ericsson.emovs.playback.services.RetryPolicy;
+
 import java.io.Serializable;
 
 /**
@@ -7,6 +9,7 @@ import java.io.Serializable;
  */
 public class PlaybackProperties implements Serializable {
     public final static PlaybackProperties DEFAULT = new PlaybackProperties();
+    public final static long DEFAULT_NEXT_PROGRAM_PREFETCH_LEAD_TIME_MS = 30000L;
 
     String preferredTextLanguage;
     String preferredAudioLanguage;
@@ -15,10 +18,16 @@ public class PlaybackProperties implements Serializable {
     boolean autoplay;
     PlayFromItem playFrom;
     DRMProperties drmProperties;
+    long nextProgramPrefetchLeadTimeMs;
+    Integer entitlementFuzzyMaxDelayMs;
+    RetryPolicy programServiceRetryPolicy;
+    boolean playerReuse;
 
     public PlaybackProperties() {
         this.nativeControls = true;
         this.autoplay = true;
+        this.nextProgramPrefetchLeadTimeMs = DEFAULT_NEXT_PROGRAM_PREFETCH_LEAD_TIME_MS;
+        this.programServiceRetryPolicy = RetryPolicy.DEFAULT;
     }
 
     /**
@@ -137,6 +146,75 @@ public class PlaybackProperties implements Serializable {
         return this;
     }
 
+    /**
+     * Gets how long before the end of a static catch-up program the next program is prefetched
+     */
+    public long getNextProgramPrefetchLeadTime() {
+        return nextProgramPrefetchLeadTimeMs;
+    }
+
+    /**
+     * Sets how long before the end of a static catch-up program the next program (EPG entry, entitlement and manifest) is prefetched
+     * @param leadTimeMs lead time in milliseconds (0 disables the prefetch)
+     * @return this
+     */
+    public PlaybackProperties withNextProgramPrefetchLeadTime(long leadTimeMs) {
+        this.nextProgramPrefetchLeadTimeMs = leadTimeMs;
+        return this;
+    }
+
+    /**
+     * Gets the max random wait period between a program change and the entitlement check of the next program
+     * (null if not set: ProgramService.FUZZY_ENTITLEMENT_MAX_DELAY applies)
+     */
+    public Integer getEntitlementFuzzyMaxDelay() {
+        return entitlementFuzzyMaxDelayMs;
+    }
+
+    /**
+     * Sets the max random wait period between a program change and the entitlement check of the next program (spreads the checks of many devices over time)
+     * @param delayMs max delay in milliseconds (0 disables the fuzzy pre-check, other values below 30s are raised to 30s)
+     * @return this
+     */
+    public PlaybackProperties withEntitlementFuzzyMaxDelay(int delayMs) {
+        this.entitlementFuzzyMaxDelayMs = delayMs;
+        return this;
+    }
+
+    /**
+     * Gets the backoff applied to program monitoring while the EPG/entitlement backend is failing
+     */
+    public RetryPolicy getProgramServiceRetryPolicy() {
+        return programServiceRetryPolicy;
+    }
+
+    /**
+     * Sets the backoff applied to program monitoring while the EPG/entitlement backend is failing
+     * @param retryPolicy retry policy
+     * @return this
+     */
+    public PlaybackProperties withProgramServiceRetryPolicy(RetryPolicy retryPolicy) {
+        this.programServiceRetryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * When set, the tech and its player (renderers, codecs and track selector) of the previous play are kept and re-prepared with the new stream
+     */
+    public boolean isPlayerReuse() {
+        return playerReuse;
+    }
+
+    /**
+     * Sets whether play() re-prepares the tech and player of the previous play instead of releasing them and building new ones (faster zapping)
+     * @param playerReuse true to reuse the player across play() calls
+     * @return this
+     */
+    public PlaybackProperties withPlayerReuse(boolean playerReuse) {
+        this.playerReuse = playerReuse;
+        return this;
+    }
+
     @Override
     public PlaybackProperties clone() throws CloneNotSupportedException {
         PlaybackProperties newProps = new PlaybackProperties();
@@ -147,6 +225,10 @@ public class PlaybackProperties implements Serializable {
         newProps.maxBitrate = this.maxBitrate;
         newProps.preferredAudioLanguage = this.getPreferredAudioLanguage();
         newProps.preferredTextLanguage = this.getPreferredTextLanguage();
+        newProps.nextProgramPrefetchLeadTimeMs = this.nextProgramPrefetchLeadTimeMs;
+        newProps.entitlementFuzzyMaxDelayMs = this.entitlementFuzzyMaxDelayMs;
+        newProps.programServiceRetryPolicy = this.programServiceRetryPolicy;
+        newProps.playerReuse = this.playerReuse;
         return newProps;
     }
 
@@ -6,7 +6,11 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
+import net.ericsson.emovs.playback.interfaces.IPlayheadSnapshotProvider;
+import net.ericsson.emovs.playback.interfaces.IReusableTech;
 import net.ericsson.emovs.playback.interfaces.ITech;
+import net.ericsson.emovs.playback.scheduling.PlayheadPublisher;
+import net.ericsson.emovs.playback.scheduling.PlayheadSnapshot;
 import net.ericsson.emovs.utilities.analytics.AnalyticsPlaybackConnector;
 import net.ericsson.emovs.utilities.interfaces.IMonotonicTimeService;
 import net.ericsson.emovs.utilities.interfaces.IPlayer;
@@ -17,7 +21,7 @@ import java.util.UUID;
 /**
  * Base class for a player. This class only handles basic playback flows.
  */
-public class Player extends PlaybackEventListenerAggregator implements IPlayer {
+public class Player extends PlaybackEventListenerAggregator implements IPlayer, IPlayheadSnapshotProvider, PlayheadPublisher.Source {
     public static long SAFETY_LIVE_DELAY = 10000L;
     protected AnalyticsPlaybackConnector analyticsConnector;
     protected IMonotonicTimeService monotonicTimeService;
@@ -27,6 +31,8 @@ public class Player extends PlaybackEventListenerAggregator implements IPlayer {
     protected TechFactory techFactory;
     protected ITech tech;
     protected UUID playbackUUID;
+    protected float playbackRate = 1.0f;
+    protected final PlayheadPublisher playheadPublisher = new PlayheadPublisher(this, PlayheadPublisher.DEFAULT_PUBLISH_INTERVAL_MS);
 
     /**
      * Constructor of a player instance - must be instanciated from a PlayerFactory or extended
@@ -86,14 +92,51 @@ public class Player extends PlaybackEventListenerAggregator implements IPlayer {
      * Release a player instance and its tech if instanciated
      */
     public void release() {
+        releaseTech();
+        this.playheadPublisher.stop();
+        super.clearListeners();
+    }
+
+    /**
+     * Releases the current tech but keeps listeners registered
+     */
+    protected void releaseTech() {
         if (this.tech != null) {
             if (this.tech.isPlaying()) {
-                this.stop();
+                this.tech.stop();
             }
             this.tech.release();
             this.tech = null;
         }
-        super.clearListeners();
+    }
+
+    /**
+     * @return new tech for the playback being initialized, or null if the tech is provided later (e.g. a preloaded tech)
+     */
+    protected ITech buildTech() {
+        return techFactory.build();
+    }
+
+    /**
+     * Stops the current tech and keeps it for the next play when player reuse is enabled (see PlaybackProperties.withPlayerReuse)
+     *
+     * @return false if the tech must be released
+     */
+    protected boolean recycleTech(PlaybackProperties properties) {
+        if (properties == null || properties.isPlayerReuse() == false || this.tech instanceof IReusableTech == false) {
+            return false;
+        }
+        return ((IReusableTech) this.tech).recycle();
+    }
+
+    /**
+     * Replaces the current tech by an already loaded one (e.g. a preloaded tech)
+     *
+     * @param newTech tech that takes over the playback
+     */
+    protected void swapTech(ITech newTech) {
+        releaseTech();
+        this.tech = newTech;
     }
 
     /**
@@ -335,6 +378,86 @@ public class Player extends PlaybackEventListenerAggregator implements IPlayer {
         }
     }
 
+    /**
+     * Called by the tech when the playback rate changes
+     *
+     * @param rate new playback rate (1.0 is normal speed)
+     */
+    public void onPlaybackRateChanged(float rate) {
+        this.playbackRate = rate;
+        this.playheadPublisher.publish();
+    }
+
+    /**
+     * @return latest playhead state published by the playback thread (safe to call from any thread)
+     */
+    @Override
+    public PlayheadSnapshot getPlayheadSnapshot() {
+        return this.playheadPublisher.getSnapshot();
+    }
+
+    @Override
+    public void addPlayheadConsumer() {
+        this.playheadPublisher.addConsumer();
+    }
+
+    @Override
+    public void removePlayheadConsumer() {
+        this.playheadPublisher.removeConsumer();
+    }
+
+    @Override
+    public void onPlaying() {
+        this.playheadPublisher.start();
+        super.onPlaying();
+    }
+
+    @Override
+    public void onPause() {
+        this.playheadPublisher.publish();
+        super.onPause();
+    }
+
+    @Override
+    public void onResume() {
+        this.playheadPublisher.publish();
+        super.onResume();
+    }
+
+    @Override
+    public void onSeek(long position) {
+        this.playheadPublisher.publish();
+        super.onSeek(position);
+    }
+
+    @Override
+    public void onStop() {
+        this.playheadPublisher.stop();
+        super.onStop();
+    }
+
+    @Override
+    public void onPlaybackEnd() {
+        this.playheadPublisher.stop();
+        super.onPlaybackEnd();
+    }
+
+    /**
+     * @return current playback rate (1.0 is normal speed)
+     */
+    public float getPlaybackRate() {
+        return this.playbackRate;
+    }
+
+    /**
+     * Seeks relative to the current playhead time
+     *
+     * @param deltaMs offset in milliseconds (negative to seek backwards)
+     */
+    public void seekBy(long deltaMs) {
+        seekToTime(getPlayheadTime() + deltaMs);
+    }
+
     /**
      * @return unix time in milliseconds of current playback position
      */
@@ -488,12 +611,18 @@ public class Player extends PlaybackEventListenerAggregator implements IPlayer {
     protected boolean init(PlaybackProperties properties) throws Exception {
         this.properties = properties;
         this.playbackUUID = null;
+        this.playbackRate = 1.0f;
 
         if (this.tech != null) {
-            this.release();
+            if (recycleTech(properties) == false) {
+                releaseTech();
+            }
+            super.clearListeners();
         }
 
-        this.tech = techFactory.build();
+        if (this.tech == null) {
+            this.tech = buildTech();
+        }
 
         super.onInit();
         return true;
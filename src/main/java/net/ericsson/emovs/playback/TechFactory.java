@@ -1,5 +1,9 @@
 package net.ericsson.emovs.playback;
 
+import android.app.Activity;
+
+import net.ericsson.emovs.playback.scheduling.CancellationToken;
+
 import net.ericsson.emovs.playback.interfaces.ITech;
 
 /**
@@ -15,4 +19,13 @@ public class TechFactory {
     public ITech build() {
         return null;  // stub
     }
+
+    /**
+     * Override this method to start fetching a manifest as soon as its URL is known, before the tech is built
+     * @param ctx activity that holds the player
+     * @param manifestUrl manifest/playlist url
+     * @param cancellationToken token that abandons the prefetch when the play request is superseded
+     */
+    public void prefetch(Activity ctx, String manifestUrl, CancellationToken cancellationToken) {
+    }
 }
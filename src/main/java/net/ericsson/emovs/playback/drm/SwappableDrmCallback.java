@@ -0,0 +1,53 @@
+package net.ericsson.emovs.playback.drm;
+
+import com.google.android.exoplayer2.drm.ExoMediaDrm;
+import com.google.android.exoplayer2.drm.MediaDrmCallback;
+
+import java.util.UUID;
+
+/**
+ * <p>
+ *     MediaDrmCallback whose license requests are forwarded to a delegate that can be replaced at any time.
+ * </p>
+ * <p>
+ *     The DRM session manager (and the MediaDrm instance behind it) is built once per player, while the license URL
+ *     and play token change with every entitlement: swapping the delegate lets the next key request use the new token
+ *     without rebuilding the player.
+ * </p>
+ */
+public class SwappableDrmCallback implements MediaDrmCallback {
+    private volatile MediaDrmCallback delegate;
+
+    /**
+     * @param delegate callback that executes the license requests
+     */
+    public SwappableDrmCallback(MediaDrmCallback delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Replaces the callback used by the next provision and key requests
+     *
+     * @param delegate callback that executes the license requests
+     */
+    public void setDelegate(MediaDrmCallback delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return callback that currently executes the license requests
+     */
+    public MediaDrmCallback getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public byte[] executeProvisionRequest(UUID uuid, ExoMediaDrm.ProvisionRequest request) throws Exception {
+        return delegate.executeProvisionRequest(uuid, request);
+    }
+
+    @Override
+    public byte[] executeKeyRequest(UUID uuid, ExoMediaDrm.KeyRequest request) throws Exception {
+        return delegate.executeKeyRequest(uuid, request);
+    }
+}
@@ -0,0 +1,25 @@
+package net.ericsson.emovs.playback.interfaces;
+
+import net.ericsson.emovs.playback.scheduling.PlayheadSnapshot;
+
+
+/**
+ * Optional interface for players that publish their playhead state for background consumers
+ */
+public interface IPlayheadSnapshotProvider {
+    /**
+     * @return latest published playhead state, or null if not available (must be safe to call from any thread)
+     */
+    PlayheadSnapshot getPlayheadSnapshot();
+
+    /**
+     * Registers a consumer of the snapshots: between state changes the playhead is only republished periodically while
+     * consumers are registered (must be safe to call from any thread)
+     */
+    void addPlayheadConsumer();
+
+    /**
+     * Unregisters a consumer registered with addPlayheadConsumer (must be safe to call from any thread)
+     */
+    void removePlayheadConsumer();
+}
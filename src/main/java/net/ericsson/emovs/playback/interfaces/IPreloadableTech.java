@@ -0,0 +1,40 @@
+package net.ericsson.emovs.playback.interfaces;
+
+import android.app.Activity;
+
+import net.ericsson.emovs.playback.PlaybackProperties;
+import net.ericsson.emovs.playback.Player;
+
+
+/**
+ * Optional interface for techs that can load and buffer a stream in the background, without rendering it or
+ * firing playback events, and later be swapped in as the visible tech of a player
+ */
+public interface IPreloadableTech {
+    /**
+     * Loads a stream in the background: manifest, license and the first segments up to warmBufferMs
+     *
+     * @param parent player that will own the tech once activated
+     * @param ctx activity that holds the player
+     * @param playToken play token from the entitlement
+     * @param properties playback properties used for the load (start position, DRM, track preferences)
+     * @param mediaId media identifier
+     * @param manifestUrl manifest/playlist url
+     * @param warmBufferMs maximum media duration buffered while preloading
+     */
+    void preload(Player parent, Activity ctx, String playToken, PlaybackProperties properties, String mediaId, String manifestUrl, long warmBufferMs);
+
+    /**
+     * @return true if a preload was started and has not failed
+     */
+    boolean isPreloaded();
+
+    /**
+     * Attaches a preloaded tech to the player view and starts firing playback events
+     *
+     * @param parent player that owns the tech
+     * @param ctx activity that holds the player
+     * @param properties playback properties of the play request
+     */
+    void activate(Player parent, Activity ctx, PlaybackProperties properties);
+}
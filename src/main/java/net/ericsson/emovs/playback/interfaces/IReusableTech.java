@@ -0,0 +1,15 @@
+package net.ericsson.emovs.playback.interfaces;
+
+
+/**
+ * Optional interface for techs that can be loaded again with a new stream, keeping the player they built (renderers,
+ * codecs, track selector) instead of being released and built from scratch on every play
+ */
+public interface IReusableTech {
+    /**
+     * Stops the stream being played and keeps the player for the next init/load
+     *
+     * @return false if the tech cannot be reused and must be released
+     */
+    boolean recycle();
+}
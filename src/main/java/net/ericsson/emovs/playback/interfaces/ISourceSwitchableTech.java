@@ -0,0 +1,21 @@
+package net.ericsson.emovs.playback.interfaces;
+
+import net.ericsson.emovs.playback.PlaybackProperties;
+
+
+/**
+ * Optional interface for techs that can replace the stream being played on the running player, keeping its surface
+ * and DRM session manager, instead of being torn down and loaded again
+ */
+public interface ISourceSwitchableTech {
+    /**
+     * Replaces the stream being played (must be called from the UI thread)
+     *
+     * @param playToken play token from the entitlement of the new stream
+     * @param properties playback properties of the new stream (start position, DRM)
+     * @param mediaId media identifier of the new stream
+     * @param manifestUrl manifest/playlist url of the new stream
+     * @return false if the stream cannot be switched in place and must be played from scratch
+     */
+    boolean switchSource(String playToken, PlaybackProperties properties, String mediaId, String manifestUrl);
+}
@@ -172,7 +172,7 @@ public interface ITech {
     long getTimeshiftDelay();
 
     /**
-     * Sets timeshift delay property in manifest URL and reloads stream
+     * Sets timeshift delay of the stream - seeks within the seekable window when possible, otherwise reloads the stream
      *
      * @return
      */
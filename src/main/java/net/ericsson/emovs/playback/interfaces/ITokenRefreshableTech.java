@@ -0,0 +1,16 @@
+package net.ericsson.emovs.playback.interfaces;
+
+
+/**
+ * Optional interface for techs that can take a renewed play token while playing, so that the next license requests
+ * of the running stream are authorized with it
+ */
+public interface ITokenRefreshableTech {
+    /**
+     * Replaces the play token of the stream being played (must be called from the UI thread)
+     *
+     * @param playToken renewed play token of the stream being played
+     * @return false if the token cannot be replaced without loading the stream again
+     */
+    boolean refreshPlayToken(String playToken);
+}
@@ -0,0 +1,71 @@
+package net.ericsson.emovs.playback.scheduling;
+
+import java.util.ArrayList;
+
+/**
+ * <p>
+ *     Cancellation signal shared by all the asynchronous work of a playback session.
+ * </p>
+ * <p>
+ *     Work that can be polled checks {@link #isCancelled()}; work that must be actively aborted (e.g. a download)
+ *     registers a listener with {@link #onCancel(Runnable)}.
+ * </p>
+ */
+public class CancellationToken {
+    private final ArrayList<Runnable> listeners;
+    private boolean cancelled;
+
+    public CancellationToken() {
+        this.listeners = new ArrayList<>();
+        this.cancelled = false;
+    }
+
+    /**
+     * Cancels the token and runs the registered listeners (only the first call has effect)
+     */
+    public void cancel() {
+        ArrayList<Runnable> toRun;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            toRun = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+
+    /**
+     * @return true if the token was cancelled
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Registers a listener to run when the token is cancelled - runs immediately if it is already cancelled
+     *
+     * @param listener work to be done on cancellation
+     */
+    public void onCancel(Runnable listener) {
+        synchronized (this) {
+            if (cancelled == false) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Unregisters a cancellation listener
+     *
+     * @param listener listener previously passed to onCancel()
+     */
+    public synchronized void removeOnCancel(Runnable listener) {
+        listeners.remove(listener);
+    }
+}
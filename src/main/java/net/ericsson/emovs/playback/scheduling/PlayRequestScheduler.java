@@ -0,0 +1,66 @@
+package net.ericsson.emovs.playback.scheduling;
+
+/**
+ * <p>
+ *     Latest-wins scheduler of play requests.
+ * </p>
+ * <p>
+ *     Every new request cancels the startup graph of the previous one, so its pending entitlement, EPG and manifest
+ *     work is abandoned and its callbacks are ignored. The latest request always wins, no matter how fast requests come.
+ * </p>
+ */
+public class PlayRequestScheduler {
+    private StartupGraph current;
+
+    /**
+     * Cancels the ongoing request (if any) and creates the startup graph of a new one
+     *
+     * @return startup graph of the new request
+     */
+    public StartupGraph newRequest() {
+        StartupGraph previous;
+        StartupGraph next = new StartupGraph();
+        synchronized (this) {
+            previous = this.current;
+            this.current = next;
+        }
+        if (previous != null) {
+            previous.cancel();
+        }
+        return next;
+    }
+
+    /**
+     * @param graph startup graph of a request
+     * @return true if the request was not superseded nor cancelled
+     */
+    public synchronized boolean isLatest(StartupGraph graph) {
+        return graph != null && graph == this.current && graph.isCancelled() == false;
+    }
+
+    /**
+     * @return cancellation token of the ongoing request - an already cancelled token if there is none
+     */
+    public synchronized CancellationToken getCancellationToken() {
+        if (this.current == null) {
+            CancellationToken cancelled = new CancellationToken();
+            cancelled.cancel();
+            return cancelled;
+        }
+        return this.current.getCancellationToken();
+    }
+
+    /**
+     * Cancels the ongoing request (if any)
+     */
+    public void cancel() {
+        StartupGraph previous;
+        synchronized (this) {
+            previous = this.current;
+            this.current = null;
+        }
+        if (previous != null) {
+            previous.cancel();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.ericsson.emovs.playback.scheduling;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ *     Publishes {@link PlayheadSnapshot}s of a player from the playback (main) thread.
+ * </p>
+ * <p>
+ *     Background consumers (e.g. ProgramService checks) read the latest snapshot with {@link #getSnapshot()} instead of
+ *     calling into the tech from their own thread: the read is a single volatile load, it never blocks and never
+ *     contends with the playback thread. State changes (play, pause, seek, rate change) should call {@link #publish()}.
+ * </p>
+ * <p>
+ *     Between state changes the playhead is republished at a fixed cadence only while the playback runs and at least
+ *     one consumer is registered ({@link #addConsumer()}), so playbacks nobody monitors do not wake the main looper.
+ * </p>
+ */
+public class PlayheadPublisher {
+    public static final long DEFAULT_PUBLISH_INTERVAL_MS = 250L;
+
+    /**
+     * Player state read on the playback thread
+     */
+    public interface Source {
+        long getPlayheadTime();
+
+        long getPlayheadPosition();
+
+        long[] getSeekTimeRange();
+
+        boolean isPlaying();
+
+        boolean isPaused();
+
+        float getPlaybackRate();
+
+        long getServerTime();
+    }
+
+    private final Source source;
+    private final long intervalMs;
+    private final Handler handler;
+    private final AtomicReference<PlayheadSnapshot> snapshot = new AtomicReference<>();
+    private final AtomicInteger consumers = new AtomicInteger(0);
+    private boolean running;
+    private boolean ticking;
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            publishNow();
+            if (ticking) {
+                handler.postDelayed(this, intervalMs);
+            }
+        }
+    };
+    private final Runnable updateTickerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateTicker();
+        }
+    };
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishNow();
+        }
+    };
+
+    /**
+     * @param source player whose state is published
+     * @param intervalMs publishing cadence in milliseconds
+     */
+    public PlayheadPublisher(Source source, long intervalMs) {
+        this.source = source;
+        this.intervalMs = intervalMs;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Starts the playback: publishes immediately, then at the configured cadence while consumers are registered
+     */
+    public void start() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    start();
+                }
+            });
+            return;
+        }
+        this.running = true;
+        publishNow();
+        updateTicker();
+    }
+
+    /**
+     * Stops the playback: stops the periodic publishing and publishes the final state (e.g. not playing after a stop)
+     */
+    public void stop() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            this.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            });
+            return;
+        }
+        this.running = false;
+        updateTicker();
+        publishNow();
+    }
+
+    /**
+     * Registers a consumer that needs fresh snapshots between state changes (can be called from any thread)
+     */
+    public void addConsumer() {
+        if (this.consumers.incrementAndGet() == 1) {
+            this.handler.post(this.updateTickerRunnable);
+        }
+    }
+
+    /**
+     * Unregisters a consumer registered with {@link #addConsumer()} (can be called from any thread)
+     */
+    public void removeConsumer() {
+        int remaining = this.consumers.decrementAndGet();
+        if (remaining < 0) {
+            this.consumers.compareAndSet(remaining, 0);
+        }
+        if (remaining <= 0) {
+            this.handler.post(this.updateTickerRunnable);
+        }
+    }
+
+    /**
+     * Publishes the current state out of cadence (can be called from any thread)
+     */
+    public void publish() {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            publishNow();
+        }
+        else {
+            this.handler.post(this.publishRunnable);
+        }
+    }
+
+    /**
+     * @return latest published snapshot, or null if nothing was published yet (safe from any thread)
+     */
+    public PlayheadSnapshot getSnapshot() {
+        return this.snapshot.get();
+    }
+
+    /**
+     * @return true while publishing periodically
+     */
+    public boolean isRunning() {
+        return this.ticking;
+    }
+
+    private void updateTicker() {
+        boolean shouldTick = this.running && this.consumers.get() > 0;
+        if (shouldTick == this.ticking) {
+            return;
+        }
+        this.ticking = shouldTick;
+        this.handler.removeCallbacks(this.tick);
+        if (shouldTick) {
+            this.handler.postDelayed(this.tick, this.intervalMs);
+        }
+    }
+
+    private void publishNow() {
+        this.snapshot.set(new PlayheadSnapshot(
+                this.source.getPlayheadTime(),
+                this.source.getPlayheadPosition(),
+                this.source.getSeekTimeRange(),
+                this.source.isPlaying(),
+                this.source.isPaused(),
+                this.source.getPlaybackRate(),
+                this.source.getServerTime()));
+    }
+}
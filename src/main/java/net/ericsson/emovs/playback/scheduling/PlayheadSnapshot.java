@@ -0,0 +1,67 @@
+package net.ericsson.emovs.playback.scheduling;
+
+/**
+ * <p>
+ *     Immutable view of the playhead and playback state, captured on the playback thread.
+ * </p>
+ * <p>
+ *     Snapshots are published by a {@link PlayheadPublisher} and can be read from any thread: the fields never change
+ *     after construction, so readers need no lock and never touch the tech (ExoPlayer is not thread-safe).
+ * </p>
+ */
+public final class PlayheadSnapshot {
+    public final long playheadTime;
+    public final long playheadPosition;
+    public final boolean isPlaying;
+    public final boolean isPaused;
+    public final float playbackRate;
+    public final long capturedAt;
+    private final long[] seekTimeRange;
+
+    /**
+     * @param playheadTime unix time of the playback position
+     * @param playheadPosition offset of the playback position
+     * @param seekTimeRange seekable unix times [lowerBound, upperBound] (can be null)
+     * @param isPlaying true if the media is playing or paused
+     * @param isPaused true if the playback is paused
+     * @param playbackRate playback rate (1.0 is normal speed)
+     * @param capturedAt server time at which the state was read
+     */
+    public PlayheadSnapshot(long playheadTime, long playheadPosition, long[] seekTimeRange, boolean isPlaying, boolean isPaused, float playbackRate, long capturedAt) {
+        this.playheadTime = playheadTime;
+        this.playheadPosition = playheadPosition;
+        this.seekTimeRange = seekTimeRange == null ? null : seekTimeRange.clone();
+        this.isPlaying = isPlaying;
+        this.isPaused = isPaused;
+        this.playbackRate = playbackRate;
+        this.capturedAt = capturedAt;
+    }
+
+    /**
+     * @return copy of the seekable unix times [lowerBound, upperBound], or null if unknown
+     */
+    public long[] getSeekTimeRange() {
+        return this.seekTimeRange == null ? null : this.seekTimeRange.clone();
+    }
+
+    /**
+     * @return true if the playhead moves (playing, not paused, positive rate)
+     */
+    public boolean isAdvancing() {
+        return this.isPlaying && this.isPaused == false && this.playbackRate > 0;
+    }
+
+    /**
+     * Estimates the playhead time at a later instant, assuming the playback kept its rate since the capture
+     *
+     * @param serverTime current server time
+     * @return estimated unix time of the playback position
+     */
+    public long getPlayheadTimeAt(long serverTime) {
+        long elapsed = serverTime - this.capturedAt;
+        if (elapsed <= 0 || isAdvancing() == false) {
+            return this.playheadTime;
+        }
+        return this.playheadTime + (long) (elapsed * this.playbackRate);
+    }
+}
@@ -0,0 +1,171 @@
+package net.ericsson.emovs.playback.scheduling;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * <p>
+ *     Coalesces bursts of seek intents into a single seek.
+ * </p>
+ * <p>
+ *     Absolute intents (position or unix time) replace the pending target, relative intents (e.g. repeated +30s presses)
+ *     are added to it. The pending target is only handed to the {@link Target} once no new intent arrived during the
+ *     coalescing window, so a burst of presses costs one entitlement check and one tech seek for the final position.
+ * </p>
+ */
+public class SeekScheduler {
+    public static final long DEFAULT_COALESCING_WINDOW_MS = 300L;
+
+    private static final int MODE_NONE = 0;
+    private static final int MODE_POSITION = 1;
+    private static final int MODE_TIME = 2;
+
+    /**
+     * Receiver of the coalesced seeks
+     */
+    public interface Target {
+        /**
+         * @return current playhead time - base of relative intents when no seek is pending
+         */
+        long getPlayheadTime();
+
+        /**
+         * Performs a seek to a stream offset
+         *
+         * @param positionMs offset in milliseconds
+         */
+        void performSeekTo(long positionMs);
+
+        /**
+         * Performs a seek to a unix time
+         *
+         * @param unixTimeMs unix time in milliseconds
+         */
+        void performSeekToTime(long unixTimeMs);
+    }
+
+    private final Target target;
+    private final long windowMs;
+    private Handler handler;
+    private int pendingMode;
+    private long pendingValue;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param target receiver of the coalesced seeks
+     * @param windowMs time without new intents after which the pending seek is performed (0 performs every intent immediately)
+     */
+    public SeekScheduler(Target target, long windowMs) {
+        this.target = target;
+        this.windowMs = windowMs;
+        this.pendingMode = MODE_NONE;
+    }
+
+    /**
+     * Requests a seek to a stream offset, replacing any pending intent
+     *
+     * @param positionMs offset in milliseconds
+     */
+    public void seekTo(long positionMs) {
+        synchronized (this) {
+            this.pendingMode = MODE_POSITION;
+            this.pendingValue = positionMs;
+        }
+        schedule();
+    }
+
+    /**
+     * Requests a seek to a unix time, replacing any pending intent
+     *
+     * @param unixTimeMs unix time in milliseconds
+     */
+    public void seekToTime(long unixTimeMs) {
+        synchronized (this) {
+            this.pendingMode = MODE_TIME;
+            this.pendingValue = unixTimeMs;
+        }
+        schedule();
+    }
+
+    /**
+     * Requests a seek relative to the pending target, or to the playhead time if no seek is pending
+     *
+     * @param deltaMs offset in milliseconds (negative to seek backwards)
+     */
+    public void seekBy(long deltaMs) {
+        synchronized (this) {
+            if (this.pendingMode == MODE_NONE) {
+                this.pendingMode = MODE_TIME;
+                this.pendingValue = target.getPlayheadTime();
+            }
+            this.pendingValue += deltaMs;
+        }
+        schedule();
+    }
+
+    /**
+     * @return true if a seek is waiting for the coalescing window to elapse
+     */
+    public synchronized boolean hasPendingSeek() {
+        return this.pendingMode != MODE_NONE;
+    }
+
+    /**
+     * Drops the pending seek (if any)
+     */
+    public void cancel() {
+        synchronized (this) {
+            this.pendingMode = MODE_NONE;
+        }
+        removeScheduledFlush();
+    }
+
+    /**
+     * Performs the pending seek right away (if any)
+     */
+    public void flush() {
+        int mode;
+        long value;
+        synchronized (this) {
+            mode = this.pendingMode;
+            value = this.pendingValue;
+            this.pendingMode = MODE_NONE;
+        }
+        removeScheduledFlush();
+        if (mode == MODE_POSITION) {
+            target.performSeekTo(value);
+        }
+        else if (mode == MODE_TIME) {
+            target.performSeekToTime(value);
+        }
+    }
+
+    private synchronized void removeScheduledFlush() {
+        if (this.handler != null) {
+            this.handler.removeCallbacks(flushRunnable);
+        }
+    }
+
+    private void schedule() {
+        if (this.windowMs <= 0) {
+            flush();
+            return;
+        }
+        Handler handler = getHandler();
+        handler.removeCallbacks(flushRunnable);
+        handler.postDelayed(flushRunnable, this.windowMs);
+    }
+
+    private synchronized Handler getHandler() {
+        if (this.handler == null) {
+            this.handler = new Handler(Looper.getMainLooper());
+        }
+        return this.handler;
+    }
+}
@@ -0,0 +1,200 @@
+package net.ericsson.emovs.playback.scheduling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>
+ *     Runs the stages of a playback startup as a dependency graph instead of a serial callback chain.
+ * </p>
+ * <p>
+ *     A stage is dispatched as soon as all the stages it depends on are completed, so independent stages
+ *     (e.g. entitlement request and EPG lookup) run concurrently. Stages are usually asynchronous: they start
+ *     their request in {@link Stage#run(StartupGraph)} and call {@link #complete(String, Object)} from the callback.
+ * </p>
+ * <p>
+ *     Once the graph's cancellation token is cancelled no further stage is dispatched and completions are ignored.
+ * </p>
+ */
+public class StartupGraph {
+    /**
+     * A single unit of startup work
+     */
+    public interface Stage {
+        /**
+         * Starts the stage - implementations must call complete() on the graph when done
+         *
+         * @param graph graph that owns the stage
+         */
+        void run(StartupGraph graph);
+    }
+
+    private final LinkedHashMap<String, Node> nodes;
+    private final HashMap<String, Object> results;
+    private final CancellationToken cancellationToken;
+    private boolean started;
+
+    public StartupGraph() {
+        this(new CancellationToken());
+    }
+
+    /**
+     * @param cancellationToken token that cancels the graph
+     */
+    public StartupGraph(CancellationToken cancellationToken) {
+        this.nodes = new LinkedHashMap<>();
+        this.results = new HashMap<>();
+        this.cancellationToken = cancellationToken;
+        this.started = false;
+    }
+
+    /**
+     * @return token that cancels the graph - stages should hand it to their asynchronous work
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * Cancels the graph: no further stage is dispatched
+     */
+    public void cancel() {
+        cancellationToken.cancel();
+    }
+
+    /**
+     * @return true if the graph was cancelled
+     */
+    public boolean isCancelled() {
+        return cancellationToken.isCancelled();
+    }
+
+    /**
+     * Registers a stage in the graph (must be called before start)
+     *
+     * @param name unique name of the stage
+     * @param stage work to be done
+     * @param dependencies names of the stages that must complete before this one runs
+     * @return this
+     */
+    public synchronized StartupGraph addStage(String name, Stage stage, String... dependencies) {
+        if (started) {
+            throw new IllegalStateException("Stages cannot be added after the graph has started.");
+        }
+        Node node = new Node(name, stage);
+        if (dependencies != null) {
+            for (String dependency : dependencies) {
+                node.pending.add(dependency);
+            }
+        }
+        nodes.put(name, node);
+        return this;
+    }
+
+    /**
+     * Dispatches all the stages without dependencies
+     */
+    public void start() {
+        ArrayList<Node> ready;
+        synchronized (this) {
+            if (started || isCancelled()) {
+                return;
+            }
+            for (Node node : nodes.values()) {
+                for (String dependency : node.pending) {
+                    if (nodes.containsKey(dependency) == false) {
+                        throw new IllegalStateException("Stage " + node.name + " depends on unknown stage " + dependency);
+                    }
+                }
+            }
+            started = true;
+            ready = collectReady();
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * Marks a stage as completed without a result
+     *
+     * @param name name of the stage
+     */
+    public void complete(String name) {
+        complete(name, null);
+    }
+
+    /**
+     * Marks a stage as completed and dispatches the stages that became ready
+     *
+     * @param name name of the stage
+     * @param result outcome of the stage that can be read by dependent stages with getResult()
+     */
+    public void complete(String name, Object result) {
+        ArrayList<Node> ready;
+        synchronized (this) {
+            Node completed = nodes.get(name);
+            if (completed == null || completed.done || isCancelled()) {
+                return;
+            }
+            completed.done = true;
+            results.put(name, result);
+            for (Node node : nodes.values()) {
+                node.pending.remove(name);
+            }
+            ready = collectReady();
+        }
+        dispatch(ready);
+    }
+
+    /**
+     * @param name name of the stage
+     * @return true if the stage has completed
+     */
+    public synchronized boolean isCompleted(String name) {
+        Node node = nodes.get(name);
+        return node != null && node.done;
+    }
+
+    /**
+     * @param name name of the stage
+     * @return the result passed when the stage completed (null if none or not completed)
+     */
+    public synchronized Object getResult(String name) {
+        return results.get(name);
+    }
+
+    private ArrayList<Node> collectReady() {
+        ArrayList<Node> ready = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node.dispatched == false && node.pending.isEmpty()) {
+                node.dispatched = true;
+                ready.add(node);
+            }
+        }
+        return ready;
+    }
+
+    private void dispatch(ArrayList<Node> ready) {
+        for (Node node : ready) {
+            if (isCancelled()) {
+                return;
+            }
+            node.stage.run(this);
+        }
+    }
+
+    private static class Node {
+        final String name;
+        final Stage stage;
+        final HashSet<String> pending;
+        boolean dispatched;
+        boolean done;
+
+        Node(String name, Stage stage) {
+            this.name = name;
+            this.stage = stage;
+            this.pending = new HashSet<>();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package net.ericsson.emovs.playback.services;
+
+/**
+ * <p>
+ *     Circuit breaker for backend requests.
+ * </p>
+ * <p>
+ *     After failureThreshold consecutive failures the circuit opens and requests are refused for openDurationMs. Then a
+ *     single trial request is let through (half-open): success closes the circuit, failure opens it again.
+ * </p>
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationMs;
+    private State state;
+    private int failures;
+    private long openedAtMs;
+    private long trialStartedAtMs;
+
+    /**
+     * @param failureThreshold consecutive failures that open the circuit
+     * @param openDurationMs time the circuit stays open before a trial request is allowed
+     */
+    public CircuitBreaker(int failureThreshold, long openDurationMs) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDurationMs = Math.max(0, openDurationMs);
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * @return true if a request can be sent
+     */
+    public synchronized boolean allowRequest() {
+        long nowMs = currentTime();
+        switch (this.state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (nowMs - this.openedAtMs < this.openDurationMs) {
+                    return false;
+                }
+                this.state = State.HALF_OPEN;
+                this.trialStartedAtMs = nowMs;
+                return true;
+            case HALF_OPEN:
+            default:
+                // Trial outcome never reported (request dropped): allow another one
+                if (nowMs - this.trialStartedAtMs >= this.openDurationMs) {
+                    this.trialStartedAtMs = nowMs;
+                    return true;
+                }
+                return false;
+        }
+    }
+
+    /**
+     * Reports that a request succeeded
+     */
+    public synchronized void onSuccess() {
+        this.state = State.CLOSED;
+        this.failures = 0;
+    }
+
+    /**
+     * Reports that a request failed
+     */
+    public synchronized void onFailure() {
+        this.failures++;
+        if (this.state == State.HALF_OPEN || this.failures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAtMs = currentTime();
+        }
+    }
+
+    public synchronized State getState() {
+        return this.state;
+    }
+
+    protected long currentTime() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,311 @@
+package net.ericsson.emovs.playback.services;
+
+import android.util.Base64;
+
+import net.ericsson.emovs.exposure.clients.exposure.ExposureClient;
+import net.ericsson.emovs.utilities.entitlements.EntitledRunnable;
+import net.ericsson.emovs.utilities.entitlements.Entitlement;
+import net.ericsson.emovs.utilities.entitlements.EntitlementCallback;
+import net.ericsson.emovs.utilities.entitlements.IEntitlementProvider;
+import net.ericsson.emovs.utilities.errors.ErrorCodes;
+import net.ericsson.emovs.utilities.errors.ErrorRunnable;
+
+import org.json.JSONObject;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ *     Cache of playVod/playLive/playCatchup responses, in front of an entitlement provider (one cache per provider).
+ * </p>
+ * <p>
+ *     Entitlements fetched ahead of a playback (the background refreshes of the session being played, see
+ *     EntitlementKeeper) are kept so that returning to that asset, channel or program is answered without paying the
+ *     entitlement latency again. Entries are keyed by asset, channel or program and expire EXPIRY_MARGIN_MS before the
+ *     play token does (exp claim of the JWT play token), and never live longer than MAX_TTL_MS. Entitlements whose play
+ *     token has no readable expiry are not cached.
+ * </p>
+ * <p>
+ *     An entitlement starts one playback session (playSessionId): entries are taken out of the cache by the play they
+ *     answer, and the responses of play requests are not cached. Nothing is refreshed for content that is not being
+ *     watched, missing or expired entries are fetched when they are played. Entries carry the bookmark of the time they
+ *     were fetched, plays that resume from the bookmark should use {@link #fetch(Request, EntitledRunnable, ErrorRunnable)}.
+ * </p>
+ * <p>
+ *     Entries belong to the user session they were fetched in (session token of the exposure client): when the session
+ *     token changes every entry is dropped, and responses of requests sent in the previous session are not cached.
+ * </p>
+ */
+public class EntitlementCache {
+    public static final long MAX_TTL_MS = 30 * 60 * 1000L;
+    public static final long EXPIRY_MARGIN_MS = 60 * 1000L;
+
+    private static final int TYPE_VOD = 0;
+    private static final int TYPE_LIVE = 1;
+    private static final int TYPE_CATCHUP = 2;
+
+    private static final WeakHashMap<IEntitlementProvider, EntitlementCache> instances = new WeakHashMap<>();
+
+    // Weak: the provider is the key of the instances map
+    private final WeakReference<IEntitlementProvider> provider;
+    private final HashMap<String, Entry> entries;
+    private Object sessionToken;
+
+    /**
+     * Entitlement request: playVod(assetId), playLive(channelId) or playCatchup(channelId, programId)
+     */
+    public static final class Request {
+        final int type;
+        final String assetId;
+        final String channelId;
+        final String programId;
+        final String key;
+
+        private Request(int type, String assetId, String channelId, String programId, String key) {
+            this.type = type;
+            this.assetId = assetId;
+            this.channelId = channelId;
+            this.programId = programId;
+            this.key = key;
+        }
+
+        public static Request vod(String assetId) {
+            return new Request(TYPE_VOD, assetId, null, null, "asset:" + assetId);
+        }
+
+        public static Request live(String channelId) {
+            return new Request(TYPE_LIVE, null, channelId, null, "channel:" + channelId);
+        }
+
+        public static Request catchup(String channelId, String programId) {
+            return new Request(TYPE_CATCHUP, null, channelId, programId, "program:" + channelId + ":" + programId);
+        }
+
+        public String getKey() {
+            return this.key;
+        }
+    }
+
+    private static class Entry {
+        final Entitlement entitlement;
+        final long expiresAtMs;
+
+        Entry(Entitlement entitlement, long expiresAtMs) {
+            this.entitlement = entitlement;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    /**
+     * @param provider entitlement provider of the user session
+     * @return entitlement cache of the provider
+     */
+    public static synchronized EntitlementCache getInstance(IEntitlementProvider provider) {
+        EntitlementCache cache = instances.get(provider);
+        if (cache == null) {
+            cache = new EntitlementCache(provider);
+            instances.put(provider, cache);
+        }
+        return cache;
+    }
+
+    protected EntitlementCache(IEntitlementProvider provider) {
+        this.provider = new WeakReference<>(provider);
+        this.entries = new HashMap<>();
+    }
+
+    /**
+     * Requests the entitlement of a new playback, taking it from the cache when a valid entitlement is known
+     *
+     * @param request entitlement request
+     * @param onEntitlement called with the entitlement
+     * @param onError called if the request failed
+     */
+    public void play(final Request request, EntitledRunnable onEntitlement, final ErrorRunnable onError) {
+        Entitlement cached = null;
+        synchronized (this) {
+            checkSession();
+            Entry entry = this.entries.remove(request.key);
+            if (entry != null && entry.expiresAtMs > currentTime()) {
+                cached = entry.entitlement;
+            }
+        }
+        if (cached != null) {
+            new EntitlementCallback(request.assetId, request.channelId, request.programId, onEntitlement, onError).onEntitlement(cached);
+            return;
+        }
+        fetch(request, onEntitlement, onError);
+    }
+
+    /**
+     * Requests the entitlement of a new playback from the provider, bypassing the cache
+     *
+     * @param request entitlement request
+     * @param onEntitlement called with the entitlement
+     * @param onError called if the request failed
+     */
+    public void fetch(Request request, EntitledRunnable onEntitlement, ErrorRunnable onError) {
+        IEntitlementProvider provider = this.provider.get();
+        if (provider == null) {
+            if (onError != null) {
+                onError.run(ErrorCodes.GENERIC_PLAYBACK_FAILED, "ENTITLEMENT_PROVIDER_RELEASED");
+            }
+            return;
+        }
+        EntitlementCallback callback = new EntitlementCallback(request.assetId, request.channelId, request.programId, onEntitlement, onError);
+        if (request.type == TYPE_VOD) {
+            provider.playVod(request.assetId, callback);
+        }
+        else if (request.type == TYPE_LIVE) {
+            provider.playLive(request.channelId, callback);
+        }
+        else {
+            provider.playCatchup(request.channelId, request.programId, callback);
+        }
+    }
+
+    /**
+     * Requests a new entitlement from the provider (bypassing the cache) and caches it for the next playback
+     *
+     * @param request entitlement request
+     * @param onEntitlement called with the new entitlement (can be null)
+     * @param onError called if the request failed (can be null)
+     */
+    public void refresh(final Request request, final EntitledRunnable onEntitlement, final ErrorRunnable onError) {
+        final Object requestSession;
+        synchronized (this) {
+            requestSession = checkSession();
+        }
+        fetch(request, new EntitledRunnable() {
+            @Override
+            public void run() {
+                store(request, requestSession, this.entitlement);
+                if (onEntitlement != null) {
+                    new EntitlementCallback(request.assetId, request.channelId, request.programId, onEntitlement, onError).onEntitlement(this.entitlement);
+                }
+            }
+        }, new ErrorRunnable() {
+            @Override
+            public void run(int errorCode, String errorMessage) {
+                if (onError != null) {
+                    onError.run(errorCode, errorMessage);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the cached entitlement of a request (e.g. after the backend rejected its play token)
+     *
+     * @param request entitlement request
+     */
+    public synchronized void invalidate(Request request) {
+        this.entries.remove(request.key);
+    }
+
+    /**
+     * Drops every cached entitlement
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+    }
+
+    /**
+     * @param request entitlement request
+     * @return true if a valid entitlement is cached for the request
+     */
+    public synchronized boolean contains(Request request) {
+        checkSession();
+        Entry entry = this.entries.get(request.key);
+        return entry != null && entry.expiresAtMs > currentTime();
+    }
+
+    /**
+     * Reads the expiry of a JWT play token (exp claim)
+     *
+     * @param entitlement entitlement to read
+     * @return expiry time in unix milliseconds, or -1 if the play token does not carry one
+     */
+    public static long getPlayTokenExpiry(Entitlement entitlement) {
+        if (entitlement == null || entitlement.playToken == null) {
+            return -1;
+        }
+        String[] parts = entitlement.playToken.split("\\.");
+        if (parts.length < 2) {
+            return -1;
+        }
+        try {
+            String payload = new String(Base64.decode(parts[1], Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING), "UTF-8");
+            long exp = new JSONObject(payload).optLong("exp", -1);
+            return exp > 0 ? exp * 1000L : -1;
+        }
+        catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return token of the user session, or null if there is none
+     */
+    public static Object getUserSessionToken() {
+        try {
+            return ExposureClient.getInstance().getSessionToken();
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+
+    protected Object getSessionToken() {
+        return getUserSessionToken();
+    }
+
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Drops every entry if the user session changed since the last call (must hold the lock)
+     *
+     * @return token of the current user session
+     */
+    private Object checkSession() {
+        Object token = getSessionToken();
+        if (token == null ? this.sessionToken != null : token.equals(this.sessionToken) == false) {
+            this.entries.clear();
+            this.sessionToken = token;
+        }
+        return token;
+    }
+
+    private void store(Request request, Object requestSession, Entitlement entitlement) {
+        long expiry = getPlayTokenExpiry(entitlement);
+        synchronized (this) {
+            Object session = checkSession();
+            // Response of a request sent in a previous user session
+            if (requestSession == null ? session != null : requestSession.equals(session) == false) {
+                return;
+            }
+            long nowMs = currentTime();
+            evictExpired(nowMs);
+            if (expiry < 0 || expiry - EXPIRY_MARGIN_MS <= nowMs) {
+                this.entries.remove(request.key);
+                return;
+            }
+            this.entries.put(request.key, new Entry(entitlement, Math.min(expiry - EXPIRY_MARGIN_MS, nowMs + MAX_TTL_MS)));
+        }
+    }
+
+    private void evictExpired(long nowMs) {
+        Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expiresAtMs <= nowMs) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package net.ericsson.emovs.playback.services;
+
+import net.ericsson.emovs.utilities.interfaces.IEntitledPlayer;
+import net.ericsson.emovs.utilities.models.EmpProgram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ *     Cache of entitlement decisions over time intervals, used by ProgramService to answer repeated checks locally.
+ * </p>
+ * <p>
+ *     Every program check outcome is kept as an allowed or denied interval ([startDateTime, endDateTime]) keyed by assetId,
+ *     so seeking back and forth across program boundaries in a DVR window only goes to the network for unseen ranges.
+ *     Outcomes that have no program (gap in EPG, check not possible) are kept for a short interval after the checked time,
+ *     in a separate map bounded by MAX_NO_PROGRAM_ENTRIES: a burst of them (e.g. while the backend is down) cannot evict
+ *     the program decisions.
+ * </p>
+ * <p>
+ *     Entries expire after their TTL and the least recently used ones are evicted beyond MAX_ENTRIES (MAX_NO_PROGRAM_ENTRIES).
+ * </p>
+ */
+public class EntitlementIntervalCache {
+    public static final int MAX_ENTRIES = 64;
+    public static final long DECISION_TTL_MS = 5 * 60 * 1000L;
+    public static final int MAX_NO_PROGRAM_ENTRIES = 8;
+    public static final long NO_PROGRAM_INTERVAL_MS = 30000L;
+
+    private final IEntitledPlayer player;
+    private final LinkedHashMap<String, Decision> decisions;
+    private final LinkedHashMap<String, Decision> noProgramDecisions;
+
+    /**
+     * Cached outcome of an entitlement check
+     */
+    public static class Decision {
+        public final long startTime;
+        public final long endTime;
+        public final boolean isAllowed;
+        public final EmpProgram program;
+        public final boolean gapInEpg;
+        public final boolean checkNotPossible;
+        final long expiresAtMs;
+
+        Decision(long startTime, long endTime, boolean isAllowed, EmpProgram program, boolean gapInEpg, boolean checkNotPossible, long expiresAtMs) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.isAllowed = isAllowed;
+            this.program = program;
+            this.gapInEpg = gapInEpg;
+            this.checkNotPossible = checkNotPossible;
+            this.expiresAtMs = expiresAtMs;
+        }
+
+        boolean contains(long time) {
+            return time >= startTime && time <= endTime;
+        }
+    }
+
+    /**
+     * @param player player used as clock for the TTLs (server time)
+     */
+    public EntitlementIntervalCache(IEntitledPlayer player) {
+        this.player = player;
+        this.decisions = createLruMap(MAX_ENTRIES);
+        this.noProgramDecisions = createLruMap(MAX_NO_PROGRAM_ENTRIES);
+    }
+
+    private static LinkedHashMap<String, Decision> createLruMap(final int maxEntries) {
+        return new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Finds the decision that covers a given time
+     *
+     * @param time unix time to check
+     * @return cached decision or null if the time was not checked (or the decision expired)
+     */
+    public synchronized Decision lookup(long time) {
+        long nowMs = currentTime();
+        // Program decisions first: they are the authoritative outcome for their whole interval
+        Decision decision = lookup(decisions, time, nowMs);
+        return decision != null ? decision : lookup(noProgramDecisions, time, nowMs);
+    }
+
+    private static Decision lookup(LinkedHashMap<String, Decision> decisions, long time, long nowMs) {
+        String foundKey = null;
+        Iterator<Map.Entry<String, Decision>> it = decisions.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Decision> entry = it.next();
+            Decision decision = entry.getValue();
+            if (decision.expiresAtMs <= nowMs) {
+                it.remove();
+                continue;
+            }
+            if (foundKey == null && decision.contains(time)) {
+                foundKey = entry.getKey();
+            }
+        }
+        // get() refreshes the LRU position
+        return foundKey == null ? null : decisions.get(foundKey);
+    }
+
+    /**
+     * @param time unix time to check
+     * @return true/false if a cached decision covers the time, null otherwise
+     */
+    public Boolean isTimeAllowed(long time) {
+        Decision decision = lookup(time);
+        return decision == null ? null : decision.isAllowed;
+    }
+
+    /**
+     * Registers the outcome of a program entitlement check
+     *
+     * @param program program that was checked
+     * @param isAllowed outcome of the check
+     */
+    public void register(EmpProgram program, boolean isAllowed) {
+        register(program, isAllowed, DECISION_TTL_MS);
+    }
+
+    /**
+     * Registers the outcome of a program entitlement check with a custom TTL
+     *
+     * @param program program that was checked
+     * @param isAllowed outcome of the check
+     * @param ttlMs time to live of the decision in milliseconds
+     */
+    public synchronized void register(EmpProgram program, boolean isAllowed, long ttlMs) {
+        if (program == null || program.assetId == null || program.startDateTime == null || program.endDateTime == null) {
+            return;
+        }
+        decisions.put(program.assetId, new Decision(program.startDateTime.getMillis(), program.endDateTime.getMillis(), isAllowed, program, false, false, currentTime() + ttlMs));
+    }
+
+    /**
+     * Lists the program decisions that overlap a time range (e.g. to draw blocked regions on a time bar)
+     *
+     * @param fromTime start of the range (unix time)
+     * @param toTime end of the range (unix time)
+     * @return decisions sorted by start time
+     */
+    public synchronized ArrayList<Decision> getProgramDecisions(long fromTime, long toTime) {
+        long nowMs = currentTime();
+        ArrayList<Decision> result = new ArrayList<>();
+        for (Decision decision : decisions.values()) {
+            if (decision.program != null && decision.expiresAtMs > nowMs && decision.endTime >= fromTime && decision.startTime <= toTime) {
+                result.add(decision);
+            }
+        }
+        Collections.sort(result, new Comparator<Decision>() {
+            @Override
+            public int compare(Decision a, Decision b) {
+                return a.startTime < b.startTime ? -1 : (a.startTime == b.startTime ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Registers that there is no EPG entry at a given time (playback is allowed)
+     *
+     * @param time unix time that was checked
+     */
+    public synchronized void registerGapInEpg(long time) {
+        noProgramDecisions.put("gap:" + time, new Decision(time, time + NO_PROGRAM_INTERVAL_MS, true, null, true, false, currentTime() + 2 * NO_PROGRAM_INTERVAL_MS));
+    }
+
+    /**
+     * Registers that the entitlement check at a given time could not be done (playback is allowed)
+     *
+     * @param time unix time that was checked
+     */
+    public synchronized void registerCheckNotPossible(long time) {
+        noProgramDecisions.put("unavailable:" + time, new Decision(time, time + NO_PROGRAM_INTERVAL_MS, true, null, false, true, currentTime() + 2 * NO_PROGRAM_INTERVAL_MS));
+    }
+
+    /**
+     * @return number of cached decisions (including expired ones not yet evicted)
+     */
+    public synchronized int size() {
+        return decisions.size() + noProgramDecisions.size();
+    }
+
+    /**
+     * Drops all cached decisions
+     */
+    public synchronized void clear() {
+        decisions.clear();
+        noProgramDecisions.clear();
+    }
+
+    protected long currentTime() {
+        return player != null ? player.getServerTime() : System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,164 @@
+package net.ericsson.emovs.playback.services;
+
+import net.ericsson.emovs.utilities.entitlements.EntitledRunnable;
+import net.ericsson.emovs.utilities.entitlements.Entitlement;
+import net.ericsson.emovs.utilities.errors.ErrorRunnable;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * <p>
+ *     Keeps the entitlement of a long playback session valid: REFRESH_LEAD_MS before the play token expires (exp claim
+ *     of the JWT play token) a new entitlement is requested through the entitlement cache and handed to the target,
+ *     which swaps the play token into the running tech without interrupting playback.
+ * </p>
+ * <p>
+ *     Failed refreshes are retried with the retry policy until a new entitlement arrives or the keeper is stopped.
+ *     Sessions whose play token has no readable expiry are not kept.
+ * </p>
+ */
+public class EntitlementKeeper {
+    public static final long REFRESH_LEAD_MS = 5 * 60 * 1000L;
+    public static final long MIN_REFRESH_DELAY_MS = 30 * 1000L;
+
+    private final EntitlementCache cache;
+    private final EntitlementCache.Request request;
+    private final Target target;
+    private final Random random;
+    private RetryPolicy retryPolicy;
+    private ProgramMonitor scheduler;
+    private ScheduledFuture<?> pendingRefresh;
+    private int generation;
+    private int failures;
+    private boolean running;
+
+    /**
+     * Receiver of the refreshed entitlements
+     */
+    public interface Target {
+        /**
+         * Called from a background thread with the refreshed entitlement, whose play token replaces the one of the session
+         *
+         * @param entitlement refreshed entitlement
+         */
+        void onEntitlementRefreshed(Entitlement entitlement);
+    }
+
+    /**
+     * @param cache entitlement cache of the session's entitlement provider
+     * @param request entitlement request of the session
+     * @param target receiver of the refreshed entitlements
+     */
+    public EntitlementKeeper(EntitlementCache cache, EntitlementCache.Request request, Target target) {
+        this.cache = cache;
+        this.request = request;
+        this.target = target;
+        this.random = new Random();
+        this.retryPolicy = RetryPolicy.DEFAULT;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.DEFAULT;
+    }
+
+    /**
+     * Starts keeping the session alive
+     *
+     * @param entitlement current entitlement of the session
+     * @return false if the play token has no readable expiry (nothing to keep)
+     */
+    public synchronized boolean start(Entitlement entitlement) {
+        stop();
+        long expiry = EntitlementCache.getPlayTokenExpiry(entitlement);
+        if (expiry < 0) {
+            return false;
+        }
+        this.running = true;
+        scheduleRefresh(Math.max(MIN_REFRESH_DELAY_MS, expiry - REFRESH_LEAD_MS - currentTime()));
+        return true;
+    }
+
+    /**
+     * Stops keeping the session alive: pending refreshes are cancelled and late responses are dropped
+     */
+    public synchronized void stop() {
+        this.running = false;
+        this.generation++;
+        this.failures = 0;
+        if (this.pendingRefresh != null) {
+            this.pendingRefresh.cancel(false);
+            this.pendingRefresh = null;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return this.running;
+    }
+
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    protected ProgramMonitor getScheduler() {
+        if (this.scheduler == null) {
+            this.scheduler = ProgramMonitor.getInstance();
+        }
+        return this.scheduler;
+    }
+
+    private void scheduleRefresh(long delayMs) {
+        final int scheduledGeneration = this.generation;
+        this.pendingRefresh = getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh(scheduledGeneration);
+            }
+        }, delayMs);
+    }
+
+    private void refresh(final int refreshGeneration) {
+        synchronized (this) {
+            if (this.running == false || refreshGeneration != this.generation) {
+                return;
+            }
+            this.pendingRefresh = null;
+        }
+        this.cache.refresh(this.request, new EntitledRunnable() {
+            @Override
+            public void run() {
+                onRefreshed(refreshGeneration, this.entitlement);
+            }
+        }, new ErrorRunnable() {
+            @Override
+            public void run(int errorCode, String errorMessage) {
+                onRefreshFailed(refreshGeneration);
+            }
+        });
+    }
+
+    private void onRefreshed(int refreshGeneration, Entitlement entitlement) {
+        synchronized (this) {
+            if (this.running == false || refreshGeneration != this.generation) {
+                return;
+            }
+            this.failures = 0;
+            long expiry = EntitlementCache.getPlayTokenExpiry(entitlement);
+            if (expiry < 0) {
+                this.running = false;
+            }
+            else {
+                scheduleRefresh(Math.max(MIN_REFRESH_DELAY_MS, expiry - REFRESH_LEAD_MS - currentTime()));
+            }
+        }
+        this.target.onEntitlementRefreshed(entitlement);
+    }
+
+    private synchronized void onRefreshFailed(int refreshGeneration) {
+        if (this.running == false || refreshGeneration != this.generation) {
+            return;
+        }
+        this.failures++;
+        scheduleRefresh(this.retryPolicy.getDelay(this.failures, this.random));
+    }
+}
@@ -0,0 +1,520 @@
+package net.ericsson.emovs.playback.services;
+
+import net.ericsson.emovs.utilities.errors.Error;
+import net.ericsson.emovs.utilities.interfaces.IMetadataCallback;
+import net.ericsson.emovs.utilities.interfaces.IMetadataProvider;
+import net.ericsson.emovs.utilities.models.EmpProgram;
+import net.ericsson.emovs.utilities.queries.EpgQueryParameters;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ *     Time-indexed EPG cache, shared by EMPPlayer and ProgramService (one cache per metadata provider).
+ * </p>
+ * <p>
+ *     Each channel keeps its programs as sorted interval arrays, so "program at time" lookups on the hot paths (seeks,
+ *     boundary checks, live/start-over resolution) are a binary search in memory. A miss fetches a window of
+ *     FETCH_PAST_WINDOW_MS / FETCH_FUTURE_WINDOW_MS around the requested time instead of the single program airing at
+ *     that time, and concurrent misses in the same window wait for the request in flight. Range queries (e.g. the seek
+ *     window of ProgramService) are answered the same way: from memory when fresh windows cover the whole range,
+ *     otherwise by joining a request in flight that covers it or by fetching the range.
+ * </p>
+ * <p>
+ *     A fetched window only covers the span of the programs the backend returned (a window answered with no programs
+ *     covers nothing) and stays fresh for WINDOW_TTL_MS. Refreshes are incremental: only the stale window around the
+ *     requested time is fetched again and its programs replace the cached ones they overlap.
+ * </p>
+ * <p>
+ *     With an EpgSnapshotStore attached, channels are seeded from the on-disk snapshot on first use (windows keep the
+ *     instant they were fetched, so only stale ones are fetched again) and fetched windows are written back to it.
+ * </p>
+ */
+public class EpgCache {
+    public static final long FETCH_PAST_WINDOW_MS = 3 * 60 * 60 * 1000L;
+    public static final long FETCH_FUTURE_WINDOW_MS = 3 * 60 * 60 * 1000L;
+    public static final int FETCH_PAGE_SIZE = 100;
+    public static final long WINDOW_TTL_MS = 10 * 60 * 1000L;
+
+    private static final WeakHashMap<IMetadataProvider, EpgCache> instances = new WeakHashMap<>();
+
+    // Weak: the provider is the key of the instances map
+    private final WeakReference<IMetadataProvider> provider;
+    private final HashMap<String, ChannelIndex> channels;
+    private final HashMap<String, ArrayList<Fetch>> inFlight;
+    private volatile EpgSnapshotStore snapshotStore;
+
+    private static class Window {
+        final long from;
+        final long to;
+        final long fetchedAtMs;
+
+        Window(long from, long to, long fetchedAtMs) {
+            this.from = from;
+            this.to = to;
+            this.fetchedAtMs = fetchedAtMs;
+        }
+    }
+
+    private static class Waiter {
+        final long time;
+        // Range waiters want every program overlapping [time, toTime]
+        final long toTime;
+        final boolean isRange;
+        final IMetadataCallback<ArrayList<EmpProgram>> callback;
+
+        Waiter(long time, IMetadataCallback<ArrayList<EmpProgram>> callback) {
+            this(time, time, false, callback);
+        }
+
+        Waiter(long time, long toTime, boolean isRange, IMetadataCallback<ArrayList<EmpProgram>> callback) {
+            this.time = time;
+            this.toTime = toTime;
+            this.isRange = isRange;
+            this.callback = callback;
+        }
+    }
+
+    private static class Fetch {
+        final long from;
+        final long to;
+        final ArrayList<Waiter> waiters = new ArrayList<>();
+
+        Fetch(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Programs of a channel sorted by start time, with the windows of time they are known to cover
+     */
+    private static class ChannelIndex {
+        ProgramInterval[] intervals = new ProgramInterval[0];
+        long[] startTimes = new long[0];
+        final ArrayList<Window> windows = new ArrayList<>();
+
+        boolean isCovered(long time, long nowMs) {
+            for (Window window : this.windows) {
+                if (time >= window.from && time <= window.to && nowMs - window.fetchedAtMs < WINDOW_TTL_MS) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean isCovered(long from, long to, long nowMs) {
+            // Windows are split by refreshes: extend the covered prefix of the range until no fresh window extends it
+            long coveredTo = from - 1;
+            boolean extended = true;
+            while (extended && coveredTo < to) {
+                extended = false;
+                for (Window window : this.windows) {
+                    if (window.from <= coveredTo + 1 && window.to > coveredTo && nowMs - window.fetchedAtMs < WINDOW_TTL_MS) {
+                        coveredTo = window.to;
+                        extended = true;
+                    }
+                }
+            }
+            return coveredTo >= to;
+        }
+
+        /**
+         * @return programs airing at the given time, the one that starts last first (null if a program changed its times)
+         */
+        ArrayList<EmpProgram> find(long time) {
+            ArrayList<EmpProgram> programs = new ArrayList<>();
+            // Index of the last program that starts at or before the time
+            int low = 0;
+            int high = this.startTimes.length - 1;
+            int index = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (this.startTimes[mid] <= time) {
+                    index = mid;
+                    low = mid + 1;
+                }
+                else {
+                    high = mid - 1;
+                }
+            }
+            // Programs are contiguous: at a boundary both the starting and the ending program contain the time
+            for (int i = index; i >= 0 && i >= index - 1; --i) {
+                ProgramInterval interval = this.intervals[i];
+                if (interval.isCurrent() == false) {
+                    return null;
+                }
+                if (interval.contains(time)) {
+                    programs.add(interval.program);
+                }
+            }
+            return programs;
+        }
+
+        /**
+         * @return programs overlapping the range sorted by start time (null if a program changed its times)
+         */
+        ArrayList<EmpProgram> find(long from, long to) {
+            ArrayList<EmpProgram> programs = new ArrayList<>();
+            for (ProgramInterval interval : this.intervals) {
+                if (interval.endTime < from || interval.startTime > to) {
+                    continue;
+                }
+                if (interval.isCurrent() == false) {
+                    return null;
+                }
+                programs.add(interval.program);
+            }
+            return programs;
+        }
+
+        void setIntervals(ArrayList<ProgramInterval> intervals) {
+            Collections.sort(intervals, new Comparator<ProgramInterval>() {
+                @Override
+                public int compare(ProgramInterval a, ProgramInterval b) {
+                    return a.startTime < b.startTime ? -1 : (a.startTime == b.startTime ? 0 : 1);
+                }
+            });
+            this.intervals = intervals.toArray(new ProgramInterval[intervals.size()]);
+            this.startTimes = new long[this.intervals.length];
+            for (int i = 0; i < this.intervals.length; ++i) {
+                this.startTimes[i] = this.intervals[i].startTime;
+            }
+        }
+
+        void merge(List<EmpProgram> programs, long from, long to, long nowMs) {
+            ArrayList<ProgramInterval> merged = new ArrayList<>();
+            for (ProgramInterval interval : this.intervals) {
+                // Programs of the refreshed window are replaced by the ones just fetched
+                if (interval.endTime < from || interval.startTime > to) {
+                    merged.add(interval);
+                }
+            }
+            long spanFrom = Long.MAX_VALUE;
+            long spanTo = Long.MIN_VALUE;
+            for (EmpProgram program : programs) {
+                ProgramInterval interval = ProgramInterval.of(program);
+                if (interval == null) {
+                    continue;
+                }
+                merged.add(interval);
+                spanFrom = Math.min(spanFrom, interval.startTime);
+                spanTo = Math.max(spanTo, interval.endTime);
+            }
+            setIntervals(merged);
+
+            ArrayList<Window> windows = new ArrayList<>();
+            for (Window window : this.windows) {
+                if (nowMs - window.fetchedAtMs >= WINDOW_TTL_MS) {
+                    continue;
+                }
+                // Parts of older windows outside the fetched one are still valid
+                if (window.from < from) {
+                    windows.add(new Window(window.from, Math.min(window.to, from - 1), window.fetchedAtMs));
+                }
+                if (window.to > to) {
+                    windows.add(new Window(Math.max(window.from, to + 1), window.to, window.fetchedAtMs));
+                }
+            }
+            if (spanFrom <= spanTo) {
+                windows.add(new Window(Math.max(from, spanFrom), Math.min(to, spanTo), nowMs));
+            }
+            this.windows.clear();
+            this.windows.addAll(windows);
+        }
+    }
+
+    /**
+     * @param provider metadata provider the EPG is fetched from
+     * @return EPG cache of the provider
+     */
+    public static synchronized EpgCache getInstance(IMetadataProvider provider) {
+        EpgCache cache = instances.get(provider);
+        if (cache == null) {
+            cache = new EpgCache(provider);
+            instances.put(provider, cache);
+        }
+        return cache;
+    }
+
+    protected EpgCache(IMetadataProvider provider) {
+        this.provider = new WeakReference<>(provider);
+        this.channels = new HashMap<>();
+        this.inFlight = new HashMap<>();
+    }
+
+    /**
+     * Returns the programs airing at a given time if the time is covered by a fresh window, without any request
+     *
+     * @param channelId channel
+     * @param timeMs unix time
+     * @return programs airing at the time (empty if there is a gap in the EPG), or null if the time is not cached
+     */
+    public synchronized ArrayList<EmpProgram> getCachedProgramsAt(String channelId, long timeMs) {
+        ChannelIndex index = getChannelIndex(channelId);
+        if (index == null || index.isCovered(timeMs, currentTime()) == false) {
+            return null;
+        }
+        ArrayList<EmpProgram> programs = index.find(timeMs);
+        if (programs == null) {
+            // Program times were replaced in place: rebuild the channel from the backend
+            this.channels.remove(channelId);
+        }
+        return programs;
+    }
+
+    /**
+     * Returns the programs overlapping a time range if the whole range is covered by fresh windows, without any request
+     *
+     * @param channelId channel
+     * @param fromMs start of the range (unix time)
+     * @param toMs end of the range (unix time)
+     * @return programs overlapping the range sorted by start time, or null if the range is not cached
+     */
+    public synchronized ArrayList<EmpProgram> getCachedPrograms(String channelId, long fromMs, long toMs) {
+        ChannelIndex index = getChannelIndex(channelId);
+        if (index == null || index.isCovered(fromMs, toMs, currentTime()) == false) {
+            return null;
+        }
+        ArrayList<EmpProgram> programs = index.find(fromMs, toMs);
+        if (programs == null) {
+            this.channels.remove(channelId);
+        }
+        return programs;
+    }
+
+    /**
+     * @param channelId channel
+     * @param timeMs unix time
+     * @return program airing at the time, or null if there is none or the time is not cached
+     */
+    public EmpProgram getProgramAt(String channelId, long timeMs) {
+        ArrayList<EmpProgram> programs = getCachedProgramsAt(channelId, timeMs);
+        return programs == null || programs.isEmpty() ? null : programs.get(0);
+    }
+
+    /**
+     * Returns the programs airing at a given time (same result as getEpgWithTime with no past/future time frame),
+     * from memory when the time is cached, otherwise after fetching the window around it
+     *
+     * @param channelId channel
+     * @param timeMs unix time
+     * @param callback receives the programs airing at the time (the one that starts last first) or the backend error
+     */
+    public void getProgramsAt(final String channelId, final long timeMs, IMetadataCallback<ArrayList<EmpProgram>> callback) {
+        ArrayList<EmpProgram> cached = getCachedProgramsAt(channelId, timeMs);
+        if (cached != null) {
+            callback.onMetadata(cached);
+            return;
+        }
+
+        final Fetch fetch;
+        synchronized (this) {
+            ArrayList<Fetch> fetches = this.inFlight.get(channelId);
+            if (fetches == null) {
+                fetches = new ArrayList<>();
+                this.inFlight.put(channelId, fetches);
+            }
+            for (Fetch pending : fetches) {
+                if (timeMs >= pending.from && timeMs <= pending.to) {
+                    pending.waiters.add(new Waiter(timeMs, callback));
+                    return;
+                }
+            }
+            fetch = new Fetch(timeMs - FETCH_PAST_WINDOW_MS, timeMs + FETCH_FUTURE_WINDOW_MS);
+            fetch.waiters.add(new Waiter(timeMs, callback));
+            fetches.add(fetch);
+        }
+
+        EpgQueryParameters epgParams = new EpgQueryParameters();
+        epgParams.setPastTimeFrame((int) FETCH_PAST_WINDOW_MS);
+        epgParams.setFutureTimeFrame((int) FETCH_FUTURE_WINDOW_MS);
+        epgParams.setPageSize(FETCH_PAGE_SIZE);
+        fetch(channelId, fetch, timeMs, epgParams);
+    }
+
+    /**
+     * Returns the programs overlapping a time range, from memory when fresh windows cover the whole range, otherwise
+     * from a request in flight that covers it or after fetching the range
+     *
+     * @param channelId channel
+     * @param fromMs start of the range (unix time)
+     * @param toMs end of the range (unix time)
+     * @param callback receives the programs overlapping the range sorted by start time, or the backend error
+     */
+    public void getPrograms(final String channelId, final long fromMs, final long toMs, IMetadataCallback<ArrayList<EmpProgram>> callback) {
+        ArrayList<EmpProgram> cached = getCachedPrograms(channelId, fromMs, toMs);
+        if (cached != null) {
+            callback.onMetadata(cached);
+            return;
+        }
+
+        final Fetch fetch;
+        synchronized (this) {
+            ArrayList<Fetch> fetches = this.inFlight.get(channelId);
+            if (fetches == null) {
+                fetches = new ArrayList<>();
+                this.inFlight.put(channelId, fetches);
+            }
+            for (Fetch pending : fetches) {
+                if (fromMs >= pending.from && toMs <= pending.to) {
+                    pending.waiters.add(new Waiter(fromMs, toMs, true, callback));
+                    return;
+                }
+            }
+            fetch = new Fetch(fromMs, toMs);
+            fetch.waiters.add(new Waiter(fromMs, toMs, true, callback));
+            fetches.add(fetch);
+        }
+
+        EpgQueryParameters epgParams = new EpgQueryParameters();
+        epgParams.setPastTimeFrame((int) Math.min(Integer.MAX_VALUE, toMs - fromMs));
+        epgParams.setFutureTimeFrame(0);
+        epgParams.setPageSize(FETCH_PAGE_SIZE);
+        fetch(channelId, fetch, toMs, epgParams);
+    }
+
+    /**
+     * Adds the programs of a channel (e.g. the programs of an EmpChannel) to the cache, covering their span
+     *
+     * @param channelId channel
+     * @param programs programs of the channel
+     */
+    public void put(String channelId, List<EmpProgram> programs) {
+        if (programs == null) {
+            return;
+        }
+        long from = Long.MAX_VALUE;
+        long to = Long.MIN_VALUE;
+        for (EmpProgram program : programs) {
+            ProgramInterval interval = ProgramInterval.of(program);
+            if (interval != null) {
+                from = Math.min(from, interval.startTime);
+                to = Math.max(to, interval.endTime);
+            }
+        }
+        if (from <= to) {
+            put(channelId, programs, from, to);
+        }
+    }
+
+    /**
+     * Adds programs fetched elsewhere (e.g. a seek window query) to the cache
+     *
+     * @param channelId channel
+     * @param programs programs of the channel between from and to
+     * @param from start of the queried window
+     * @param to end of the queried window
+     */
+    public void put(String channelId, List<EmpProgram> programs, long from, long to) {
+        if (channelId == null || programs == null) {
+            return;
+        }
+        synchronized (this) {
+            ChannelIndex index = getChannelIndex(channelId);
+            if (index == null) {
+                index = new ChannelIndex();
+                this.channels.put(channelId, index);
+            }
+            index.merge(programs, from, to, currentTime());
+        }
+        EpgSnapshotStore store = this.snapshotStore;
+        if (store != null) {
+            store.update(channelId, programs, from, to);
+        }
+    }
+
+    /**
+     * Attaches the persistent snapshot that seeds the channels and receives the fetched windows
+     *
+     * @param store snapshot store (null to detach)
+     */
+    public synchronized void setSnapshotStore(EpgSnapshotStore store) {
+        this.snapshotStore = store;
+    }
+
+    /**
+     * Drops the cached EPG of every channel (requests in flight still complete)
+     */
+    public synchronized void clear() {
+        this.channels.clear();
+    }
+
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    private ChannelIndex getChannelIndex(String channelId) {
+        ChannelIndex index = this.channels.get(channelId);
+        EpgSnapshotStore store = this.snapshotStore;
+        if (index != null || store == null || channelId == null) {
+            return index;
+        }
+        List<EmpProgram> programs = store.getPrograms(channelId);
+        if (programs.isEmpty()) {
+            return null;
+        }
+        index = new ChannelIndex();
+        ArrayList<ProgramInterval> intervals = new ArrayList<>();
+        for (EmpProgram program : programs) {
+            intervals.add(ProgramInterval.of(program));
+        }
+        index.setIntervals(intervals);
+        for (EpgSnapshotStore.Window window : store.getWindows(channelId)) {
+            index.windows.add(new Window(window.from, window.to, window.fetchedAtMs));
+        }
+        this.channels.put(channelId, index);
+        return index;
+    }
+
+    private void fetch(final String channelId, final Fetch fetch, long timeMs, EpgQueryParameters epgParams) {
+        IMetadataProvider provider = this.provider.get();
+        if (provider == null) {
+            for (Waiter waiter : complete(channelId, fetch)) {
+                waiter.callback.onMetadata(new ArrayList<EmpProgram>());
+            }
+            return;
+        }
+
+        provider.getEpgWithTime(channelId, timeMs, new IMetadataCallback<ArrayList<EmpProgram>>() {
+            @Override
+            public void onMetadata(ArrayList<EmpProgram> programs) {
+                ArrayList<Waiter> waiters = complete(channelId, fetch);
+                // Waiters are answered from the fetched programs, not the shared index (a clear() may have run meanwhile)
+                ChannelIndex result = new ChannelIndex();
+                if (programs != null) {
+                    put(channelId, programs, fetch.from, fetch.to);
+                    result.merge(programs, fetch.from, fetch.to, 0);
+                }
+                for (Waiter waiter : waiters) {
+                    ArrayList<EmpProgram> found = waiter.isRange ? result.find(waiter.time, waiter.toTime) : result.find(waiter.time);
+                    waiter.callback.onMetadata(found == null ? new ArrayList<EmpProgram>() : found);
+                }
+            }
+
+            @Override
+            public void onError(Error error) {
+                for (Waiter waiter : complete(channelId, fetch)) {
+                    waiter.callback.onError(error);
+                }
+            }
+        }, epgParams);
+    }
+
+    private synchronized ArrayList<Waiter> complete(String channelId, Fetch fetch) {
+        ArrayList<Fetch> fetches = this.inFlight.get(channelId);
+        if (fetches != null) {
+            fetches.remove(fetch);
+            if (fetches.isEmpty()) {
+                this.inFlight.remove(channelId);
+            }
+        }
+        return fetch.waiters;
+    }
+}
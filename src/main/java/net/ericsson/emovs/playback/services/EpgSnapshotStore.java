@@ -0,0 +1,656 @@
+package net.ericsson.emovs.playback.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import net.ericsson.emovs.utilities.models.EmpProgram;
+import net.ericsson.emovs.utilities.system.ParameterizedRunnable;
+
+import org.joda.time.DateTime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *     Persistent EPG snapshot: program intervals, asset ids and program ids per channel, kept in a compact binary file
+ *     that is memory-mapped on launch, so startup program resolution and the first seeks do not wait for the network.
+ * </p>
+ * <p>
+ *     Every channel section holds the windows of time it covers (with the instant they were fetched), a table of
+ *     fixed-size program records sorted by start time (binary searched in place in the mapped file) and a string pool.
+ *     Updates are deltas: the programs of a fetched window replace the ones they overlap, the rest of the channel and the
+ *     other channels are copied as they are. Changes are written in the background (temporary file + rename) at most
+ *     once every WRITE_DELAY_MS. Programs that ended more than RETENTION_MS ago are dropped.
+ * </p>
+ * <p>
+ *     The store of the process is opened (file mapped) on the writer thread; until then it is empty and ignores updates.
+ *     The file is only mapped and written outside of the store's lock, so lookups never wait for it.
+ * </p>
+ */
+public class EpgSnapshotStore {
+    private static final String TAG = EpgSnapshotStore.class.toString();
+    private static final String FILE_NAME = "epg_snapshot.bin";
+    private static final int MAGIC = 0x45504753;
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 24;
+    private static final int WINDOW_SIZE = 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final long STARTUP_MAX_AGE_MS = 60 * 60 * 1000L;
+    public static final long RETENTION_MS = 24 * 60 * 60 * 1000L;
+    public static final long WRITE_DELAY_MS = 5000L;
+    public static final int MAX_CHANNELS = 64;
+
+    private static EpgSnapshotStore instance;
+
+    private final ScheduledExecutorService writer;
+    private final HashMap<String, Integer> sections;
+    private final HashMap<String, ChannelData> dirty;
+    private File file;
+    private MappedByteBuffer mapped;
+    private boolean writeScheduled;
+    private volatile boolean opened;
+
+    /**
+     * Program window of a channel, as it was fetched from the backend
+     */
+    public static class Window {
+        public final long from;
+        public final long to;
+        public final long fetchedAtMs;
+
+        Window(long from, long to, long fetchedAtMs) {
+            this.from = from;
+            this.to = to;
+            this.fetchedAtMs = fetchedAtMs;
+        }
+    }
+
+    private static class Record {
+        final long startTime;
+        final long endTime;
+        final String assetId;
+        final String programId;
+
+        Record(long startTime, long endTime, String assetId, String programId) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.assetId = assetId;
+            this.programId = programId;
+        }
+    }
+
+    private static class ChannelData {
+        final ArrayList<Window> windows = new ArrayList<>();
+        final ArrayList<Record> records = new ArrayList<>();
+        long updatedAtMs;
+    }
+
+    private static class Mapping {
+        final HashMap<String, Integer> sections = new HashMap<>();
+        MappedByteBuffer buffer;
+    }
+
+    /**
+     * Returns the snapshot store of the process, which is opened in the background on first call
+     *
+     * @param context context whose cache directory holds the snapshot
+     * @return snapshot store of the process (disabled if the context has no cache directory)
+     */
+    public static synchronized EpgSnapshotStore getInstance(final Context context) {
+        if (instance == null) {
+            final EpgSnapshotStore store = new EpgSnapshotStore();
+            store.writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    File dir = context == null ? null : context.getCacheDir();
+                    store.open(dir == null ? null : new File(dir, FILE_NAME));
+                }
+            });
+            instance = store;
+        }
+        return instance;
+    }
+
+    /**
+     * Opens the snapshot in the calling thread
+     *
+     * @param file snapshot file (null to disable the store)
+     */
+    protected EpgSnapshotStore(File file) {
+        this();
+        open(file);
+    }
+
+    private EpgSnapshotStore() {
+        this.sections = new HashMap<>();
+        this.dirty = new HashMap<>();
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "EpgSnapshotStore");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * @return true once the snapshot file is mapped (lookups before that find nothing)
+     */
+    public boolean isOpened() {
+        return this.opened;
+    }
+
+    /**
+     * Resolves the program airing at a given time from the snapshot on the writer thread, after the store is opened
+     *
+     * @param channelId channel
+     * @param timeMs unix time
+     * @param maxAgeMs maximum age of the window that covers the time
+     * @param callback called from the writer thread with the program airing at the time, or null if not covered
+     */
+    public void getProgramAt(final String channelId, final long timeMs, final long maxAgeMs, final ParameterizedRunnable<EmpProgram> callback) {
+        this.writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.run(getProgramAt(channelId, timeMs, maxAgeMs));
+            }
+        });
+    }
+
+    /**
+     * Resolves the program airing at a given time from the snapshot, without any request
+     *
+     * @param channelId channel
+     * @param timeMs unix time
+     * @param maxAgeMs maximum age of the window that covers the time
+     * @return program airing at the time (start/end times, assetId, programId, channelId) or null if not covered
+     */
+    public synchronized EmpProgram getProgramAt(String channelId, long timeMs, long maxAgeMs) {
+        long nowMs = currentTime();
+        ChannelData data = this.dirty.get(channelId);
+        if (data != null) {
+            if (isCovered(data.windows, timeMs, nowMs, maxAgeMs) == false) {
+                return null;
+            }
+            for (int i = data.records.size() - 1; i >= 0; --i) {
+                Record record = data.records.get(i);
+                if (record.startTime <= timeMs && timeMs <= record.endTime) {
+                    return toProgram(channelId, record);
+                }
+            }
+            return null;
+        }
+
+        Integer offset = this.sections.get(channelId);
+        if (offset == null || isCovered(readWindows(offset), timeMs, nowMs, maxAgeMs) == false) {
+            return null;
+        }
+        // Binary search of the last record that starts at or before the time, in place in the mapped file
+        ByteBuffer buffer = this.mapped;
+        int recordsOffset = getRecordsOffset(offset);
+        int count = buffer.getInt(recordsOffset);
+        int low = 0;
+        int high = count - 1;
+        int index = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getLong(recordsOffset + 4 + mid * RECORD_SIZE) <= timeMs) {
+                index = mid;
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        if (index < 0) {
+            return null;
+        }
+        Record record = readRecord(offset, index);
+        return record.endTime >= timeMs ? toProgram(channelId, record) : null;
+    }
+
+    /**
+     * @param channelId channel
+     * @return programs of the channel kept in the snapshot, sorted by start time
+     */
+    public synchronized List<EmpProgram> getPrograms(String channelId) {
+        ArrayList<EmpProgram> programs = new ArrayList<>();
+        ChannelData data = getChannelData(channelId);
+        if (data != null) {
+            for (Record record : data.records) {
+                programs.add(toProgram(channelId, record));
+            }
+        }
+        return programs;
+    }
+
+    /**
+     * @param channelId channel
+     * @return windows of time covered by the snapshot of the channel
+     */
+    public synchronized List<Window> getWindows(String channelId) {
+        ChannelData data = getChannelData(channelId);
+        return data == null ? new ArrayList<Window>() : new ArrayList<>(data.windows);
+    }
+
+    /**
+     * Replaces the programs of a fetched window (delta update) and schedules a write of the snapshot
+     *
+     * @param channelId channel
+     * @param programs programs returned by the backend for the window
+     * @param from start of the fetched window
+     * @param to end of the fetched window
+     */
+    public synchronized void update(String channelId, List<EmpProgram> programs, long from, long to) {
+        if (this.file == null || channelId == null || programs == null) {
+            return;
+        }
+        long nowMs = currentTime();
+        ChannelData previous = getChannelData(channelId);
+        ChannelData data = new ChannelData();
+        if (previous != null) {
+            data.windows.addAll(previous.windows);
+            data.records.addAll(previous.records);
+        }
+
+        ArrayList<Record> records = new ArrayList<>();
+        for (Record record : data.records) {
+            if ((record.endTime < from || record.startTime > to) && nowMs - record.endTime < RETENTION_MS) {
+                records.add(record);
+            }
+        }
+        long spanFrom = Long.MAX_VALUE;
+        long spanTo = Long.MIN_VALUE;
+        for (EmpProgram program : programs) {
+            ProgramInterval interval = ProgramInterval.of(program);
+            if (interval == null) {
+                continue;
+            }
+            records.add(new Record(interval.startTime, interval.endTime, program.assetId, program.programId));
+            spanFrom = Math.min(spanFrom, interval.startTime);
+            spanTo = Math.max(spanTo, interval.endTime);
+        }
+        if (spanFrom > spanTo) {
+            return;
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override
+            public int compare(Record a, Record b) {
+                return a.startTime < b.startTime ? -1 : (a.startTime == b.startTime ? 0 : 1);
+            }
+        });
+
+        ArrayList<Window> windows = new ArrayList<>();
+        for (Window window : data.windows) {
+            if (nowMs - window.to >= RETENTION_MS) {
+                continue;
+            }
+            // Parts of older windows outside the fetched one are still valid
+            if (window.from < from) {
+                windows.add(new Window(window.from, Math.min(window.to, from - 1), window.fetchedAtMs));
+            }
+            if (window.to > to) {
+                windows.add(new Window(Math.max(window.from, to + 1), window.to, window.fetchedAtMs));
+            }
+        }
+        windows.add(new Window(Math.max(from, spanFrom), Math.min(to, spanTo), nowMs));
+        data.windows.clear();
+        data.windows.addAll(windows);
+        data.records.clear();
+        data.records.addAll(records);
+        data.updatedAtMs = nowMs;
+        this.dirty.put(channelId, data);
+        scheduleWrite();
+    }
+
+    /**
+     * Writes pending changes now (blocking)
+     */
+    public void flush() {
+        write();
+    }
+
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    private void scheduleWrite() {
+        if (this.writeScheduled) {
+            return;
+        }
+        this.writeScheduled = true;
+        this.writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void write() {
+        byte[] content;
+        File file;
+        HashMap<String, ChannelData> written;
+        synchronized (this) {
+            this.writeScheduled = false;
+            if (this.file == null || this.dirty.isEmpty()) {
+                return;
+            }
+            file = this.file;
+            try {
+                content = encode();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "EPG snapshot could not be encoded", e);
+                return;
+            }
+            written = new HashMap<>(this.dirty);
+        }
+
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        boolean saved = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(content);
+            out.getFD().sync();
+            out.close();
+            out = null;
+            saved = tmp.renameTo(file);
+            if (saved == false) {
+                Log.w(TAG, "EPG snapshot could not be replaced");
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "EPG snapshot could not be written", e);
+        }
+        finally {
+            if (out != null) {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (saved == false) {
+            return;
+        }
+        Mapping mapping = map(file);
+        synchronized (this) {
+            // Channels updated again while writing stay dirty (updates never modify a ChannelData in place)
+            for (Map.Entry<String, ChannelData> entry : written.entrySet()) {
+                if (this.dirty.get(entry.getKey()) == entry.getValue()) {
+                    this.dirty.remove(entry.getKey());
+                }
+            }
+            this.sections.clear();
+            this.sections.putAll(mapping.sections);
+            this.mapped = mapping.buffer;
+            if (this.dirty.isEmpty() == false) {
+                scheduleWrite();
+            }
+        }
+    }
+
+    /**
+     * Encodes the dirty channels and copies the sections of the others from the mapped file
+     */
+    private byte[] encode() throws IOException {
+        ArrayList<Map.Entry<String, ChannelData>> updated = new ArrayList<>(this.dirty.entrySet());
+        ArrayList<String> kept = new ArrayList<>();
+        for (String channelId : this.sections.keySet()) {
+            if (this.dirty.containsKey(channelId) == false) {
+                kept.add(channelId);
+            }
+        }
+        // Least recently updated channels are dropped first
+        Collections.sort(kept, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long updatedA = readUpdatedAt(sections.get(a));
+                long updatedB = readUpdatedAt(sections.get(b));
+                return updatedA > updatedB ? -1 : (updatedA == updatedB ? 0 : 1);
+            }
+        });
+        while (updated.size() + kept.size() > MAX_CHANNELS && kept.isEmpty() == false) {
+            kept.remove(kept.size() - 1);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(updated.size() + kept.size());
+        for (String channelId : kept) {
+            int offset = this.sections.get(channelId);
+            byte[] section = new byte[this.mapped.getInt(offset)];
+            ByteBuffer source = this.mapped.duplicate();
+            source.position(offset);
+            source.get(section);
+            out.write(section);
+        }
+        for (Map.Entry<String, ChannelData> entry : updated) {
+            out.write(encodeSection(entry.getKey(), entry.getValue()));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Section layout: length, channelId, updatedAt, windows (from, to, fetchedAt), records (start, end, assetId and
+     * programId offsets in the string pool), string pool
+     */
+    private static byte[] encodeSection(String channelId, ChannelData data) throws IOException {
+        ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        DataOutputStream poolOut = new DataOutputStream(pool);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        writeString(out, channelId);
+        out.writeLong(data.updatedAtMs);
+        out.writeInt(data.windows.size());
+        for (Window window : data.windows) {
+            out.writeLong(window.from);
+            out.writeLong(window.to);
+            out.writeLong(window.fetchedAtMs);
+        }
+        out.writeInt(data.records.size());
+        for (Record record : data.records) {
+            out.writeLong(record.startTime);
+            out.writeLong(record.endTime);
+            out.writeInt(poolOut.size());
+            writeString(poolOut, record.assetId);
+            out.writeInt(poolOut.size());
+            writeString(poolOut, record.programId);
+        }
+        poolOut.flush();
+        out.writeInt(pool.size());
+        out.write(pool.toByteArray());
+        out.flush();
+
+        ByteArrayOutputStream section = new ByteArrayOutputStream();
+        DataOutputStream sectionOut = new DataOutputStream(section);
+        sectionOut.writeInt(4 + body.size());
+        sectionOut.write(body.toByteArray());
+        sectionOut.flush();
+        return section.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length > Short.MAX_VALUE) {
+            out.writeShort(-1);
+            return;
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private void open(File file) {
+        Mapping mapping = map(file);
+        synchronized (this) {
+            this.file = file;
+            this.sections.putAll(mapping.sections);
+            this.mapped = mapping.buffer;
+        }
+        this.opened = true;
+    }
+
+    /**
+     * Maps the snapshot file and indexes its channel sections (empty mapping if missing or invalid)
+     */
+    private static Mapping map(File file) {
+        Mapping mapping = new Mapping();
+        if (file == null || file.exists() == false) {
+            return mapping;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 12 || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                return mapping;
+            }
+            int count = buffer.getInt(8);
+            int offset = 12;
+            for (int i = 0; i < count; ++i) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || offset + length > buffer.limit()) {
+                    mapping.sections.clear();
+                    return mapping;
+                }
+                mapping.sections.put(readString(buffer, offset + 4), offset);
+                offset += length;
+            }
+            mapping.buffer = buffer;
+        }
+        catch (IOException e) {
+            Log.w(TAG, "EPG snapshot could not be loaded", e);
+            mapping.sections.clear();
+        }
+        finally {
+            if (raf != null) {
+                try {
+                    // The mapping stays valid after the file is closed
+                    raf.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return mapping;
+    }
+
+    private ChannelData getChannelData(String channelId) {
+        ChannelData data = this.dirty.get(channelId);
+        if (data != null) {
+            return data;
+        }
+        Integer offset = this.sections.get(channelId);
+        if (offset == null) {
+            return null;
+        }
+        data = new ChannelData();
+        data.updatedAtMs = readUpdatedAt(offset);
+        data.windows.addAll(readWindows(offset));
+        int count = this.mapped.getInt(getRecordsOffset(offset));
+        for (int i = 0; i < count; ++i) {
+            data.records.add(readRecord(offset, i));
+        }
+        return data;
+    }
+
+    private int getWindowsOffset(int offset) {
+        int idLength = this.mapped.getShort(offset + 4);
+        return offset + 4 + 2 + Math.max(0, idLength) + 8;
+    }
+
+    private long readUpdatedAt(int offset) {
+        return this.mapped.getLong(getWindowsOffset(offset) - 8);
+    }
+
+    private ArrayList<Window> readWindows(int offset) {
+        ArrayList<Window> windows = new ArrayList<>();
+        int windowsOffset = getWindowsOffset(offset);
+        int count = this.mapped.getInt(windowsOffset);
+        for (int i = 0; i < count; ++i) {
+            int position = windowsOffset + 4 + i * WINDOW_SIZE;
+            windows.add(new Window(this.mapped.getLong(position), this.mapped.getLong(position + 8), this.mapped.getLong(position + 16)));
+        }
+        return windows;
+    }
+
+    private int getRecordsOffset(int offset) {
+        int windowsOffset = getWindowsOffset(offset);
+        return windowsOffset + 4 + this.mapped.getInt(windowsOffset) * WINDOW_SIZE;
+    }
+
+    private Record readRecord(int offset, int index) {
+        int recordsOffset = getRecordsOffset(offset);
+        int count = this.mapped.getInt(recordsOffset);
+        int poolOffset = recordsOffset + 4 + count * RECORD_SIZE + 4;
+        int position = recordsOffset + 4 + index * RECORD_SIZE;
+        return new Record(this.mapped.getLong(position), this.mapped.getLong(position + 8),
+                readString(this.mapped, poolOffset + this.mapped.getInt(position + 16)),
+                readString(this.mapped, poolOffset + this.mapped.getInt(position + 20)));
+    }
+
+    private static String readString(ByteBuffer buffer, int position) {
+        int length = buffer.getShort(position);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + 2);
+        source.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static boolean isCovered(List<Window> windows, long timeMs, long nowMs, long maxAgeMs) {
+        for (Window window : windows) {
+            if (timeMs >= window.from && timeMs <= window.to && nowMs - window.fetchedAtMs <= maxAgeMs) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static EmpProgram toProgram(String channelId, Record record) {
+        EmpProgram program = new EmpProgram();
+        program.channelId = channelId;
+        program.assetId = record.assetId;
+        program.programId = record.programId;
+        program.startDateTime = new DateTime(record.startTime);
+        program.endDateTime = new DateTime(record.endTime);
+        return program;
+    }
+}
@@ -0,0 +1,86 @@
+package net.ericsson.emovs.playback.services;
+
+import net.ericsson.emovs.utilities.models.EmpProgram;
+
+import org.joda.time.DateTime;
+
+/**
+ * <p>
+ *     Start and end unix times of an EmpProgram, read once from its DateTime fields.
+ * </p>
+ * <p>
+ *     Containment and position checks on the hot paths (monitoring cycles, seeks, time bar updates) are plain long
+ *     arithmetic on this snapshot, so they do not allocate Duration/DateTime/Long objects on every call.
+ * </p>
+ */
+public final class ProgramInterval {
+    public final EmpProgram program;
+    public final long startTime;
+    public final long endTime;
+    private final DateTime startDateTime;
+    private final DateTime endDateTime;
+
+    private ProgramInterval(EmpProgram program) {
+        this.program = program;
+        this.startDateTime = program.startDateTime;
+        this.endDateTime = program.endDateTime;
+        this.startTime = program.startDateTime.getMillis();
+        this.endTime = program.endDateTime.getMillis();
+    }
+
+    /**
+     * @param program program to read the times from
+     * @return interval of the program or null if it has no start or end time
+     */
+    public static ProgramInterval of(EmpProgram program) {
+        if (program == null || program.startDateTime == null || program.endDateTime == null) {
+            return null;
+        }
+        return new ProgramInterval(program);
+    }
+
+    /**
+     * Returns the previous interval if it was built for the same program (and its times were not replaced since), so
+     * callers polling the current program (e.g. once per frame) only allocate when the program changes
+     *
+     * @param program program to read the times from
+     * @param previous interval returned by the previous call (can be null)
+     * @return interval of the program or null if it has no start or end time
+     */
+    public static ProgramInterval of(EmpProgram program, ProgramInterval previous) {
+        if (previous != null && previous.program == program && previous.isCurrent()) {
+            return previous;
+        }
+        return of(program);
+    }
+
+    /**
+     * @return false if the start or end time of the program was replaced since the interval was built
+     */
+    public boolean isCurrent() {
+        return this.program.startDateTime == this.startDateTime && this.program.endDateTime == this.endDateTime;
+    }
+
+    /**
+     * @param time unix time
+     * @return true if startTime &lt;= time &lt;= endTime
+     */
+    public boolean contains(long time) {
+        return time >= this.startTime && time <= this.endTime;
+    }
+
+    /**
+     * @return program duration in milliseconds
+     */
+    public long getDuration() {
+        return this.endTime - this.startTime;
+    }
+
+    /**
+     * @param time unix time
+     * @return offset of the time in the program, clamped to [0, duration]
+     */
+    public long getPosition(long time) {
+        return Math.max(0, Math.min(getDuration(), time - this.startTime));
+    }
+}
@@ -0,0 +1,102 @@
+package net.ericsson.emovs.playback.services;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *     Process-wide scheduler that runs the checks of every active ProgramService.
+ * </p>
+ * <p>
+ *     Each monitored session is a delayed task on a small shared executor, so starting or stopping the monitoring of a
+ *     playback is a queue operation instead of a thread, no matter how many players are alive.
+ * </p>
+ * <p>
+ *     It also holds the device-wide token bucket and circuit breaker that shape the EPG and entitlement requests sent by
+ *     the monitored sessions, so a backend outage does not turn into a retry storm from every player. Background requests
+ *     (seek window resolution) leave REQUEST_BUCKET_FOREGROUND_RESERVE tokens of the bucket to the boundary and seek checks.
+ * </p>
+ */
+public class ProgramMonitor {
+    private static final int POOL_SIZE = 2;
+    public static final int REQUEST_BUCKET_CAPACITY = 20;
+    public static final long REQUEST_BUCKET_REFILL_PERIOD_MS = 500L;
+    public static final int REQUEST_BUCKET_FOREGROUND_RESERVE = 10;
+    public static final int CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static final long CIRCUIT_BREAKER_OPEN_DURATION_MS = 30000L;
+
+    private static ProgramMonitor instance;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final AtomicInteger activeSessions;
+    private final TokenBucket requestBucket;
+    private final CircuitBreaker circuitBreaker;
+
+    public static synchronized ProgramMonitor getInstance() {
+        if (instance == null) {
+            instance = new ProgramMonitor();
+        }
+        return instance;
+    }
+
+    protected ProgramMonitor() {
+        this.activeSessions = new AtomicInteger(0);
+        this.requestBucket = new TokenBucket(REQUEST_BUCKET_CAPACITY, REQUEST_BUCKET_REFILL_PERIOD_MS);
+        this.circuitBreaker = new CircuitBreaker(CIRCUIT_BREAKER_FAILURE_THRESHOLD, CIRCUIT_BREAKER_OPEN_DURATION_MS);
+        this.executor = new ScheduledThreadPoolExecutor(POOL_SIZE, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ProgramMonitor-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules a check of a monitored session
+     *
+     * @param task check to run
+     * @param delayMs delay in milliseconds
+     * @return handle that cancels the check
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return this.executor.schedule(task, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return number of sessions being monitored
+     */
+    public int getActiveSessionCount() {
+        return this.activeSessions.get();
+    }
+
+    /**
+     * @return rate limiter shared by the EPG and entitlement requests of all sessions
+     */
+    public TokenBucket getRequestBucket() {
+        return this.requestBucket;
+    }
+
+    /**
+     * @return circuit breaker shared by the EPG and entitlement requests of all sessions
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return this.circuitBreaker;
+    }
+
+    void onSessionStarted() {
+        this.activeSessions.incrementAndGet();
+    }
+
+    void onSessionStopped() {
+        this.activeSessions.decrementAndGet();
+        // Cancelled checks are dropped from the queue instead of waiting for their deadline
+        this.executor.purge();
+    }
+}
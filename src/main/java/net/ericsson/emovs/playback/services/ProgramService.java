@@ -2,6 +2,8 @@ package net.ericsson.emovs.playback.services;
 
 import android.util.Log;
 
+import net.ericsson.emovs.playback.interfaces.IPlayheadSnapshotProvider;
+import net.ericsson.emovs.playback.scheduling.PlayheadSnapshot;
 import net.ericsson.emovs.utilities.errors.Warning;
 import net.ericsson.emovs.utilities.interfaces.IEntitledPlayer;
 import net.ericsson.emovs.utilities.interfaces.IMetadataCallback;
@@ -11,13 +13,12 @@ import net.ericsson.emovs.utilities.errors.Error;
 import net.ericsson.emovs.utilities.errors.ErrorCodes;
 import net.ericsson.emovs.utilities.errors.ErrorRunnable;
 import net.ericsson.emovs.utilities.models.EmpProgram;
-import net.ericsson.emovs.utilities.queries.EpgQueryParameters;
-
-import org.joda.time.DateTime;
-import org.joda.time.Duration;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * <p>
@@ -27,106 +28,217 @@ import java.util.Random;
  *     <ul>
  *         <li>Regular entitlement checks when live stream is playing</li>
  *         <li>Entitlement check when timeshiftDelay is changed</li>
- *         <li>FUZZY_ENTITLEMENT_MAX_DELAY can be set to tune a random fuzzy wait period between program change and entitlement check (useful to reduce load on server)</li>
+ *         <li>setEntitlementFuzzyMaxDelay() (process-wide default: FUZZY_ENTITLEMENT_MAX_DELAY) can be used to tune a random fuzzy wait period between program change and entitlement check (useful to reduce load on server)</li>
+ *         <li>Backing off (RetryPolicy) while the backend fails, and skipping requests when the device-wide token bucket is empty or the circuit breaker is open</li>
+ *         <li>Notifying a ProgramBoundaryListener a lead time before the current program ends (used to prefetch the next program)</li>
+ *         <li>Pre-checking the next program BOUNDARY_PREFETCH_LEAD_TIME (plus the fuzzy period) before the current one ends, and
+ *         dispatching PROGRAM_CHANGED together with its entitlement decision when the playhead crosses the program end</li>
+ *         <li>Resolving in the background the entitlement of every program in the seek window, so seeks are decided locally
+ *         and time bars can show the blocked regions (getEntitlementMap())</li>
  *     </ul>
  * </p>
+ * <p>
+ *     The checks run as scheduled tasks of the process-wide ProgramMonitor, not on a thread of their own. Instead of
+ *     polling, each check sleeps until the next relevant instant (program end, prefetch lead time, fuzzy pre-check)
+ *     computed from the playhead and the playback rate; poke() wakes the service early after seeks, pauses or rate changes.
+ * </p>
+ * <p>
+ *     Checks run off the playback thread: when the player publishes PlayheadSnapshots (IPlayheadSnapshotProvider) the
+ *     playhead and playback state are read from the latest snapshot instead of calling into the tech.
+ * </p>
  */
-public class ProgramService extends Thread {
+public class ProgramService {
     private static final String TAG = ProgramService.class.toString();
     public static final int LONG_WAIT_TIME = 1000;
     public static final int SHORT_WAIT_TIME = 1000;
     public static final int EPG_GAP_WAIT_TIME = 30000;
-    private static int FUZZY_ENTITLEMENT_MIN_MAX_DELAY = 30000;
-    public static int FUZZY_ENTITLEMENT_MAX_DELAY = FUZZY_ENTITLEMENT_MIN_MAX_DELAY;
+    public static final int MAX_WAIT_TIME = 300000;
+    public static final int BOUNDARY_PREFETCH_LEAD_TIME = 10000;
+    public static final int BOUNDARY_TIMER_SYNC_WINDOW = 2000;
+    public static final long SEEK_WINDOW_MAP_REFRESH_TIME = 10 * 60 * 1000L;
+    public static final long SEEK_WINDOW_DECISION_TTL = 30 * 60 * 1000L;
+    public static final int SEEK_WINDOW_MAX_PROGRAMS = 48;
+    public static final int DEFAULT_FUZZY_ENTITLEMENT_MAX_DELAY = 30000;
+    private static final int FUZZY_ENTITLEMENT_MIN_MAX_DELAY = 30000;
+    /**
+     * Process-wide default of the fuzzy delay, read when a ProgramService is created. PlaybackProperties.withEntitlementFuzzyMaxDelay()
+     * overrides it per playback.
+     *
+     * @deprecated use {@link net.ericsson.emovs.playback.PlaybackProperties#withEntitlementFuzzyMaxDelay(int)}
+     */
+    @Deprecated
+    public static int FUZZY_ENTITLEMENT_MAX_DELAY = DEFAULT_FUZZY_ENTITLEMENT_MAX_DELAY;
 
     protected Entitlement entitlement;
     protected IEntitledPlayer player;
     protected EmpProgram currentProgram;
+    protected volatile ProgramInterval currentInterval;
     protected Random randomizer = new Random(System.currentTimeMillis());
-    protected EntitlementCheckCache eeCache;
+    protected EntitlementIntervalCache eeCache;
+    protected ProgramBoundaryListener boundaryListener;
+    protected long boundaryLeadTimeMs;
+    protected EmpProgram notifiedProgram;
+    protected int fuzzyEntitlementMaxDelay = FUZZY_ENTITLEMENT_MAX_DELAY;
+    protected RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+    protected final ProgramMonitor monitor;
+    protected TokenBucket requestBucket;
+    protected CircuitBreaker circuitBreaker;
+
+    private static final long STOP_MONITORING = -1;
+    private boolean running;
+    private boolean firstCycle;
+    private boolean epgGapWaitDone;
+    private int checkGeneration;
+    private volatile float playbackRate = 1.0f;
+    private volatile int consecutiveFailures;
+    private long nextSeekWindowMapRefresh;
+    private final Object checkLock = new Object();
+    private ScheduledFuture<?> nextCheck;
+    private final Runnable checkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runCheck();
+        }
+    };
+
+    /**
+     * Listener notified when the current program is about to end
+     */
+    public interface ProgramBoundaryListener {
+        /**
+         * @param program program that is about to end
+         */
+        void onProgramEnding(EmpProgram program);
+    }
 
     public ProgramService(IEntitledPlayer player, Entitlement entitlement, EmpProgram initialProgram) {
+        this(player, entitlement, initialProgram, ProgramMonitor.getInstance());
+    }
+
+    /**
+     * @param player player being monitored
+     * @param entitlement entitlement of the playback
+     * @param initialProgram program being played (can be null)
+     * @param monitor scheduler of the checks (e.g. a virtual clock scheduler in simulations)
+     */
+    public ProgramService(IEntitledPlayer player, Entitlement entitlement, EmpProgram initialProgram, ProgramMonitor monitor) {
+        this.monitor = monitor;
+        this.requestBucket = monitor.getRequestBucket();
+        this.circuitBreaker = monitor.getCircuitBreaker();
         this.player = player;
         this.entitlement = entitlement;
         if (initialProgram != null && initialProgram.startDateTime != null && initialProgram.endDateTime != null) {
-            this.currentProgram = initialProgram;
+            setCurrentProgram(initialProgram);
         }
-        eeCache = new EntitlementCheckCache();
+        eeCache = new EntitlementIntervalCache(player);
     }
 
     public EmpProgram getCurrentProgram() {
         return this.currentProgram;
     }
 
+    /**
+     * @return start/end times of the current program, or null if there is no current program
+     */
+    public ProgramInterval getCurrentProgramInterval() {
+        // Revalidated on read: EPG updates can replace the times of the current program in place
+        ProgramInterval interval = ProgramInterval.of(this.currentProgram, this.currentInterval);
+        this.currentInterval = interval;
+        return interval;
+    }
+
+    protected void setCurrentProgram(EmpProgram program) {
+        this.currentInterval = ProgramInterval.of(program, this.currentInterval);
+        this.currentProgram = program;
+    }
+
+    /**
+     * Makes the program current, dispatching PROGRAM_CHANGED if it is not the current one (also when there is none,
+     * e.g. after a gap in the EPG). Cached and freshly checked decisions both go through here.
+     */
+    protected void changeProgram(EmpProgram program) {
+        EmpProgram previousProgram = this.currentProgram;
+        if (previousProgram != null && program.assetId.equals(previousProgram.assetId)) {
+            return;
+        }
+        if (player != null) {
+            player.trigger(IPlaybackEventListener.EventId.PROGRAM_CHANGED, program);
+        }
+        setCurrentProgram(program);
+    }
+
+    /**
+     * Sets a listener that is notified once per program when the playhead gets within leadTimeMs of the program end
+     *
+     * @param leadTimeMs time before the program end at which the listener is notified
+     * @param listener listener to notify (null to remove)
+     */
+    public void setProgramBoundaryListener(long leadTimeMs, ProgramBoundaryListener listener) {
+        this.boundaryLeadTimeMs = leadTimeMs;
+        this.boundaryListener = listener;
+    }
+
+    protected void notifyProgramEnding(long playheadTime) {
+        ProgramInterval interval = getCurrentProgramInterval();
+        ProgramBoundaryListener listener = this.boundaryListener;
+        if (listener == null || interval == null || interval.program == this.notifiedProgram) {
+            return;
+        }
+        EmpProgram program = interval.program;
+        long timeToEnd = interval.endTime - playheadTime;
+        if (timeToEnd >= 0 && timeToEnd <= this.boundaryLeadTimeMs) {
+            this.notifiedProgram = program;
+            listener.onProgramEnding(program);
+        }
+    }
+
     public void isEntitled(final long timeToCheck, final Runnable onAllowed, final ErrorRunnable onForbidden, boolean updateCurrentProgram) {
-        if (currentProgram == null) {
-            checkTimeshiftAllowance(timeToCheck, onAllowed, onForbidden, updateCurrentProgram, false);
+        ProgramInterval interval = getCurrentProgramInterval();
+        if (interval != null && interval.contains(timeToCheck)) {
+            if (onAllowed != null) {
+                onAllowed.run();
+            }
         }
         else {
-            Duration dStart = new Duration(currentProgram.startDateTime, new DateTime(timeToCheck));
-            Duration dEnd = new Duration(currentProgram.endDateTime, new DateTime(timeToCheck));
-            if (dStart.getMillis() >= 0 && dEnd.getMillis() <= 0) {
-                if (onAllowed != null) {
-                    onAllowed.run();
-                }
-            }
-            else {
-                checkTimeshiftAllowance(timeToCheck, onAllowed, onForbidden, updateCurrentProgram, false);
-            }
+            checkTimeshiftAllowance(timeToCheck, onAllowed, onForbidden, updateCurrentProgram, false);
         }
     }
 
     public void checkTimeshiftAllowance(final long timeToCheck, final Runnable onAllowed, final ErrorRunnable onForbidden, final boolean updateProgram, final boolean shouldCacheOutcome) {
-        // Check if entitlement check was done already and cached
-        Boolean isAllowed = eeCache.isTimeAllowed(timeToCheck);
-        if (isAllowed != null) {
-            if (isAllowed == true) {
+        // Check if the time falls in an interval that was already checked
+        EntitlementIntervalCache.Decision decision = eeCache.lookup(timeToCheck);
+        if (decision != null) {
+            if (decision.isAllowed) {
                 if (onAllowed != null) {
                     onAllowed.run();
                 }
-                if (updateProgram) {
-                    if (shouldCacheOutcome) {
-                        // Should not happen!
+                if (updateProgram && shouldCacheOutcome == false) {
+                    if (decision.program != null) {
+                        changeProgram(decision.program);
                     }
-                    else {
-                        if (player != null && eeCache.getProgram() != null) {
-                            player.trigger(IPlaybackEventListener.EventId.PROGRAM_CHANGED, eeCache.getProgram());
-                        }
-                        currentProgram = eeCache.getProgram();
+                    if (decision.gapInEpg) {
+                        player.trigger(IPlaybackEventListener.EventId.WARNING, Warning.PROGRAM_SERVICE_GAPS_IN_EPG_OR_NO_EPG);
+                        setCurrentProgram(null);
+                    }
+                    if (decision.checkNotPossible) {
+                        player.trigger(IPlaybackEventListener.EventId.WARNING, Warning.PROGRAM_SERVICE_ENTITLEMENT_CHECK_NOT_POSSIBLE);
                     }
-                }
-                if (eeCache.hasGapInEpg()) {
-                    player.trigger(IPlaybackEventListener.EventId.WARNING, Warning.PROGRAM_SERVICE_GAPS_IN_EPG_OR_NO_EPG);
-                    currentProgram = null;
-                }
-                if (eeCache.isCheckNotPossible()) {
-                    player.trigger(IPlaybackEventListener.EventId.WARNING, Warning.PROGRAM_SERVICE_ENTITLEMENT_CHECK_NOT_POSSIBLE);
                 }
             }
             else if (onForbidden != null) {
                 onForbidden.run(ErrorCodes.PLAYBACK_NOT_ENTITLED, "USER_NOT_ENTITLED");
             }
-            eeCache.clear();
             return;
         }
-        EpgQueryParameters epgParams = new EpgQueryParameters();
-        epgParams.setFutureTimeFrame(0);
-        epgParams.setPastTimeFrame(0);
-        epgParams.setPageSize(5);
-
-        if (currentProgram != null) {
-            Duration dStart = new Duration(currentProgram.startDateTime, new DateTime(timeToCheck));
-            Duration dEnd = new Duration(currentProgram.endDateTime, new DateTime(timeToCheck));
-
-            if (dStart.getMillis() >= 0 && dEnd.getMillis() <= 0) {
-                if (onAllowed != null) {
-                    onAllowed.run();
-                }
-                return;
+        ProgramInterval interval = getCurrentProgramInterval();
+        if (interval != null && interval.contains(timeToCheck)) {
+            if (onAllowed != null) {
+                onAllowed.run();
             }
+            return;
         }
 
-        player.getMetadataProvider().getEpgWithTime(this.entitlement.channelId, timeToCheck, new IMetadataCallback<ArrayList<EmpProgram>>() {
+        final IMetadataCallback<ArrayList<EmpProgram>> onPrograms = new IMetadataCallback<ArrayList<EmpProgram>>() {
             @Override
             public void onMetadata(ArrayList<EmpProgram> programs) {
                 if(programs != null) {
@@ -136,26 +248,38 @@ public class ProgramService extends Thread {
                             continue;
                         }
                         if (updateProgram == false || currentProgram == null || program.assetId.equals(currentProgram.assetId) == false) {
-                            player.getEntitlementProvider().isEntitledAsync(program.assetId, new Runnable() {
+                            if (acquireBackendPermit() == false) {
+                                onCheckNotPossible(timeToCheck, onAllowed, shouldCacheOutcome);
+                                return;
+                            }
+                            SharedEntitlementCache.getInstance().isEntitledAsync(player.getEntitlementProvider(), program.assetId, new Runnable() {
                                 @Override
                                 public void run() {
+                                    onBackendSuccess();
+                                    eeCache.register(program, true);
                                     if (onAllowed != null) {
                                         onAllowed.run();
                                     }
 
-                                    if (updateProgram) {
-                                        if (shouldCacheOutcome) {
-                                            eeCache.registerProgramChanged(program);
-                                        }
-                                        else {
-                                            if (player != null && currentProgram != null) {
-                                                player.trigger(IPlaybackEventListener.EventId.PROGRAM_CHANGED, program);
-                                            }
-                                            currentProgram = program;
-                                        }
+                                    if (updateProgram && shouldCacheOutcome == false) {
+                                        changeProgram(program);
+                                    }
+                                }
+                            }, new ErrorRunnable() {
+                                @Override
+                                public void run(int errorCode, String errorMessage) {
+                                    if (errorCode == ErrorCodes.PLAYBACK_NOT_ENTITLED) {
+                                        onBackendSuccess();
+                                        eeCache.register(program, false);
+                                    }
+                                    else {
+                                        onBackendFailure();
+                                    }
+                                    if (onForbidden != null) {
+                                        onForbidden.run(errorCode, errorMessage);
                                     }
                                 }
-                            }, onForbidden);
+                            });
                         }
                         else if (onAllowed != null) {
                             onAllowed.run();
@@ -165,11 +289,11 @@ public class ProgramService extends Thread {
                 }
                 if (programs == null || programs.size() == 0) {
                     if (shouldCacheOutcome) {
-                        eeCache.registerGapInEpg();
+                        eeCache.registerGapInEpg(timeToCheck);
                     }
                     else {
                         player.trigger(IPlaybackEventListener.EventId.WARNING, Warning.PROGRAM_SERVICE_GAPS_IN_EPG_OR_NO_EPG);
-                        currentProgram = null;
+                        setCurrentProgram(null);
                     }
                 }
                 if (onAllowed != null) {
@@ -179,174 +303,459 @@ public class ProgramService extends Thread {
 
             @Override
             public void onError(final Error error) {
-                if (onAllowed != null) {
-                    onAllowed.run();
-                }
-                if (player != null) {
-                    if (shouldCacheOutcome) {
-                        eeCache.registerCheckNotPossible();
-                    }
-                    else {
-                        player.trigger(IPlaybackEventListener.EventId.WARNING, Warning.PROGRAM_SERVICE_ENTITLEMENT_CHECK_NOT_POSSIBLE);
-                    }
-                }
+                onBackendFailure();
+                onCheckNotPossible(timeToCheck, onAllowed, shouldCacheOutcome);
             }
-        }, epgParams);
-    }
+        };
 
-    public void run () {
-        boolean firstCycle = true;
-        for(;;) {
-            try {
-                int fuzzySleep = 0;
-                if (FUZZY_ENTITLEMENT_MAX_DELAY > 0) {
-                    fuzzySleep = randomizer.nextInt(FUZZY_ENTITLEMENT_MAX_DELAY);
-                }
+        EpgCache epgCache = getEpgCache();
+        ArrayList<EmpProgram> cachedPrograms = epgCache.getCachedProgramsAt(this.entitlement.channelId, timeToCheck);
+        if (cachedPrograms != null) {
+            onPrograms.onMetadata(cachedPrograms);
+            return;
+        }
 
-                if (this.player == null || this.entitlement == null || this.entitlement.channelId == null) {
-                    return;
-                }
+        if (acquireBackendPermit() == false) {
+            onCheckNotPossible(timeToCheck, onAllowed, shouldCacheOutcome);
+            return;
+        }
 
-                if (this.entitlement.isUnifiedStream == false) {
-                    return;
-                }
+        epgCache.getProgramsAt(this.entitlement.channelId, timeToCheck, new IMetadataCallback<ArrayList<EmpProgram>>() {
+            @Override
+            public void onMetadata(ArrayList<EmpProgram> programs) {
+                onBackendSuccess();
+                onPrograms.onMetadata(programs);
+            }
 
-                if (this.player.isPlaying()) {
-                    // If gap in EPG then wait a bit longer
-                    if (firstCycle == false && this.currentProgram == null) {
-                        Thread.sleep(EPG_GAP_WAIT_TIME);
-                    }
-                    firstCycle = false;
+            @Override
+            public void onError(Error error) {
+                onPrograms.onError(error);
+            }
+        });
+    }
 
-                    final long playheadTime = this.player.getPlayheadTime();
-                    Log.d("PlaybackCurrentTime", Long.toString(playheadTime));
-                    checkTimeshiftAllowance(playheadTime, null, new ErrorRunnable() {
-                        @Override
-                        public void run(int code, final String message) {
-                            player.runOnUiThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    currentProgram = null;
-                                    player.fail(ErrorCodes.PLAYBACK_NOT_ENTITLED, message);
-                                    player.stop();
-                                }
-                            });
-                        }
-                    }, true, false);
-                    if (FUZZY_ENTITLEMENT_MAX_DELAY > 0 &&
-                            this.currentProgram != null &&
-                            this.currentProgram.endDateTime != null) {
-                        final long futureTimeCheck = this.currentProgram.endDateTime.getMillis() + 1;
-                        long timeToEnd = futureTimeCheck - playheadTime;
-                        if (timeToEnd >= 0 && timeToEnd <= fuzzySleep) {
-                            checkTimeshiftAllowance(futureTimeCheck, new Runnable() {
-                                @Override
-                                public void run() {
-                                    eeCache.register(playheadTime, futureTimeCheck, true);
-                                }
-                            }, new ErrorRunnable() {
-                                @Override
-                                public void run(int code, final String message) {
-                                    eeCache.register(playheadTime, futureTimeCheck, false);
-                                }
-                            }, true, true);
-                            Thread.sleep(timeToEnd);
-                        }
-                    }
-                    Thread.sleep(LONG_WAIT_TIME);
-                }
-                else {
-                    Thread.sleep(SHORT_WAIT_TIME);
-                }
+    private void onCheckNotPossible(long timeToCheck, Runnable onAllowed, boolean shouldCacheOutcome) {
+        if (onAllowed != null) {
+            onAllowed.run();
+        }
+        if (player != null) {
+            if (shouldCacheOutcome) {
+                eeCache.registerCheckNotPossible(timeToCheck);
             }
-            catch (InterruptedException e) {
-                Log.d(TAG, "Program service interrupted.");
-                break;
+            else {
+                player.trigger(IPlaybackEventListener.EventId.WARNING, Warning.PROGRAM_SERVICE_ENTITLEMENT_CHECK_NOT_POSSIBLE);
             }
         }
     }
 
-    public static void setEntitlementFuzzyMaxDelay(int delay) {
-        if (delay < FUZZY_ENTITLEMENT_MIN_MAX_DELAY) {
-            FUZZY_ENTITLEMENT_MAX_DELAY = FUZZY_ENTITLEMENT_MIN_MAX_DELAY;
+    private boolean acquireBackendPermit() {
+        return circuitBreaker.allowRequest() && requestBucket.tryAcquire();
+    }
+
+    private boolean acquireBackgroundPermit() {
+        return circuitBreaker.allowRequest() && requestBucket.tryAcquire(ProgramMonitor.REQUEST_BUCKET_FOREGROUND_RESERVE);
+    }
+
+    private void onBackendSuccess() {
+        this.consecutiveFailures = 0;
+        circuitBreaker.onSuccess();
+    }
+
+    private void onBackendFailure() {
+        this.consecutiveFailures++;
+        circuitBreaker.onFailure();
+    }
+
+    /**
+     * Starts monitoring the playback (no-op if already started)
+     */
+    public void start() {
+        synchronized (this) {
+            if (this.running) {
+                return;
+            }
+            this.running = true;
+            this.firstCycle = true;
+            this.epgGapWaitDone = false;
+            this.checkGeneration++;
         }
-        else {
-            FUZZY_ENTITLEMENT_MAX_DELAY = delay;
+        this.monitor.onSessionStarted();
+        if (this.player instanceof IPlayheadSnapshotProvider) {
+            ((IPlayheadSnapshotProvider) this.player).addPlayheadConsumer();
         }
+        scheduleCheck(0, this.checkGeneration);
     }
 
-    public class EntitlementCheckCache {
-        protected Long playheadToDeny;
-        protected Long whenWasDenied;
-        protected Long denyTimeValidity;
-        protected Boolean isAllowed;
-        protected EmpProgram program;
-        protected Boolean gapInEpg;
-        protected Boolean checkNotPossible;
+    /**
+     * Wakes the service up to check the playhead right away (to be called after seeks, pauses, resumes or rate changes)
+     */
+    public void poke() {
+        int generation;
+        synchronized (this) {
+            if (this.running == false) {
+                return;
+            }
+            if (this.nextCheck != null) {
+                this.nextCheck.cancel(false);
+                this.nextCheck = null;
+            }
+            generation = ++this.checkGeneration;
+        }
+        scheduleCheck(0, generation);
+    }
 
-        public EntitlementCheckCache() {
+    /**
+     * Sets the playback rate used to turn media time until the next boundary into wall clock time
+     *
+     * @param rate playback rate (1.0 is normal speed)
+     */
+    public void setPlaybackRate(float rate) {
+        this.playbackRate = rate;
+        poke();
+    }
 
+    /**
+     * Stops monitoring the playback
+     */
+    public void interrupt() {
+        synchronized (this) {
+            if (this.running == false) {
+                return;
+            }
+            this.running = false;
+            if (this.nextCheck != null) {
+                this.nextCheck.cancel(false);
+                this.nextCheck = null;
+            }
         }
-
-        public void clear(){
-            this.playheadToDeny = null;
-            this.whenWasDenied = null;
-            this.denyTimeValidity = null;
-            this.isAllowed = null;
-            this.program = null;
-            this.gapInEpg = null;
-            this.checkNotPossible = null;
+        Log.d(TAG, "Program service interrupted.");
+        this.monitor.onSessionStopped();
+        if (this.player instanceof IPlayheadSnapshotProvider) {
+            ((IPlayheadSnapshotProvider) this.player).removePlayheadConsumer();
         }
+    }
+
+    /**
+     * @return true if the playback is being monitored
+     */
+    public synchronized boolean isRunning() {
+        return this.running;
+    }
 
-        public void register(long playheadFromDeny, long playheadToDeny, boolean isAllowed) {
-            if (player == null) {
-                clear();
+    private void runCheck() {
+        int generation;
+        synchronized (this) {
+            if (this.running == false) {
                 return;
             }
-            this.playheadToDeny = playheadToDeny;
-            this.whenWasDenied = player.getServerTime();
-            this.denyTimeValidity = playheadToDeny - playheadFromDeny;
-            this.isAllowed = isAllowed;
+            this.nextCheck = null;
+            generation = this.checkGeneration;
         }
+        long delayMs;
+        synchronized (checkLock) {
+            try {
+                delayMs = check();
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+                delayMs = LONG_WAIT_TIME;
+            }
+        }
+        if (delayMs == STOP_MONITORING) {
+            interrupt();
+            return;
+        }
+        scheduleCheck(delayMs, generation);
+    }
 
-        public void registerCheckNotPossible() {
-            this.checkNotPossible = true;
+    private synchronized void scheduleCheck(long delayMs, int generation) {
+        // A poke() during the check already scheduled a newer one
+        if (this.running && generation == this.checkGeneration) {
+            this.nextCheck = this.monitor.schedule(checkRunnable, delayMs);
         }
+    }
 
-        public boolean isCheckNotPossible() {
-            return this.checkNotPossible != null && this.checkNotPossible == true;
+    /**
+     * Runs a single monitoring cycle
+     *
+     * @return delay in milliseconds until the next cycle, or STOP_MONITORING
+     */
+    protected long check() {
+        int fuzzySleep = 0;
+        int fuzzyMaxDelay = this.fuzzyEntitlementMaxDelay;
+        if (fuzzyMaxDelay > 0) {
+            fuzzySleep = randomizer.nextInt(fuzzyMaxDelay);
         }
 
-        public void registerProgramChanged(EmpProgram newProgram) {
-            program = newProgram;
+        if (this.player == null || this.entitlement == null || this.entitlement.channelId == null) {
+            return STOP_MONITORING;
         }
 
-        public void registerGapInEpg() {
-            gapInEpg = true;
+        if (this.entitlement.isUnifiedStream == false) {
+            return STOP_MONITORING;
         }
 
-        public boolean hasGapInEpg() {
-            return gapInEpg != null && gapInEpg == true;
+        PlayheadSnapshot snapshot = getPlayheadSnapshot();
+        boolean isPlaying = snapshot != null ? snapshot.isPlaying : this.player.isPlaying();
+        if (isPlaying == false) {
+            return SHORT_WAIT_TIME;
         }
 
-        public EmpProgram getProgram() {
-            return program;
+        // If gap in EPG then wait a bit longer
+        if (firstCycle == false && this.currentProgram == null && epgGapWaitDone == false) {
+            epgGapWaitDone = true;
+            return EPG_GAP_WAIT_TIME;
         }
+        epgGapWaitDone = false;
+        firstCycle = false;
 
-        public Boolean isTimeAllowed(long playheadTime) {
-            if (player == null || playheadToDeny == null || whenWasDenied == null || denyTimeValidity == null || isAllowed == null) {
-                clear();
-                return null;
+        final long playheadTime = snapshot != null ? snapshot.getPlayheadTimeAt(this.player.getServerTime()) : this.player.getPlayheadTime();
+        checkTimeshiftAllowance(playheadTime, null, new ErrorRunnable() {
+            @Override
+            public void run(int code, final String message) {
+                player.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        setCurrentProgram(null);
+                        player.fail(ErrorCodes.PLAYBACK_NOT_ENTITLED, message);
+                        player.stop();
+                    }
+                });
             }
-            long nowMs = player.getServerTime();
-            if (nowMs - this.whenWasDenied > 2 * this.denyTimeValidity) {
-                clear();
-                return null;
+        }, true, false);
+        notifyProgramEnding(playheadTime);
+        long serverTime = this.player.getServerTime();
+        if (serverTime >= this.nextSeekWindowMapRefresh) {
+            this.nextSeekWindowMapRefresh = serverTime + SEEK_WINDOW_MAP_REFRESH_TIME;
+            refreshSeekWindowMap(playheadTime);
+        }
+        ProgramInterval interval = getCurrentProgramInterval();
+        if (interval != null) {
+            final long futureTimeCheck = interval.endTime + 1;
+            long timeToEnd = futureTimeCheck - playheadTime;
+            if (timeToEnd >= 0 && timeToEnd <= fuzzySleep + BOUNDARY_PREFETCH_LEAD_TIME) {
+                // Outcome lands in eeCache: the boundary check switches program and applies the decision without a round trip
+                checkTimeshiftAllowance(futureTimeCheck, null, null, true, true);
             }
-            if (playheadTime >= this.playheadToDeny && playheadTime <= this.playheadToDeny + this.denyTimeValidity) {
-                return this.isAllowed;
+        }
+        return getNextCheckDelay(playheadTime, fuzzySleep);
+    }
+
+    /**
+     * @return entitled/blocked program intervals known for the current seek window, sorted by start time
+     */
+    public ArrayList<EntitlementIntervalCache.Decision> getEntitlementMap() {
+        long[] range = this.player != null ? getSeekTimeRange() : null;
+        if (range == null || range.length < 2) {
+            return new ArrayList<>();
+        }
+        return eeCache.getProgramDecisions(range[0], range[1]);
+    }
+
+    /**
+     * Fetches the EPG of the seek window (through EpgCache) and checks the entitlement of the programs without a cached decision
+     * (closest to the playhead first), so seeks in the window are decided by eeCache without a round trip. These are
+     * background requests: they never take the tokens reserved to the boundary and seek checks
+     *
+     * @param playheadTime current playhead time
+     */
+    protected void refreshSeekWindowMap(final long playheadTime) {
+        final long[] range = getSeekTimeRange();
+        if (range == null || range.length < 2 || range[1] <= range[0]) {
+            return;
+        }
+
+        final IMetadataCallback<ArrayList<EmpProgram>> onPrograms = new IMetadataCallback<ArrayList<EmpProgram>>() {
+            @Override
+            public void onMetadata(ArrayList<EmpProgram> programs) {
+                if (programs == null) {
+                    return;
+                }
+                ArrayList<EmpProgram> unresolved = new ArrayList<>();
+                for (EmpProgram program : programs) {
+                    ProgramInterval interval = ProgramInterval.of(program);
+                    if (interval == null || interval.endTime < range[0] || interval.startTime > range[1]) {
+                        continue;
+                    }
+                    EntitlementIntervalCache.Decision decision = eeCache.lookup(interval.startTime);
+                    if (decision == null || decision.program == null || program.assetId.equals(decision.program.assetId) == false) {
+                        unresolved.add(program);
+                    }
+                }
+                Collections.sort(unresolved, new Comparator<EmpProgram>() {
+                    @Override
+                    public int compare(EmpProgram a, EmpProgram b) {
+                        long distanceA = distanceToProgram(a, playheadTime);
+                        long distanceB = distanceToProgram(b, playheadTime);
+                        return distanceA < distanceB ? -1 : (distanceA == distanceB ? 0 : 1);
+                    }
+                });
+                if (unresolved.size() > SEEK_WINDOW_MAX_PROGRAMS) {
+                    unresolved.subList(SEEK_WINDOW_MAX_PROGRAMS, unresolved.size()).clear();
+                }
+                for (final EmpProgram program : unresolved) {
+                    if (acquireBackgroundPermit() == false) {
+                        // Remaining programs are resolved by the next refresh (or on demand when seeking)
+                        break;
+                    }
+                    SharedEntitlementCache.getInstance().isEntitledAsync(player.getEntitlementProvider(), program.assetId, new Runnable() {
+                        @Override
+                        public void run() {
+                            onBackendSuccess();
+                            eeCache.register(program, true, SEEK_WINDOW_DECISION_TTL);
+                        }
+                    }, new ErrorRunnable() {
+                        @Override
+                        public void run(int errorCode, String errorMessage) {
+                            if (errorCode == ErrorCodes.PLAYBACK_NOT_ENTITLED) {
+                                onBackendSuccess();
+                                eeCache.register(program, false, SEEK_WINDOW_DECISION_TTL);
+                            }
+                            else {
+                                onBackendFailure();
+                            }
+                        }
+                    });
+                }
+            }
+
+            @Override
+            public void onError(Error error) {
+                onBackendFailure();
+            }
+        };
+
+        // Through the EPG cache: the window is shared with the boundary checks and seeks (cached or in flight)
+        // and written back to the snapshot, so seeks in it are then resolved from memory
+        EpgCache epgCache = getEpgCache();
+        ArrayList<EmpProgram> cachedPrograms = epgCache.getCachedPrograms(this.entitlement.channelId, range[0], range[1]);
+        if (cachedPrograms != null) {
+            onPrograms.onMetadata(cachedPrograms);
+            return;
+        }
+
+        if (acquireBackgroundPermit() == false) {
+            return;
+        }
+
+        epgCache.getPrograms(this.entitlement.channelId, range[0], range[1], new IMetadataCallback<ArrayList<EmpProgram>>() {
+            @Override
+            public void onMetadata(ArrayList<EmpProgram> programs) {
+                onBackendSuccess();
+                onPrograms.onMetadata(programs);
+            }
+
+            @Override
+            public void onError(Error error) {
+                onPrograms.onError(error);
+            }
+        });
+    }
+
+    private static long distanceToProgram(EmpProgram program, long time) {
+        long start = program.startDateTime.getMillis();
+        long end = program.endDateTime.getMillis();
+        if (time < start) {
+            return start - time;
+        }
+        return time > end ? time - end : 0;
+    }
+
+    /**
+     * Computes the wall clock delay until the next instant where the playhead crosses something relevant:
+     * the program end, the boundary listener lead time or the pre-check of the next program.
+     * Far from the program end the service wakes up BOUNDARY_TIMER_SYNC_WINDOW earlier to re-read the playhead,
+     * so that the last sleep is short and PROGRAM_CHANGED is dispatched when the playhead crosses the end
+     *
+     * @param playheadTime current playhead time
+     * @param fuzzySleep fuzzy period before the program end at which the next program is pre-checked
+     * @return delay in milliseconds
+     */
+    protected long getNextCheckDelay(long playheadTime, int fuzzySleep) {
+        ProgramInterval interval = getCurrentProgramInterval();
+        if (interval == null) {
+            return getRetryDelay();
+        }
+        float rate = this.playbackRate;
+        PlayheadSnapshot snapshot = getPlayheadSnapshot();
+        boolean isPaused = snapshot != null ? snapshot.isPaused : this.player.isPaused();
+        if (isPaused || rate <= 0) {
+            // Playhead does not move: poke() wakes the service on resume
+            return MAX_WAIT_TIME;
+        }
+        long endTime = interval.endTime + 1;
+        long mediaDelay = endTime - playheadTime;
+        if (mediaDelay > BOUNDARY_TIMER_SYNC_WINDOW) {
+            mediaDelay -= BOUNDARY_TIMER_SYNC_WINDOW;
+        }
+        if (this.boundaryListener != null && this.notifiedProgram != interval.program) {
+            long leadDelay = endTime - this.boundaryLeadTimeMs - playheadTime;
+            if (leadDelay > 0) {
+                mediaDelay = Math.min(mediaDelay, leadDelay);
             }
-            return null;
         }
+        long prefetchDelay = endTime - fuzzySleep - BOUNDARY_PREFETCH_LEAD_TIME - playheadTime;
+        if (prefetchDelay > 0) {
+            mediaDelay = Math.min(mediaDelay, prefetchDelay);
+        }
+        if (mediaDelay <= 0) {
+            // Boundary already crossed but the next program is not known yet
+            return getRetryDelay();
+        }
+        return Math.min(MAX_WAIT_TIME, (long) Math.ceil(mediaDelay / rate));
+    }
+
+    /**
+     * @return EPG cache of the metadata provider of the player
+     */
+    protected EpgCache getEpgCache() {
+        return EpgCache.getInstance(this.player.getMetadataProvider());
+    }
+
+    /**
+     * @return latest playhead state published by the player, or null if the player does not publish snapshots
+     */
+    protected PlayheadSnapshot getPlayheadSnapshot() {
+        if (this.player instanceof IPlayheadSnapshotProvider) {
+            return ((IPlayheadSnapshotProvider) this.player).getPlayheadSnapshot();
+        }
+        return null;
+    }
+
+    private long[] getSeekTimeRange() {
+        PlayheadSnapshot snapshot = getPlayheadSnapshot();
+        return snapshot != null ? snapshot.getSeekTimeRange() : this.player.getSeekTimeRange();
+    }
+
+    /**
+     * @return LONG_WAIT_TIME, or the backoff delay of the retry policy while the backend is failing
+     */
+    protected long getRetryDelay() {
+        int failures = this.consecutiveFailures;
+        if (failures <= 0 || this.retryPolicy == null) {
+            return LONG_WAIT_TIME;
+        }
+        return Math.max(LONG_WAIT_TIME, Math.min(MAX_WAIT_TIME, this.retryPolicy.getDelay(failures, randomizer)));
+    }
+
+    /**
+     * Sets the max random wait period between a program change and the entitlement check of the next program
+     *
+     * @param delay max delay in milliseconds (0 disables the fuzzy pre-check, other values below 30s are raised to 30s)
+     */
+    public void setEntitlementFuzzyMaxDelay(int delay) {
+        if (delay <= 0) {
+            this.fuzzyEntitlementMaxDelay = 0;
+        }
+        else {
+            this.fuzzyEntitlementMaxDelay = Math.max(delay, FUZZY_ENTITLEMENT_MIN_MAX_DELAY);
+        }
+    }
+
+    /**
+     * @param retryPolicy backoff applied between checks while the backend is failing
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
     }
 }
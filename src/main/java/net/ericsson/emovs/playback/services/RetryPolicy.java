@@ -0,0 +1,60 @@
+package net.ericsson.emovs.playback.services;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * <p>
+ *     Exponential backoff with jitter used by ProgramService to space out retries while the backend is failing.
+ * </p>
+ * <p>
+ *     The n-th consecutive failure waits baseDelayMs * multiplier^(n-1), capped at maxDelayMs. A random share of that
+ *     delay (up to jitter, 0..1) is removed so that devices that failed at the same program boundary do not retry in sync.
+ * </p>
+ */
+public class RetryPolicy implements Serializable {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(1000L, 60000L, 2.0, 0.5);
+
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final double multiplier;
+    private final double jitter;
+
+    /**
+     * @param baseDelayMs delay after the first failure
+     * @param maxDelayMs upper bound of the delay
+     * @param multiplier growth factor between consecutive failures (&gt;= 1)
+     * @param jitter share of the delay that is randomized (0 for none, 1 for full jitter)
+     */
+    public RetryPolicy(long baseDelayMs, long maxDelayMs, double multiplier, double jitter) {
+        this.baseDelayMs = Math.max(0, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.multiplier = Math.max(1.0, multiplier);
+        this.jitter = Math.max(0.0, Math.min(1.0, jitter));
+    }
+
+    /**
+     * @param failures number of consecutive failures (1 for the first one)
+     * @param random source of the jitter
+     * @return delay in milliseconds before the next attempt
+     */
+    public long getDelay(int failures, Random random) {
+        if (failures <= 0) {
+            return 0;
+        }
+        double delay = this.baseDelayMs * Math.pow(this.multiplier, failures - 1);
+        delay = Math.min(delay, this.maxDelayMs);
+        if (this.jitter > 0 && random != null) {
+            delay -= delay * this.jitter * random.nextDouble();
+        }
+        return (long) delay;
+    }
+
+    public long getBaseDelay() {
+        return baseDelayMs;
+    }
+
+    public long getMaxDelay() {
+        return maxDelayMs;
+    }
+}
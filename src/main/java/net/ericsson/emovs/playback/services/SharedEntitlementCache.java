@@ -0,0 +1,218 @@
+package net.ericsson.emovs.playback.services;
+
+import net.ericsson.emovs.utilities.entitlements.IEntitlementProvider;
+import net.ericsson.emovs.utilities.errors.ErrorCodes;
+import net.ericsson.emovs.utilities.errors.ErrorRunnable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * <p>
+ *     Process-wide cache of entitlement check results, shared by the ProgramService of every player.
+ * </p>
+ * <p>
+ *     When several players watch the same channel (multiview, picture-in-picture) they all check the same program at the
+ *     same boundary: the first check goes to the backend and the others wait for its result instead of sending their own
+ *     request. Results are kept for DECISION_TTL_MS so checks that arrive after the backend answered are answered locally.
+ * </p>
+ * <p>
+ *     Decisions are partitioned by entitlement provider and user session (session token of the exposure client), and
+ *     keyed by assetId. When the session token changes the decisions of the previous session are dropped, and checks
+ *     sent in it are answered to their callers but not cached. Only successful checks and PLAYBACK_NOT_ENTITLED denials
+ *     are cached, any other error is forwarded to the waiting callers and the next check goes to the backend again.
+ * </p>
+ */
+public class SharedEntitlementCache {
+    public static final long DECISION_TTL_MS = 60 * 1000L;
+
+    private static SharedEntitlementCache instance;
+
+    private final WeakHashMap<IEntitlementProvider, Session> sessions;
+
+    private static class Decision {
+        final boolean isAllowed;
+        final int errorCode;
+        final String errorMessage;
+        final long expiresAtMs;
+
+        Decision(boolean isAllowed, int errorCode, String errorMessage, long expiresAtMs) {
+            this.isAllowed = isAllowed;
+            this.errorCode = errorCode;
+            this.errorMessage = errorMessage;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private static class Waiter {
+        final Runnable onAllowed;
+        final ErrorRunnable onForbidden;
+
+        Waiter(Runnable onAllowed, ErrorRunnable onForbidden) {
+            this.onAllowed = onAllowed;
+            this.onForbidden = onForbidden;
+        }
+    }
+
+    private static class Session {
+        final Object token;
+        final HashMap<String, Decision> decisions = new HashMap<>();
+        final HashMap<String, ArrayList<Waiter>> inFlight = new HashMap<>();
+
+        Session(Object token) {
+            this.token = token;
+        }
+
+        boolean isOf(Object token) {
+            return this.token == null ? token == null : this.token.equals(token);
+        }
+    }
+
+    public static synchronized SharedEntitlementCache getInstance() {
+        if (instance == null) {
+            instance = new SharedEntitlementCache();
+        }
+        return instance;
+    }
+
+    protected SharedEntitlementCache() {
+        this.sessions = new WeakHashMap<>();
+    }
+
+    /**
+     * Checks if the user is entitled to an asset, sharing the backend request and its result with every other caller
+     *
+     * @param provider entitlement provider of the user session
+     * @param assetId asset to check
+     * @param onAllowed called if the user is entitled
+     * @param onForbidden called if the user is not entitled or the check failed
+     */
+    public void isEntitledAsync(final IEntitlementProvider provider, final String assetId, Runnable onAllowed, ErrorRunnable onForbidden) {
+        if (provider == null || assetId == null) {
+            if (onForbidden != null) {
+                onForbidden.run(ErrorCodes.GENERIC_PLAYBACK_FAILED, "ENTITLEMENT_CHECK_NOT_POSSIBLE");
+            }
+            return;
+        }
+
+        Decision cached;
+        final Session session;
+        synchronized (this) {
+            session = getSession(provider);
+            cached = session.decisions.get(assetId);
+            if (cached != null && cached.expiresAtMs <= currentTime()) {
+                session.decisions.remove(assetId);
+                cached = null;
+            }
+            if (cached == null) {
+                ArrayList<Waiter> waiters = session.inFlight.get(assetId);
+                if (waiters != null) {
+                    waiters.add(new Waiter(onAllowed, onForbidden));
+                    return;
+                }
+                waiters = new ArrayList<>();
+                waiters.add(new Waiter(onAllowed, onForbidden));
+                session.inFlight.put(assetId, waiters);
+            }
+        }
+
+        if (cached != null) {
+            dispatch(cached, onAllowed, onForbidden);
+            return;
+        }
+
+        provider.isEntitledAsync(assetId, new Runnable() {
+            @Override
+            public void run() {
+                complete(session, assetId, new Decision(true, 0, null, currentTime() + DECISION_TTL_MS), true);
+            }
+        }, new ErrorRunnable() {
+            @Override
+            public void run(int errorCode, String errorMessage) {
+                boolean isDenial = errorCode == ErrorCodes.PLAYBACK_NOT_ENTITLED;
+                complete(session, assetId, new Decision(false, errorCode, errorMessage, currentTime() + DECISION_TTL_MS), isDenial);
+            }
+        });
+    }
+
+    /**
+     * @param provider entitlement provider of the user session
+     * @param assetId asset to check
+     * @return true if a backend request for the asset is in flight
+     */
+    public synchronized boolean isCheckInFlight(IEntitlementProvider provider, String assetId) {
+        Session session = this.sessions.get(provider);
+        return session != null && session.isOf(getSessionToken()) && session.inFlight.containsKey(assetId);
+    }
+
+    /**
+     * Drops the cached decisions of every user session (requests in flight still complete)
+     */
+    public synchronized void clear() {
+        for (Session session : this.sessions.values()) {
+            session.decisions.clear();
+        }
+    }
+
+    protected Object getSessionToken() {
+        return EntitlementCache.getUserSessionToken();
+    }
+
+    protected long currentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * @param session user session the check was sent in (replaced sessions still answer their waiters)
+     */
+    private void complete(Session session, String assetId, Decision decision, boolean shouldCache) {
+        ArrayList<Waiter> waiters;
+        synchronized (this) {
+            waiters = session.inFlight.remove(assetId);
+            if (shouldCache) {
+                session.decisions.put(assetId, decision);
+            }
+            evictExpired(session);
+        }
+        if (waiters == null) {
+            return;
+        }
+        for (Waiter waiter : waiters) {
+            dispatch(decision, waiter.onAllowed, waiter.onForbidden);
+        }
+    }
+
+    private void dispatch(Decision decision, Runnable onAllowed, ErrorRunnable onForbidden) {
+        if (decision.isAllowed) {
+            if (onAllowed != null) {
+                onAllowed.run();
+            }
+        }
+        else if (onForbidden != null) {
+            onForbidden.run(decision.errorCode, decision.errorMessage);
+        }
+    }
+
+    private Session getSession(IEntitlementProvider provider) {
+        Object token = getSessionToken();
+        Session session = this.sessions.get(provider);
+        if (session == null || session.isOf(token) == false) {
+            session = new Session(token);
+            this.sessions.put(provider, session);
+        }
+        return session;
+    }
+
+    private void evictExpired(Session session) {
+        long nowMs = currentTime();
+        Iterator<Map.Entry<String, Decision>> it = session.decisions.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getValue().expiresAtMs <= nowMs) {
+                it.remove();
+            }
+        }
+    }
+}
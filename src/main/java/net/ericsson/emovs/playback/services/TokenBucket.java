@@ -0,0 +1,72 @@
+package net.ericsson.emovs.playback.services;
+
+/**
+ * <p>
+ *     Token bucket rate limiter: up to capacity requests can be sent in a burst, then one request per refill period.
+ * </p>
+ * <p>
+ *     ProgramMonitor holds one per process to bound the EPG and entitlement requests sent by all the players of the device.
+ * </p>
+ */
+public class TokenBucket {
+    private final int capacity;
+    private final long refillPeriodMs;
+    private double tokens;
+    private long lastRefillMs;
+
+    /**
+     * @param capacity maximum number of tokens (burst size)
+     * @param refillPeriodMs time it takes to earn one token back
+     */
+    public TokenBucket(int capacity, long refillPeriodMs) {
+        this.capacity = Math.max(1, capacity);
+        this.refillPeriodMs = Math.max(1, refillPeriodMs);
+        this.tokens = this.capacity;
+        this.lastRefillMs = currentTime();
+    }
+
+    /**
+     * Takes a token if one is available
+     *
+     * @return true if the request can be sent
+     */
+    public synchronized boolean tryAcquire() {
+        return tryAcquire(0);
+    }
+
+    /**
+     * Takes a token if one is available on top of a reserve, so lower priority requests leave the reserve to the others
+     *
+     * @param reserve number of tokens that must stay available
+     * @return true if the request can be sent
+     */
+    public synchronized boolean tryAcquire(int reserve) {
+        refill();
+        if (this.tokens >= 1 + Math.max(0, reserve)) {
+            this.tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return number of whole tokens available
+     */
+    public synchronized int getAvailableTokens() {
+        refill();
+        return (int) this.tokens;
+    }
+
+    protected long currentTime() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    private void refill() {
+        long nowMs = currentTime();
+        long elapsedMs = nowMs - this.lastRefillMs;
+        if (elapsedMs > 0) {
+            this.tokens = Math.min(this.capacity, this.tokens + (double) elapsedMs / this.refillPeriodMs);
+            this.lastRefillMs = nowMs;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package net.ericsson.emovs.playback.techs.ExoPlayer;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Pair;
+
+import com.google.android.exoplayer2.source.dash.manifest.DashManifest;
+import com.google.android.exoplayer2.source.dash.manifest.DashManifestParser;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSourceInputStream;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.upstream.ParsingLoadable;
+import com.google.android.exoplayer2.util.Util;
+
+import net.ericsson.emovs.playback.scheduling.CancellationToken;
+import net.ericsson.emovs.utilities.drm.DashDetails;
+import net.ericsson.emovs.utilities.system.ParameterizedRunnable;
+import net.ericsson.emovs.utilities.system.RunnableThread;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ *     Fetches and parses a DASH manifest once and shares the outcome between manifest validation,
+ *     ContentProtection extraction and the DashMediaSource, so a playback start costs a single manifest request.
+ * </p>
+ * <p>
+ *     Concurrent loads of the same URL are merged into one request and a loaded manifest is kept for a short
+ *     period so that a prefetch done right after the entitlement can be picked up by the tech.
+ * </p>
+ * <p>
+ *     A download is abandoned as soon as every load that asked for it has been cancelled.
+ * </p>
+ */
+public class DashManifestLoader {
+    public static final long MANIFEST_REUSE_WINDOW_MS = 10000L;
+
+    private static DashManifestLoader instance;
+
+    private final HashMap<String, Request> requests;
+
+    /**
+     * Callback that receives the outcome of a manifest load
+     */
+    public interface Callback {
+        void onManifest(LoadedManifest manifest);
+        void onError(Exception e);
+    }
+
+    public static synchronized DashManifestLoader getInstance() {
+        if (instance == null) {
+            instance = new DashManifestLoader();
+        }
+        return instance;
+    }
+
+    protected DashManifestLoader() {
+        this.requests = new HashMap<>();
+    }
+
+    /**
+     * Starts loading a manifest without waiting for the outcome
+     *
+     * @param ctx context used to build the user agent
+     * @param manifestUrl manifest URL
+     * @param cancellationToken token that abandons the prefetch (can be null)
+     */
+    public void prefetch(Context ctx, String manifestUrl, CancellationToken cancellationToken) {
+        load(ctx, manifestUrl, null, cancellationToken);
+    }
+
+    /**
+     * Loads a manifest, reusing an in-flight or recently finished request for the same URL
+     *
+     * @param ctx context used to build the user agent
+     * @param manifestUrl manifest URL
+     * @param callback receives the parsed manifest (can be null for prefetches)
+     * @param cancellationToken token that abandons the load (can be null)
+     */
+    public void load(final Context ctx, final String manifestUrl, final Callback callback, CancellationToken cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return;
+        }
+        final Request request;
+        boolean isNewRequest = false;
+        synchronized (this) {
+            evictExpired();
+            Request existing = requests.get(manifestUrl);
+            if (existing != null && existing.error == null) {
+                request = existing;
+            }
+            else {
+                request = new Request();
+                requests.put(manifestUrl, request);
+                isNewRequest = true;
+            }
+            if (request.result == null) {
+                request.interest++;
+                if (callback != null) {
+                    request.callbacks.add(callback);
+                }
+            }
+        }
+
+        if (request.result != null) {
+            if (callback != null) {
+                callback.onManifest(request.result);
+            }
+            return;
+        }
+
+        if (cancellationToken != null) {
+            cancellationToken.onCancel(new Runnable() {
+                @Override
+                public void run() {
+                    abandon(manifestUrl, request, callback);
+                }
+            });
+        }
+
+        if (isNewRequest) {
+            new RunnableThread(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(ctx, manifestUrl, request);
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Returns the manifest of a finished load of the URL, if it is still within MANIFEST_REUSE_WINDOW_MS
+     *
+     * @param manifestUrl manifest URL
+     * @return loaded manifest, or null if the URL was not loaded recently (or is still loading)
+     */
+    public synchronized LoadedManifest getLoaded(String manifestUrl) {
+        evictExpired();
+        Request request = requests.get(manifestUrl);
+        return request == null ? null : request.result;
+    }
+
+    private void fetch(Context ctx, String manifestUrl, Request request) {
+        LoadedManifest result = null;
+        Exception error = null;
+        try {
+            Uri uri = Uri.parse(manifestUrl);
+            DataSource dataSource = new DefaultDataSourceFactory(ctx, Util.getUserAgent(ctx, "EMP-Player")).createDataSource();
+            DataSourceInputStream inputStream = new DataSourceInputStream(dataSource, new DataSpec(uri));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                byte[] buffer = new byte[4096];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    if (request.aborted) {
+                        return;
+                    }
+                    output.write(buffer, 0, bytesRead);
+                }
+            }
+            finally {
+                Util.closeQuietly(inputStream);
+            }
+            if (request.aborted) {
+                return;
+            }
+            byte[] data = output.toByteArray();
+            DashManifest manifest = new DashManifestParser().parse(uri, new ByteArrayInputStream(data));
+            result = new LoadedManifest(uri, data, manifest, System.currentTimeMillis());
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            error = e;
+        }
+
+        ArrayList<Callback> callbacks;
+        synchronized (this) {
+            request.result = result;
+            request.error = error;
+            callbacks = new ArrayList<>(request.callbacks);
+            request.callbacks.clear();
+            if (error != null && requests.get(manifestUrl) == request) {
+                requests.remove(manifestUrl);
+            }
+        }
+
+        for (Callback callback : callbacks) {
+            if (result != null) {
+                callback.onManifest(result);
+            }
+            else {
+                callback.onError(error);
+            }
+        }
+    }
+
+    private synchronized void abandon(String manifestUrl, Request request, Callback callback) {
+        if (request.result != null || request.error != null) {
+            return;
+        }
+        request.callbacks.remove(callback);
+        request.interest--;
+        if (request.interest <= 0) {
+            request.aborted = true;
+            if (requests.get(manifestUrl) == request) {
+                requests.remove(manifestUrl);
+            }
+        }
+    }
+
+    private void evictExpired() {
+        long nowMs = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Request>> it = requests.entrySet().iterator();
+        while (it.hasNext()) {
+            Request request = it.next().getValue();
+            if (request.result != null && nowMs - request.result.loadedAtMs > MANIFEST_REUSE_WINDOW_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    private static class Request {
+        final ArrayList<Callback> callbacks = new ArrayList<>();
+        // Read outside the lock by loads merged into a finished request
+        volatile LoadedManifest result;
+        Exception error;
+        int interest;
+        volatile boolean aborted;
+    }
+
+    /**
+     * Raw and parsed representation of a fetched manifest
+     */
+    public static class LoadedManifest {
+        public final Uri uri;
+        public final byte[] data;
+        public final DashManifest manifest;
+        public final long loadedAtMs;
+
+        LoadedManifest(Uri uri, byte[] data, DashManifest manifest, long loadedAtMs) {
+            this.uri = uri;
+            this.data = data;
+            this.manifest = manifest;
+            this.loadedAtMs = loadedAtMs;
+        }
+
+        /**
+         * @return true if the manifest has at least one period and every period has AdaptationSets
+         */
+        public boolean isValid() {
+            if (manifest == null || manifest.getPeriodCount() == 0) {
+                return false;
+            }
+            for (int i = 0; i < manifest.getPeriodCount(); ++i) {
+                if (manifest.getPeriod(i).adaptationSets == null || manifest.getPeriod(i).adaptationSets.size() == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Extracts the Widevine license URL and PSSH from the manifest ContentProtection elements with DashDetails
+         * (the parsing used for offline manifests), run on a temporary copy of the fetched document
+         *
+         * @param cacheDir directory of the temporary copy (null for the default temporary directory)
+         * @param callback receives the pair (licenseUrl, initDataBase64) as DashDetails returns it, or null if the copy failed
+         */
+        public void getLicenseDetails(File cacheDir, final ParameterizedRunnable<Pair<String, String>> callback) {
+            final File copy;
+            try {
+                copy = File.createTempFile("manifest", ".mpd", cacheDir);
+                FileOutputStream output = new FileOutputStream(copy);
+                try {
+                    output.write(data);
+                }
+                finally {
+                    output.close();
+                }
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                callback.run(null);
+                return;
+            }
+            DashDetails.getLicenseDetails(copy.getAbsolutePath(), true, new ParameterizedRunnable<Pair<String, String>>() {
+                @Override
+                public void run(Pair<String, String> licenseDetails) {
+                    copy.delete();
+                    callback.run(licenseDetails);
+                }
+            });
+        }
+
+        /**
+         * Builds a manifest data source factory whose data sources serve the first manifest request from memory and
+         * forward every later request (manifest refreshes of dynamic manifests, UTCTiming) to the network.
+         * <p>
+         *     DashMediaSource creates a single manifest DataSource and reuses it for all of them, so the sideloading is
+         *     decided on open() rather than when the DataSource is created.
+         * </p>
+         *
+         * @param upstreamFactory factory used for manifest refreshes
+         * @return data source factory to be handed to DashMediaSource
+         */
+        public DataSource.Factory newDataSourceFactory(final DataSource.Factory upstreamFactory) {
+            final AtomicBoolean served = new AtomicBoolean(false);
+            return new DataSource.Factory() {
+                @Override
+                public DataSource createDataSource() {
+                    return new SideloadedManifestDataSource(LoadedManifest.this, served, upstreamFactory.createDataSource());
+                }
+            };
+        }
+
+        /**
+         * Builds a manifest parser that returns the already parsed manifest once and parses any later refresh
+         *
+         * @return parser to be handed to DashMediaSource
+         */
+        public ParsingLoadable.Parser<DashManifest> newParser() {
+            final boolean[] consumed = { false };
+            return new ParsingLoadable.Parser<DashManifest>() {
+                @Override
+                public DashManifest parse(Uri uri, InputStream inputStream) throws IOException {
+                    synchronized (consumed) {
+                        if (consumed[0] == false) {
+                            consumed[0] = true;
+                            return manifest;
+                        }
+                    }
+                    return new DashManifestParser().parse(uri, inputStream);
+                }
+            };
+        }
+    }
+
+    /**
+     * Manifest DataSource that answers the first open() of the manifest URL with the already fetched bytes and
+     * delegates every other open() to the upstream DataSource
+     */
+    private static class SideloadedManifestDataSource implements DataSource {
+        private final LoadedManifest manifest;
+        private final AtomicBoolean served;
+        private final DataSource upstream;
+        private DataSource current;
+
+        SideloadedManifestDataSource(LoadedManifest manifest, AtomicBoolean served, DataSource upstream) {
+            this.manifest = manifest;
+            this.served = served;
+            this.upstream = upstream;
+        }
+
+        @Override
+        public long open(DataSpec dataSpec) throws IOException {
+            if (manifest.uri.equals(dataSpec.uri) && served.compareAndSet(false, true)) {
+                this.current = new ByteArrayDataSource(manifest.data);
+            }
+            else {
+                this.current = upstream;
+            }
+            return this.current.open(dataSpec);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int readLength) throws IOException {
+            return this.current.read(buffer, offset, readLength);
+        }
+
+        @Override
+        public Uri getUri() {
+            return this.current == null ? null : this.current.getUri();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.current != null) {
+                DataSource closing = this.current;
+                this.current = null;
+                closing.close();
+            }
+        }
+    }
+}
@@ -11,6 +11,7 @@ import android.widget.Toast;
 
 import net.ericsson.emovs.utilities.emp.UniversalPackagerHelper;
 import net.ericsson.emovs.playback.drm.GenericDrmCallback;
+import net.ericsson.emovs.playback.drm.SwappableDrmCallback;
 import net.ericsson.emovs.playback.Player;
 import net.ericsson.emovs.playback.drm.WidevinePlaybackLicenseManager;
 import net.ericsson.emovs.utilities.errors.Error;
@@ -21,12 +22,19 @@ import net.ericsson.emovs.utilities.errors.ErrorCodes;
 
 import net.ericsson.emovs.playback.PlaybackProperties;
 import net.ericsson.emovs.playback.R;
+import net.ericsson.emovs.playback.interfaces.IPreloadableTech;
+import net.ericsson.emovs.playback.interfaces.IReusableTech;
+import net.ericsson.emovs.playback.interfaces.ISourceSwitchableTech;
 import net.ericsson.emovs.playback.interfaces.ITech;
+import net.ericsson.emovs.playback.interfaces.ITokenRefreshableTech;
+import net.ericsson.emovs.playback.scheduling.CancellationToken;
+import net.ericsson.emovs.playback.scheduling.StartupGraph;
 import net.ericsson.emovs.utilities.interfaces.IPlaybackEventListener;
 import net.ericsson.emovs.utilities.system.ParameterizedRunnable;
 import net.ericsson.emovs.utilities.time.DateTimeParser;
 import net.ericsson.emovs.utilities.ui.ViewHelper;
 
+import com.google.android.exoplayer2.DefaultLoadControl;
 import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlaybackException;
 import com.google.android.exoplayer2.ParserException;
@@ -70,7 +78,7 @@ import java.util.UUID;
  * Created by Joao Coelho on 2017-08-29.
  */
 
-public class ExoPlayerTech implements ITech {
+public class ExoPlayerTech implements ITech, IPreloadableTech, ISourceSwitchableTech, ITokenRefreshableTech, IReusableTech {
     private final String FLUX_EXOPLAYER_WIDEVINE_KEYSTORE = "FLUX_EXOPLAYER_WIDEVINE_KEYSTORE";
     private final String KEY_OFFLINE_MEDIA_ID = "key_offline_asset_id_";
 
@@ -80,6 +88,11 @@ public class ExoPlayerTech implements ITech {
 
     private static final long TIMESHIFT_VAL = 30;
 
+    private static final String STAGE_MANIFEST_LOAD = "manifestLoad";
+    private static final String STAGE_MANIFEST_VALIDATION = "manifestValidation";
+    private static final String STAGE_LICENSE_DISCOVERY = "licenseDiscovery";
+    private static final String STAGE_PLAYER_CREATION = "playerCreation";
+
     ViewGroup host;
     Activity ctx;
     SimpleExoPlayer player;
@@ -96,8 +109,19 @@ public class ExoPlayerTech implements ITech {
     int currentBitrate;
     PlaybackProperties properties;
     Uri manifestUrl;
-    long windowStartTimeMs = 0;
+    DashManifestLoader.LoadedManifest loadedManifest;
+    volatile long windowStartTimeMs = 0;
     boolean startTimeSeekDone = false;
+    boolean preloading = false;
+    boolean preloadFailed = false;
+    long warmBufferMs = 0;
+    WarmupLoadControl loadControl;
+    StartupGraph loadGraph;
+    long seekedTimeshiftDelay = -1;
+    boolean isOffline;
+    SwappableDrmCallback drmCallback;
+    String drmLicenseUrl;
+    boolean recycled;
 
     Player getParent() {
         return parent;
@@ -123,6 +147,10 @@ public class ExoPlayerTech implements ITech {
         this.seekStart = seekStart;
     }
 
+    boolean isPreloading() {
+        return preloading;
+    }
+
     public void init(Player parent, Activity ctx, String playToken, PlaybackProperties properties) {
         this.parent = parent;
         this.ctx = ctx;
@@ -135,6 +163,87 @@ public class ExoPlayerTech implements ITech {
         this.loadStarted = false;
         this.seekStart = false;
         this.properties = properties;
+        this.preloading = false;
+        this.preloadFailed = false;
+        this.warmBufferMs = 0;
+    }
+
+    /**
+     * Loads the stream without a view and with playback paused, buffering up to warmBufferMs.
+     * No playback events are sent to the parent until the tech is activated.
+     */
+    @Override
+    public void preload(Player parent, Activity ctx, String playToken, PlaybackProperties properties, String mediaId, String manifestUrl, long warmBufferMs) {
+        this.parent = parent;
+        this.ctx = ctx;
+        this.playToken = playToken;
+        this.isPlaying = false;
+        this.isReady = false;
+        this.loadStarted = false;
+        this.seekStart = false;
+        this.properties = properties;
+        this.preloading = true;
+        this.preloadFailed = false;
+        this.warmBufferMs = warmBufferMs;
+        load(mediaId, manifestUrl, false);
+    }
+
+    @Override
+    public boolean isPreloaded() {
+        return this.preloading && this.preloadFailed == false && this.player != null;
+    }
+
+    /**
+     * Attaches the preloaded player to the parent view, lifts the warm buffer cap and replays the
+     * startup events that were held back while preloading
+     */
+    @Override
+    public void activate(final Player parent, Activity ctx, PlaybackProperties properties) {
+        this.parent = parent;
+        this.ctx = ctx;
+        this.properties = properties;
+        this.preloading = false;
+        if (this.loadControl != null) {
+            this.loadControl.setWarmBufferMs(0);
+        }
+        applyTrackPreferences();
+
+        createExoView(parent.getViewGroup());
+        ctx.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (player == null) {
+                    return;
+                }
+                attachView();
+                overrideExoControls();
+
+                if (PlaybackProperties.PlayFrom.isLiveEdge(getProperties().getPlayFrom())) {
+                    // Live edge moved while the stream was warm - only seek if we drifted noticeably from it
+                    long[] seekTimeRange = getSeekTimeRange();
+                    if (seekTimeRange != null && seekTimeRange[1] - getPlayheadTime() > 2 * Player.SAFETY_LIVE_DELAY) {
+                        startTimeSeekDone = false;
+                    }
+                }
+                if (startTimeSeekDone == false) {
+                    applyStartPosition();
+                }
+
+                if (loadStarted == false) {
+                    loadStarted = true;
+                    parent.onLoadStart();
+                }
+                if (isReady == false && player.getPlaybackState() == com.google.android.exoplayer2.Player.STATE_READY) {
+                    isReady = true;
+                    parent.onLoad();
+                }
+                player.setPlayWhenReady(getProperties().isAutoplay());
+            }
+        });
+    }
+
+    private PlaybackProperties getProperties() {
+        return this.properties == null ? PlaybackProperties.DEFAULT : this.properties;
     }
 
     DefaultTrackSelector trackSelector = null;
@@ -191,14 +300,14 @@ public class ExoPlayerTech implements ITech {
             ff.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View btn) {
-                    parent.seekToTime(parent.getPlayheadTime() + 30000);
+                    parent.seekBy(30000);
                 }
             });
 
             rw.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View btn) {
-                    parent.seekToTime(parent.getPlayheadTime() - 30000);
+                    parent.seekBy(-30000);
                 }
             });
 
@@ -214,10 +323,53 @@ public class ExoPlayerTech implements ITech {
     public boolean load(final String mediaId, final String manifestUrl, final boolean isOffline) {
         this.startTimeSeekDone = false;
         this.windowStartTimeMs = 0;
-        DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
-        TrackSelection.Factory videoTrackSelectionFactory = new AdaptiveTrackSelection.Factory(bandwidthMeter);
-        this.trackSelector = new DefaultTrackSelector(videoTrackSelectionFactory);
+        if (this.recycled && isOffline == false && this.player != null) {
+            // Recycled player: its track selector is reset to the defaults and configured for the new stream
+            this.trackSelector.setParameters(new DefaultTrackSelector.Parameters());
+        }
+        else {
+            if (this.recycled && this.player != null) {
+                ((HookedSimpleExoPlayer) this.player).releaseSilently();
+                this.player = null;
+            }
+            this.drmCallback = null;
+            this.drmLicenseUrl = null;
+            DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
+            TrackSelection.Factory videoTrackSelectionFactory = new AdaptiveTrackSelection.Factory(bandwidthMeter);
+            this.trackSelector = new DefaultTrackSelector(videoTrackSelectionFactory);
+        }
+        this.recycled = false;
+        this.isOffline = isOffline;
+
+        applyTrackPreferences();
+
+        this.loadedManifest = null;
+        if (this.loadGraph != null) {
+            this.loadGraph.cancel();
+        }
+        final StartupGraph startupGraph = new StartupGraph();
+        this.loadGraph = startupGraph;
+        if (isOffline) {
+            addOfflineManifestStages(startupGraph, manifestUrl);
+        }
+        else {
+            addManifestStages(startupGraph, manifestUrl);
+        }
+        startupGraph.addStage(STAGE_PLAYER_CREATION, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                createPlayer(mediaId, manifestUrl, isOffline, (Pair<String, String>) graph.getResult(STAGE_LICENSE_DISCOVERY), graph.getCancellationToken());
+            }
+        }, STAGE_MANIFEST_VALIDATION, STAGE_LICENSE_DISCOVERY);
+        startupGraph.start();
 
+        return true;
+    }
+
+    private void applyTrackPreferences() {
+        if (trackSelector == null) {
+            return;
+        }
         if (properties != null) {
             DefaultTrackSelector.Parameters currentParameters = trackSelector.getParameters();
 
@@ -238,208 +390,429 @@ public class ExoPlayerTech implements ITech {
 
             trackSelector.setParameters(currentParameters);
         }
+    }
 
-        final ExoPlayerTech self = this;
-        DashDetails.isValidManifest(manifestUrl, isOffline, new Runnable() {
+    private void addManifestStages(StartupGraph startupGraph, final String manifestUrl) {
+        startupGraph.addStage(STAGE_MANIFEST_LOAD, new StartupGraph.Stage() {
             @Override
-            public void run() {
-                DashDetails.getLicenseDetails(manifestUrl, isOffline, new ParameterizedRunnable<Pair<String, String>>() {
+            public void run(final StartupGraph graph) {
+                DashManifestLoader.getInstance().load(ctx, manifestUrl, new DashManifestLoader.Callback() {
                     @Override
-                    public void run(Pair<String, String> licenseDetails) {
-                        if (licenseDetails == null && properties.getDRMProperties() != null) {
-                            PlaybackProperties.DRMProperties drmProps = properties.getDRMProperties();
-                            licenseDetails = new Pair<>(drmProps.licenseServerUrl, drmProps.initDataBase64);
-                        }
-
-                        if (licenseDetails != null) {
-                            String[] keyRequestPropertiesArray = {};
-                            String licenseWithToken = Uri.parse(licenseDetails.first)
-                                    .buildUpon()
-                                    .appendQueryParameter("token", "Bearer " + self.playToken)
-                                    .build().toString();
-                            licenseDetails = new Pair<>(licenseWithToken, licenseDetails.second);
-
-                            UUID drmSchemeUuid = null;
-                            try {
-                                drmSchemeUuid = getDrmUuid("widevine");
-                            } catch (ParserException e) {
-                                e.printStackTrace();
-                                return;
-                            }
-                            try {
-                                DrmSessionManager<FrameworkMediaCrypto> drmSessionManager;
-
-                                if (isOffline) {
-                                    drmSessionManager = buildOfflineDrmSessionManager(mediaId, drmSchemeUuid, licenseDetails.first, licenseDetails.second);
-                                }
-                                else {
-                                    drmSessionManager = buildDrmSessionManagerV18(drmSchemeUuid, licenseDetails.first, keyRequestPropertiesArray);
-                                }
-
-                                DefaultRenderersFactory renderersFactory = new DefaultRenderersFactory(ctx, drmSessionManager, DefaultRenderersFactory.EXTENSION_RENDERER_MODE_PREFER);
-                                self.player = HookedSimpleExoPlayer.newSimpleInstance(self, renderersFactory, trackSelector);
-                                self.player.setPlayWhenReady(self.properties == null ? PlaybackProperties.DEFAULT.isAutoplay() : self.properties.isAutoplay());
-                                self.player.addListener(new com.google.android.exoplayer2.Player.EventListener(){
-                                    @Override
-                                    public void onTimelineChanged(Timeline timeline, Object manifest) {
-                                        windowStartTimeMs = getWindowStartFromTimeline(timeline);
-                                        if (windowStartTimeMs < 0) {
-                                            windowStartTimeMs = 0;
-                                            long tParamStartTime = tParamStartTime();
-                                            if (tParamStartTime >= 0) {
-                                                windowStartTimeMs = tParamStartTime;
-                                            }
-                                        }
-                                        if (startTimeSeekDone == false && properties != null && properties.getPlayFrom() != null) {
-                                            if (properties.getPlayFrom() instanceof PlaybackProperties.PlayFrom.LiveEdge) {
-                                                long[] seekTimeRange = parent.getSeekTimeRange();
-                                                if (seekTimeRange != null) {
-                                                    seekToTime(seekTimeRange[1] - Player.SAFETY_LIVE_DELAY);
-                                                }
-                                                else {
-                                                    long startTime = parent.getMonotonicTimeService().currentTime() - getTimeshiftDelay() * 1000 - Player.SAFETY_LIVE_DELAY;
-                                                    seekToTime(startTime);
-                                                }
-                                                startTimeSeekDone = true;
-                                            }
-                                            else if (properties.getPlayFrom() instanceof PlaybackProperties.PlayFrom.StartTime) {
-                                                long startTime = ((PlaybackProperties.PlayFrom.StartTime) properties.getPlayFrom()).startTime;
-                                                long[] range = getSeekTimeRange();
-                                                if (range != null && (startTime < range[0] || startTime > range[1])) {
-                                                    parent.trigger(IPlaybackEventListener.EventId.WARNING, Warning.INVALID_START_TIME);
-                                                }
-                                                else {
-                                                    seekToTime(startTime);
-                                                    startTimeSeekDone = true;
-                                                }
-                                            }
-                                        }
-                                    }
-
-                                    @Override
-                                    public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
-                                        int oldBitrate = currentBitrate;
-                                        getCurrentBitrate();
-                                        if (oldBitrate > 0 && oldBitrate != currentBitrate) {
-                                            parent.onBitrateChange(oldBitrate, currentBitrate);
-                                        }
-                                    }
-
-                                    @Override
-                                    public void onLoadingChanged(boolean isLoading) {
-                                    }
-
-                                    @Override
-                                    public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
-                                        if (playbackState == com.google.android.exoplayer2.Player.STATE_READY) {
-                                            if (isReady == false) {
-                                                parent.onLoad();
-                                                isReady = true;
-                                            }
-                                            if (player != null && playWhenReady && !isPlaying) {
-                                                view.setVisibility(View.VISIBLE);
-                                                isPlaying = true;
-                                                parent.onPlaying();
-                                            }
-                                            if (player != null && seekStart) {
-                                                seekStart = false;
-                                                parent.onSeek(player.getCurrentPosition());
-                                            }
-                                            if (waitingStarted) {
-                                                waitingStarted = false;
-                                                if (parent != null) {
-                                                    parent.onWaitingEnd();
-                                                }
-                                            }
-                                        }
-                                        else if (playbackState == com.google.android.exoplayer2.Player.STATE_ENDED && isPlaying) {
-                                            isPlaying = false;
-                                            isReady = false;
-                                            seekStart = false;
-                                            waitingStarted = false;
-                                            parent.onPlaybackEnd();
-                                        }
-                                        else if (playbackState == com.google.android.exoplayer2.Player.STATE_BUFFERING) {
-                                            if (!isReady && !isPlaying && !loadStarted) {
-                                                loadStarted = true;
-                                                parent.onLoadStart();
-                                            }
-                                            else if (isPlaying) {
-                                                waitingStarted = true;
-                                                if (parent != null) {
-                                                    parent.onWaitingStart();
-                                                }
-                                            }
-                                        }
-                                        else if (playbackState == com.google.android.exoplayer2.Player.STATE_IDLE) {
-                                            isPlaying = false;
-                                            isReady = false;
-                                            seekStart = false;
-                                            waitingStarted = false;
-                                        }
-                                    }
-
-                                    @Override
-                                    public void onRepeatModeChanged(int repeatMode) {
-
-                                    }
-
-                                    @Override
-                                    public void onPlayerError(ExoPlaybackException error) {
-                                        if (parent != null) {
-                                            parent.onError(ErrorCodes.EXO_PLAYER_INTERNAL_ERROR, error.getMessage());
-                                        }
-                                    }
-
-                                    @Override
-                                    public void onPositionDiscontinuity() {
-
-                                    }
-
-                                    @Override
-                                    public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
-
-                                    }
-                                });
-                            } catch (UnsupportedDrmException e) {
-                                e.printStackTrace();
-                                return;
-                            }
-                        }
-                        else {
-                            self.player = HookedSimpleExoPlayer.newSimpleInstance(self, new DefaultRenderersFactory(ctx), trackSelector);
-                            self.player.setPlayWhenReady(self.properties == null ? PlaybackProperties.DEFAULT.isAutoplay() : self.properties.isAutoplay());
-                        }
+                    public void onManifest(DashManifestLoader.LoadedManifest manifest) {
+                        graph.complete(STAGE_MANIFEST_LOAD, manifest);
+                    }
 
-                        if (ctx != null) {
-                            ctx.runOnUiThread(new Runnable() {
-                                public void run() {
-                                    play(manifestUrl);
-                                }
-                            });
-                        }
-                        return;
+                    @Override
+                    public void onError(Exception e) {
+                        graph.complete(STAGE_MANIFEST_LOAD, null);
+                    }
+                }, graph.getCancellationToken());
+            }
+        });
+        startupGraph.addStage(STAGE_MANIFEST_VALIDATION, new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                DashManifestLoader.LoadedManifest manifest = (DashManifestLoader.LoadedManifest) graph.getResult(STAGE_MANIFEST_LOAD);
+                if (manifest == null || manifest.isValid() == false) {
+                    failInvalidManifest();
+                    return;
+                }
+                loadedManifest = manifest;
+                graph.complete(STAGE_MANIFEST_VALIDATION);
+            }
+        }, STAGE_MANIFEST_LOAD);
+        startupGraph.addStage(STAGE_LICENSE_DISCOVERY, new StartupGraph.Stage() {
+            @Override
+            public void run(final StartupGraph graph) {
+                DashManifestLoader.LoadedManifest manifest = (DashManifestLoader.LoadedManifest) graph.getResult(STAGE_MANIFEST_LOAD);
+                if (manifest == null) {
+                    graph.complete(STAGE_LICENSE_DISCOVERY, null);
+                    return;
+                }
+                manifest.getLicenseDetails(ctx == null ? null : ctx.getCacheDir(), new ParameterizedRunnable<Pair<String, String>>() {
+                    @Override
+                    public void run(Pair<String, String> licenseDetails) {
+                        graph.complete(STAGE_LICENSE_DISCOVERY, licenseDetails);
                     }
                 });
             }
-        }, new Runnable() {
+        }, STAGE_MANIFEST_LOAD);
+    }
+
+    private void addOfflineManifestStages(StartupGraph startupGraph, final String manifestUrl) {
+        startupGraph.addStage(STAGE_MANIFEST_VALIDATION, new StartupGraph.Stage() {
             @Override
-            public void run() {
-                parent.runOnUiThread(new Runnable() {
+            public void run(final StartupGraph graph) {
+                DashDetails.isValidManifest(manifestUrl, true, new Runnable() {
                     @Override
                     public void run() {
-                        parent.fail(ErrorCodes.INVALID_MANIFEST, "INVALID_MANIFEST");
-                        stop();
+                        graph.complete(STAGE_MANIFEST_VALIDATION);
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        failInvalidManifest();
                     }
                 });
             }
         });
+        startupGraph.addStage(STAGE_LICENSE_DISCOVERY, new StartupGraph.Stage() {
+            @Override
+            public void run(final StartupGraph graph) {
+                DashDetails.getLicenseDetails(manifestUrl, true, new ParameterizedRunnable<Pair<String, String>>() {
+                    @Override
+                    public void run(Pair<String, String> licenseDetails) {
+                        graph.complete(STAGE_LICENSE_DISCOVERY, licenseDetails);
+                    }
+                });
+            }
+        });
+    }
+
+    private void failInvalidManifest() {
+        if (loadGraph != null && loadGraph.isCancelled()) {
+            return;
+        }
+        if (preloading) {
+            preloadFailed = true;
+            return;
+        }
+        parent.runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                parent.fail(ErrorCodes.INVALID_MANIFEST, "INVALID_MANIFEST");
+                stop();
+            }
+        });
+    }
+
+    private void createPlayer(final String mediaId, final String manifestUrl, final boolean isOffline, Pair<String, String> licenseDetails, final CancellationToken cancellationToken) {
+        final ExoPlayerTech self = this;
+        if (cancellationToken.isCancelled() || (preloading && preloadFailed)) {
+            return;
+        }
+        if (licenseDetails == null && properties.getDRMProperties() != null) {
+            PlaybackProperties.DRMProperties drmProps = properties.getDRMProperties();
+            licenseDetails = new Pair<>(drmProps.licenseServerUrl, drmProps.initDataBase64);
+        }
+        if (this.player != null) {
+            if (prepareRecycledPlayer(licenseDetails)) {
+                startSource(manifestUrl, cancellationToken);
+                return;
+            }
+            ((HookedSimpleExoPlayer) this.player).releaseSilently();
+            this.player = null;
+            this.drmCallback = null;
+            this.drmLicenseUrl = null;
+        }
+        this.loadControl = new WarmupLoadControl(new DefaultLoadControl());
+        this.loadControl.setWarmBufferMs(preloading ? warmBufferMs : 0);
+
+        if (licenseDetails != null) {
+            String[] keyRequestPropertiesArray = {};
+            self.drmLicenseUrl = licenseDetails.first;
+            licenseDetails = new Pair<>(buildLicenseUrlWithToken(licenseDetails.first, self.playToken), licenseDetails.second);
+
+            UUID drmSchemeUuid = null;
+            try {
+                drmSchemeUuid = getDrmUuid("widevine");
+            } catch (ParserException e) {
+                e.printStackTrace();
+                return;
+            }
+            try {
+                DrmSessionManager<FrameworkMediaCrypto> drmSessionManager;
+
+                if (isOffline) {
+                    drmSessionManager = buildOfflineDrmSessionManager(mediaId, drmSchemeUuid, licenseDetails.first, licenseDetails.second);
+                }
+                else {
+                    drmSessionManager = buildDrmSessionManagerV18(drmSchemeUuid, licenseDetails.first, keyRequestPropertiesArray);
+                }
+
+                DefaultRenderersFactory renderersFactory = new DefaultRenderersFactory(ctx, drmSessionManager, DefaultRenderersFactory.EXTENSION_RENDERER_MODE_PREFER);
+                self.player = HookedSimpleExoPlayer.newSimpleInstance(self, renderersFactory, trackSelector, loadControl);
+                self.player.setPlayWhenReady(preloading == false && getProperties().isAutoplay());
+            } catch (UnsupportedDrmException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        else {
+            self.player = HookedSimpleExoPlayer.newSimpleInstance(self, new DefaultRenderersFactory(ctx), trackSelector, loadControl);
+            self.player.setPlayWhenReady(preloading == false && getProperties().isAutoplay());
+        }
+        self.player.addListener(createPlayerEventListener());
+
+        startSource(manifestUrl, cancellationToken);
+    }
+
+    /**
+     * @return listener that turns ExoPlayer state changes into tech/parent events (registered on every new player)
+     */
+    private com.google.android.exoplayer2.Player.EventListener createPlayerEventListener() {
+        return new com.google.android.exoplayer2.Player.EventListener() {
+            @Override
+            public void onTimelineChanged(Timeline timeline, Object manifest) {
+                windowStartTimeMs = getWindowStartFromTimeline(timeline);
+                if (windowStartTimeMs < 0) {
+                    windowStartTimeMs = 0;
+                    long tParamStartTime = tParamStartTime();
+                    if (tParamStartTime >= 0) {
+                        windowStartTimeMs = tParamStartTime;
+                    }
+                }
+                applyStartPosition();
+            }
+
+            @Override
+            public void onTracksChanged(TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+                int oldBitrate = currentBitrate;
+                getCurrentBitrate();
+                if (preloading == false && oldBitrate > 0 && oldBitrate != currentBitrate) {
+                    parent.onBitrateChange(oldBitrate, currentBitrate);
+                }
+            }
 
+            @Override
+            public void onLoadingChanged(boolean isLoading) {
+            }
+
+            @Override
+            public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
+                if (preloading) {
+                    return;
+                }
+                if (playbackState == com.google.android.exoplayer2.Player.STATE_READY) {
+                    if (isReady == false) {
+                        parent.onLoad();
+                        isReady = true;
+                    }
+                    if (player != null && playWhenReady && !isPlaying) {
+                        view.setVisibility(View.VISIBLE);
+                        isPlaying = true;
+                        parent.onPlaying();
+                    }
+                    if (player != null && seekStart) {
+                        seekStart = false;
+                        parent.onSeek(player.getCurrentPosition());
+                    }
+                    if (waitingStarted) {
+                        waitingStarted = false;
+                        if (parent != null) {
+                            parent.onWaitingEnd();
+                        }
+                    }
+                }
+                else if (playbackState == com.google.android.exoplayer2.Player.STATE_ENDED && isPlaying) {
+                    isPlaying = false;
+                    isReady = false;
+                    seekStart = false;
+                    waitingStarted = false;
+                    parent.onPlaybackEnd();
+                }
+                else if (playbackState == com.google.android.exoplayer2.Player.STATE_BUFFERING) {
+                    if (!isReady && !isPlaying && !loadStarted) {
+                        loadStarted = true;
+                        parent.onLoadStart();
+                    }
+                    else if (isPlaying) {
+                        waitingStarted = true;
+                        if (parent != null) {
+                            parent.onWaitingStart();
+                        }
+                    }
+                }
+                else if (playbackState == com.google.android.exoplayer2.Player.STATE_IDLE) {
+                    isPlaying = false;
+                    isReady = false;
+                    seekStart = false;
+                    waitingStarted = false;
+                }
+            }
+
+            @Override
+            public void onRepeatModeChanged(int repeatMode) {
+
+            }
+
+            @Override
+            public void onPlayerError(ExoPlaybackException error) {
+                if (preloading) {
+                    preloadFailed = true;
+                    return;
+                }
+                if (parent != null) {
+                    parent.onError(ErrorCodes.EXO_PLAYER_INTERNAL_ERROR, error.getMessage());
+                }
+            }
+
+            @Override
+            public void onPositionDiscontinuity() {
+
+            }
+
+            @Override
+            public void onPlaybackParametersChanged(PlaybackParameters playbackParameters) {
+                if (preloading == false && parent != null) {
+                    parent.onPlaybackRateChanged(playbackParameters.speed);
+                }
+
+            }
+        };
+    }
+
+    /**
+     * Points the DRM session manager of a recycled player at the license server of the new stream
+     *
+     * @return false if the recycled player was built without DRM and the new stream is protected
+     */
+    private boolean prepareRecycledPlayer(Pair<String, String> licenseDetails) {
+        if (licenseDetails != null) {
+            if (this.drmCallback == null) {
+                return false;
+            }
+            this.drmLicenseUrl = licenseDetails.first;
+            this.drmCallback.setDelegate(buildHttpDrmCallback(buildLicenseUrlWithToken(licenseDetails.first, this.playToken), new String[] {}));
+        }
+        if (this.loadControl != null) {
+            this.loadControl.setWarmBufferMs(0);
+        }
+        this.player.setPlayWhenReady(getProperties().isAutoplay());
         return true;
     }
 
+    private void startSource(final String manifestUrl, final CancellationToken cancellationToken) {
+        final ExoPlayerTech self = this;
+        if (cancellationToken.isCancelled()) {
+            // Stopped or released while the player was being built - the session is gone, so no dispose event either
+            ((HookedSimpleExoPlayer) self.player).releaseSilently();
+            self.player = null;
+            return;
+        }
+
+        if (ctx != null) {
+            ctx.runOnUiThread(new Runnable() {
+                public void run() {
+                    if (cancellationToken.isCancelled() || player == null) {
+                        return;
+                    }
+                    if (preloading) {
+                        prepareSource(manifestUrl);
+                    }
+                    else {
+                        play(manifestUrl);
+                    }
+                }
+            });
+        }
+    }
+
     public void play(String dashManifestUrl) {
         this.manifestUrl = Uri.parse(dashManifestUrl);
+        this.seekedTimeshiftDelay = -1;
+        attachView();
+        player.prepare(buildMediaSource());
+        overrideExoControls();
+    }
+
+    /**
+     * Replaces the stream on the running player: the player, its surface and the DRM session manager are kept and
+     * only the license requests of the new stream are sent with the new play token
+     *
+     * @param playToken play token from the entitlement of the new stream
+     * @param properties playback properties of the new stream (start position, DRM)
+     * @param mediaId media identifier of the new stream
+     * @param manifestUrl manifest/playlist url of the new stream
+     * @return false if the player is not running, is playing an offline asset or was built without DRM for a protected stream
+     */
+    @Override
+    public boolean switchSource(String playToken, PlaybackProperties properties, String mediaId, String manifestUrl) {
+        if (this.player == null || this.preloading || this.isOffline) {
+            return false;
+        }
+        String licenseUrl = properties.getDRMProperties() != null ? properties.getDRMProperties().licenseServerUrl : null;
+        if (this.drmCallback == null) {
+            if (licenseUrl != null) {
+                return false;
+            }
+        }
+        else {
+            if (licenseUrl == null) {
+                licenseUrl = this.drmLicenseUrl;
+            }
+            this.drmCallback.setDelegate(buildHttpDrmCallback(buildLicenseUrlWithToken(licenseUrl, playToken), new String[] {}));
+            this.drmLicenseUrl = licenseUrl;
+        }
+        this.playToken = playToken;
+        this.properties = properties;
+        this.startTimeSeekDone = false;
+        this.windowStartTimeMs = 0;
+        this.seekedTimeshiftDelay = -1;
+        // Manifest prefetched for the next program is served from memory, otherwise the media source fetches it
+        DashManifestLoader.LoadedManifest prefetched = DashManifestLoader.getInstance().getLoaded(manifestUrl);
+        this.loadedManifest = prefetched != null && prefetched.isValid() ? prefetched : null;
+        this.manifestUrl = Uri.parse(manifestUrl);
+        applyTrackPreferences();
+        this.player.prepare(buildMediaSource(), true, true);
+        this.player.setPlayWhenReady(properties.isAutoplay());
+        return true;
+    }
+
+    /**
+     * Replaces the play token of the running stream: the license requests that follow (key rotation, renewal) carry
+     * the new token while the player, its buffers and the keys already loaded are kept
+     *
+     * @param playToken renewed play token of the stream being played
+     * @return false if the player is not running or is playing an offline asset
+     */
+    @Override
+    public boolean refreshPlayToken(String playToken) {
+        if (this.player == null || this.preloading || this.isOffline || playToken == null) {
+            return false;
+        }
+        if (this.drmCallback != null && this.drmLicenseUrl != null) {
+            this.drmCallback.setDelegate(buildHttpDrmCallback(buildLicenseUrlWithToken(this.drmLicenseUrl, playToken), new String[] {}));
+        }
+        this.playToken = playToken;
+        return true;
+    }
+
+    /**
+     * Stops the stream being played and keeps the player (renderers, codecs, DRM session manager and track selector):
+     * the next load re-prepares it with the new stream instead of building a new one
+     *
+     * @return false if the player is not built, is preloading or plays an offline asset
+     */
+    @Override
+    public boolean recycle() {
+        if (this.player == null || this.preloading || this.isOffline) {
+            return false;
+        }
+        if (this.loadGraph != null) {
+            this.loadGraph.cancel();
+            this.loadGraph = null;
+        }
+        this.player.stop();
+        this.isPlaying = false;
+        this.isReady = false;
+        this.loadStarted = false;
+        this.seekStart = false;
+        this.waitingStarted = false;
+        this.recycled = true;
+        return true;
+    }
+
+    private void prepareSource(String dashManifestUrl) {
+        if (player == null) {
+            return;
+        }
+        this.manifestUrl = Uri.parse(dashManifestUrl);
+        this.seekedTimeshiftDelay = -1;
+        player.prepare(buildMediaSource());
+    }
+
+    private void attachView() {
         this.view.setPlayer(this.player);
         this.view.setUseController(this.properties == null ? PlaybackProperties.DEFAULT.hasNativeControls() : this.properties.hasNativeControls());
         this.view.requestFocus();
@@ -454,14 +827,68 @@ public class ExoPlayerTech implements ITech {
                 }
             }
         });
+    }
+
+    private MediaSource buildMediaSource() {
         DefaultBandwidthMeter bandwidthMeter = new DefaultBandwidthMeter();
         DataSource.Factory dataSourceFactory = new DefaultDataSourceFactory(this.ctx, Util.getUserAgent(this.ctx, "EMP-Player"), bandwidthMeter);
-        MediaSource mediaSource = new DashMediaSource(this.manifestUrl, dataSourceFactory, new DefaultDashChunkSource.Factory(dataSourceFactory), null, null);
-        player.prepare(mediaSource);
-        overrideExoControls();
+        MediaSource mediaSource;
+        if (this.loadedManifest != null && this.loadedManifest.uri.equals(this.manifestUrl)) {
+            // Manifest was already fetched and parsed during load - first manifest load of the media source is served from memory
+            mediaSource = new DashMediaSource(this.manifestUrl,
+                    this.loadedManifest.newDataSourceFactory(dataSourceFactory),
+                    this.loadedManifest.newParser(),
+                    new DefaultDashChunkSource.Factory(dataSourceFactory),
+                    DashMediaSource.DEFAULT_MIN_LOADABLE_RETRY_COUNT,
+                    DashMediaSource.DEFAULT_LIVE_PRESENTATION_DELAY_PREFER_MANIFEST_MS,
+                    null, null);
+        }
+        else {
+            mediaSource = new DashMediaSource(this.manifestUrl, dataSourceFactory, new DefaultDashChunkSource.Factory(dataSourceFactory), null, null);
+        }
+        this.loadedManifest = null;
+        return mediaSource;
+    }
+
+    private void applyStartPosition() {
+        if (startTimeSeekDone || properties == null || properties.getPlayFrom() == null) {
+            return;
+        }
+        if (properties.getPlayFrom() instanceof PlaybackProperties.PlayFrom.LiveEdge) {
+            long[] seekTimeRange = getSeekTimeRange();
+            if (seekTimeRange != null) {
+                seekToTime(seekTimeRange[1] - Player.SAFETY_LIVE_DELAY);
+            }
+            else {
+                long startTime = parent.getMonotonicTimeService().currentTime() - getTimeshiftDelay() * 1000 - Player.SAFETY_LIVE_DELAY;
+                seekToTime(startTime);
+            }
+            startTimeSeekDone = true;
+        }
+        else if (properties.getPlayFrom() instanceof PlaybackProperties.PlayFrom.StartTime) {
+            long startTime = ((PlaybackProperties.PlayFrom.StartTime) properties.getPlayFrom()).startTime;
+            long[] range = getSeekTimeRange();
+            if (range != null && (startTime < range[0] || startTime > range[1])) {
+                if (preloading == false) {
+                    parent.trigger(IPlaybackEventListener.EventId.WARNING, Warning.INVALID_START_TIME);
+                }
+            }
+            else {
+                seekToTime(startTime);
+                startTimeSeekDone = true;
+            }
+        }
     }
 
     public void release() {
+        if (loadGraph != null) {
+            // Pending manifest, license and player creation work of this tech is abandoned
+            loadGraph.cancel();
+        }
+        if (preloading) {
+            // A preload that is still loading must not create its player afterwards
+            preloadFailed = true;
+        }
         if (player == null) {
             return;
         }
@@ -482,12 +909,16 @@ public class ExoPlayerTech implements ITech {
     }
 
     public void stop() {
+        if (loadGraph != null) {
+            loadGraph.cancel();
+        }
         if (player != null) {
             this.player.stop();
         }
     }
 
     public void seekTo(long positionMs) {
+        this.seekedTimeshiftDelay = -1;
         if (player != null && positionMs >= 0) {
             if (positionMs >= getDuration()) {
                 positionMs = getDuration();
@@ -497,6 +928,7 @@ public class ExoPlayerTech implements ITech {
     }
 
     public void seekToTime(long unixTimeMs) {
+        this.seekedTimeshiftDelay = -1;
         if (player != null) {
             if (unixTimeMs >= parent.getMonotonicTimeService().currentTime()) {
                 unixTimeMs = parent.getMonotonicTimeService().currentTime();
@@ -786,6 +1218,9 @@ public class ExoPlayerTech implements ITech {
     }
 
     public long getTimeshiftDelay() {
+        if (this.seekedTimeshiftDelay >= 0) {
+            return this.seekedTimeshiftDelay;
+        }
         if (this.manifestUrl == null) {
             return 0;
         }
@@ -796,8 +1231,22 @@ public class ExoPlayerTech implements ITech {
         return Long.parseLong(timeshiftOldValue);
     }
 
+    /**
+     * Sets the timeshift delay: seeks within the current window when the delayed position is seekable,
+     * otherwise rewrites the time_shift manifest parameter and reloads the stream
+     *
+     * @param timeshift delay from live point in seconds
+     */
     public void setTimeshiftDelay(long timeshift) {
         if (isPlaying()) {
+            long[] range = getSeekTimeRange();
+            long targetTime = parent.getMonotonicTimeService().currentTime() - timeshift * 1000;
+            if (range != null && targetTime >= range[0] && targetTime <= range[1]) {
+                seekToTime(targetTime);
+                this.seekedTimeshiftDelay = timeshift;
+                return;
+            }
+
             String newManifestUrl = null;
             String timeshiftOldValue = this.manifestUrl.getQueryParameter("time_shift");
             if (timeshiftOldValue == null) {
@@ -853,6 +1302,11 @@ public class ExoPlayerTech implements ITech {
 
 
     private DrmSessionManager<FrameworkMediaCrypto> buildDrmSessionManagerV18(UUID uuid, String licenseUrl, String[] keyRequestPropertiesArray) throws UnsupportedDrmException {
+        this.drmCallback = new SwappableDrmCallback(buildHttpDrmCallback(licenseUrl, keyRequestPropertiesArray));
+        return new DefaultDrmSessionManager<>(uuid, FrameworkMediaDrm.newInstance(uuid), this.drmCallback, null, null, null);
+    }
+
+    private HttpMediaDrmCallback buildHttpDrmCallback(String licenseUrl, String[] keyRequestPropertiesArray) {
         HttpMediaDrmCallback drmCallback = new HttpMediaDrmCallback(licenseUrl, buildHttpDataSourceFactory(false));
         if (keyRequestPropertiesArray != null) {
             for (int i = 0; i < keyRequestPropertiesArray.length - 1; i += 2) {
@@ -860,7 +1314,14 @@ public class ExoPlayerTech implements ITech {
                         keyRequestPropertiesArray[i + 1]);
             }
         }
-        return new DefaultDrmSessionManager<>(uuid, FrameworkMediaDrm.newInstance(uuid), drmCallback, null, null, null);
+        return drmCallback;
+    }
+
+    private String buildLicenseUrlWithToken(String licenseUrl, String playToken) {
+        return Uri.parse(licenseUrl)
+                .buildUpon()
+                .appendQueryParameter("token", "Bearer " + playToken)
+                .build().toString();
     }
 
     private HttpDataSource.Factory buildHttpDataSourceFactory(boolean useBandwidthMeter) {
@@ -1,7 +1,10 @@
 package net.ericsson.emovs.playback.techs.ExoPlayer;
 
+import android.app.Activity;
+
 import net.ericsson.emovs.playback.TechFactory;
 import net.ericsson.emovs.playback.interfaces.ITech;
+import net.ericsson.emovs.playback.scheduling.CancellationToken;
 
 /**
  * Created by Benjamin on 2017-11-22.
@@ -12,4 +15,9 @@ public class ExoTechFactory extends TechFactory {
     public ITech build() {
         return new ExoPlayerTech();
     }
+
+    @Override
+    public void prefetch(Activity ctx, String manifestUrl, CancellationToken cancellationToken) {
+        DashManifestLoader.getInstance().prefetch(ctx, manifestUrl, cancellationToken);
+    }
 }
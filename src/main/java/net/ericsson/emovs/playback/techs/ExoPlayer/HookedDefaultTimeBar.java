@@ -5,9 +5,9 @@ import android.util.AttributeSet;
 
 import com.google.android.exoplayer2.ui.DefaultTimeBar;
 
+import net.ericsson.emovs.playback.services.ProgramInterval;
 import net.ericsson.emovs.utilities.interfaces.IEntitledPlayer;
 import net.ericsson.emovs.utilities.interfaces.IPlayer;
-import net.ericsson.emovs.utilities.models.EmpProgram;
 
 /**
  * Created by Joao Coelho on 2018-01-24.
@@ -15,6 +15,7 @@ import net.ericsson.emovs.utilities.models.EmpProgram;
 
 public class HookedDefaultTimeBar extends DefaultTimeBar {
     IPlayer player;
+    ProgramInterval interval;
 
     public HookedDefaultTimeBar(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -28,11 +29,9 @@ public class HookedDefaultTimeBar extends DefaultTimeBar {
     public void setPosition(long position) {
         if (player instanceof IEntitledPlayer) {
             IEntitledPlayer entitledPlayer = (IEntitledPlayer) player;
-            EmpProgram currentProgram = entitledPlayer.getCurrentProgram();
-            if (currentProgram != null && currentProgram.getDuration() != null) {
-                long duration = currentProgram.getDuration();
-                long newPosition = Math.min(duration, Math.max(0, player.getPlayheadTime() - currentProgram.startDateTime.getMillis()));
-                super.setPosition(newPosition);
+            ProgramInterval currentInterval = getProgramInterval(entitledPlayer);
+            if (currentInterval != null) {
+                super.setPosition(currentInterval.getPosition(player.getPlayheadTime()));
                 return;
             }
         }
@@ -43,12 +42,10 @@ public class HookedDefaultTimeBar extends DefaultTimeBar {
     public void setBufferedPosition(long bufferedPosition) {
         if (player instanceof IEntitledPlayer) {
             IEntitledPlayer entitledPlayer = (IEntitledPlayer) player;
-            EmpProgram currentProgram = entitledPlayer.getCurrentProgram();
+            ProgramInterval currentInterval = getProgramInterval(entitledPlayer);
             long[] bufferedTimeRange = player.getBufferedTimeRange();
-            if (currentProgram != null && currentProgram.getDuration() != null && bufferedTimeRange != null) {
-                long duration = currentProgram.getDuration();
-                long newPosition = Math.min(duration, Math.max(0, bufferedTimeRange[1] - currentProgram.startDateTime.getMillis()));
-                super.setBufferedPosition(newPosition);
+            if (currentInterval != null && bufferedTimeRange != null) {
+                super.setBufferedPosition(currentInterval.getPosition(bufferedTimeRange[1]));
                 return;
             }
         }
@@ -59,18 +56,23 @@ public class HookedDefaultTimeBar extends DefaultTimeBar {
     public void setDuration(long duration) {
         if (player instanceof IEntitledPlayer) {
             IEntitledPlayer entitledPlayer = (IEntitledPlayer) player;
-            EmpProgram currentProgram = entitledPlayer.getCurrentProgram();
+            ProgramInterval currentInterval = getProgramInterval(entitledPlayer);
             long[] seekableTimeRange = player.getSeekTimeRange();
-            if (currentProgram != null && currentProgram.getDuration() != null && seekableTimeRange != null) {
-                long liveDuration = seekableTimeRange[1] - currentProgram.startDateTime.getMillis();
-                long programDuration = currentProgram.getDuration();
-                super.setDuration(Math.min(liveDuration, programDuration));
+            if (currentInterval != null && seekableTimeRange != null) {
+                long liveDuration = seekableTimeRange[1] - currentInterval.startTime;
+                super.setDuration(Math.min(liveDuration, currentInterval.getDuration()));
                 return;
             }
         }
         super.setDuration(duration);
     }
 
+    private ProgramInterval getProgramInterval(IEntitledPlayer entitledPlayer) {
+        // Only rebuilt when the program changes, the time bar is updated every frame
+        this.interval = ProgramInterval.of(entitledPlayer.getCurrentProgram(), this.interval);
+        return this.interval;
+    }
+
     @Override
     public void setEnabled(boolean enabled) {
         super.setEnabled(enabled);
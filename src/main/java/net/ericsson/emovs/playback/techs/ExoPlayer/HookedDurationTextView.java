@@ -3,9 +3,9 @@ package net.ericsson.emovs.playback.techs.ExoPlayer;
 import android.content.Context;
 import android.util.AttributeSet;
 
+import net.ericsson.emovs.playback.services.ProgramInterval;
 import net.ericsson.emovs.utilities.interfaces.IEntitledPlayer;
 import net.ericsson.emovs.utilities.interfaces.IPlayer;
-import net.ericsson.emovs.utilities.models.EmpProgram;
 import net.ericsson.emovs.utilities.time.DateTimeParser;
 
 /**
@@ -14,6 +14,7 @@ import net.ericsson.emovs.utilities.time.DateTimeParser;
 
 public class HookedDurationTextView extends android.support.v7.widget.AppCompatTextView {
     IPlayer player;
+    ProgramInterval interval;
 
     public HookedDurationTextView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -27,11 +28,11 @@ public class HookedDurationTextView extends android.support.v7.widget.AppCompatT
     protected void onTextChanged(CharSequence text, int start, int lengthBefore, int lengthAfter) {
         if (player != null && player instanceof IEntitledPlayer) {
             IEntitledPlayer entitledPlayer = (IEntitledPlayer) player;
-            EmpProgram currentProgram = entitledPlayer.getCurrentProgram();
+            this.interval = ProgramInterval.of(entitledPlayer.getCurrentProgram(), this.interval);
             long[] seekableTimeRange = player.getSeekTimeRange();
-            if (currentProgram != null && currentProgram.getDuration() != null && seekableTimeRange != null) {
-                long liveDuration = seekableTimeRange[1] - currentProgram.startDateTime.getMillis();
-                String newDuration = DateTimeParser.formatDisplayTime(Math.min(currentProgram.getDuration(), liveDuration));
+            if (this.interval != null && seekableTimeRange != null) {
+                long liveDuration = seekableTimeRange[1] - this.interval.startTime;
+                String newDuration = DateTimeParser.formatDisplayTime(Math.min(this.interval.getDuration(), liveDuration));
                 if (newDuration.equals(text) == false) {
                     setText(newDuration);
                     invalidate();
@@ -3,9 +3,9 @@ package net.ericsson.emovs.playback.techs.ExoPlayer;
 import android.content.Context;
 import android.util.AttributeSet;
 
+import net.ericsson.emovs.playback.services.ProgramInterval;
 import net.ericsson.emovs.utilities.interfaces.IEntitledPlayer;
 import net.ericsson.emovs.utilities.interfaces.IPlayer;
-import net.ericsson.emovs.utilities.models.EmpProgram;
 import net.ericsson.emovs.utilities.time.DateTimeParser;
 
 /**
@@ -14,6 +14,7 @@ import net.ericsson.emovs.utilities.time.DateTimeParser;
 
 public class HookedPositionTextView extends android.support.v7.widget.AppCompatTextView {
     IPlayer player;
+    ProgramInterval interval;
 
     public HookedPositionTextView(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -27,10 +28,9 @@ public class HookedPositionTextView extends android.support.v7.widget.AppCompatT
     protected void onTextChanged(CharSequence text, int start, int lengthBefore, int lengthAfter) {
         if (player != null && player instanceof IEntitledPlayer) {
             IEntitledPlayer entitledPlayer = (IEntitledPlayer) player;
-            EmpProgram currentProgram = entitledPlayer.getCurrentProgram();
-            if (currentProgram != null && currentProgram.getDuration() != null ) {
-                long programDuration = currentProgram.getDuration();
-                long positionInTheProgram = Math.max(0, Math.min(programDuration, player.getPlayheadTime() - currentProgram.startDateTime.getMillis()));
+            this.interval = ProgramInterval.of(entitledPlayer.getCurrentProgram(), this.interval);
+            if (this.interval != null) {
+                long positionInTheProgram = this.interval.getPosition(player.getPlayheadTime());
                 String newPosition = DateTimeParser.formatDisplayTime(positionInTheProgram);
                 if (newPosition.equals(text) == false) {
                     setText(newPosition);
@@ -25,6 +25,10 @@ public class HookedSimpleExoPlayer extends SimpleExoPlayer {
         return new HookedSimpleExoPlayer(tech, renderersFactory, trackSelector, new DefaultLoadControl());
     }
 
+    public static HookedSimpleExoPlayer newSimpleInstance(ExoPlayerTech tech, RenderersFactory renderersFactory, TrackSelector trackSelector, LoadControl loadControl) {
+        return new HookedSimpleExoPlayer(tech, renderersFactory, trackSelector, loadControl);
+    }
+
     @Override
     public void setPlayWhenReady(boolean playWhenReady) {
         super.setPlayWhenReady(playWhenReady);
@@ -95,10 +99,15 @@ public class HookedSimpleExoPlayer extends SimpleExoPlayer {
         }
     }
 
+    void releaseSilently() {
+        this.tech = null;
+        release();
+    }
+
     @Override
     public void release() {
         super.release();
-        if(tech != null && tech.getParent() != null) {
+        if(tech != null && tech.getParent() != null && tech.isPreloading() == false) {
             tech.getParent().onDispose();
         }
     }
@@ -0,0 +1,68 @@
+package net.ericsson.emovs.playback.techs.ExoPlayer;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.LoadControl;
+import com.google.android.exoplayer2.Renderer;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelectionArray;
+import com.google.android.exoplayer2.upstream.Allocator;
+
+/**
+ * LoadControl that caps the buffer to a small warm-up duration while a stream is preloaded in the background.
+ * Once the cap is removed it behaves exactly as the wrapped LoadControl.
+ */
+public class WarmupLoadControl implements LoadControl {
+    private final LoadControl delegate;
+    private volatile long warmBufferUs;
+
+    public WarmupLoadControl(LoadControl delegate) {
+        this.delegate = delegate;
+        this.warmBufferUs = 0;
+    }
+
+    /**
+     * @param warmBufferMs maximum buffered duration in milliseconds - 0 removes the cap
+     */
+    public void setWarmBufferMs(long warmBufferMs) {
+        this.warmBufferUs = warmBufferMs > 0 ? C.msToUs(warmBufferMs) : 0;
+    }
+
+    @Override
+    public void onPrepared() {
+        delegate.onPrepared();
+    }
+
+    @Override
+    public void onTracksSelected(Renderer[] renderers, TrackGroupArray trackGroups, TrackSelectionArray trackSelections) {
+        delegate.onTracksSelected(renderers, trackGroups, trackSelections);
+    }
+
+    @Override
+    public void onStopped() {
+        delegate.onStopped();
+    }
+
+    @Override
+    public void onReleased() {
+        delegate.onReleased();
+    }
+
+    @Override
+    public Allocator getAllocator() {
+        return delegate.getAllocator();
+    }
+
+    @Override
+    public boolean shouldStartPlayback(long bufferedDurationUs, boolean rebuffering) {
+        return delegate.shouldStartPlayback(bufferedDurationUs, rebuffering);
+    }
+
+    @Override
+    public boolean shouldContinueLoading(long bufferedDurationUs) {
+        long cap = warmBufferUs;
+        if (cap > 0 && bufferedDurationUs >= cap) {
+            return false;
+        }
+        return delegate.shouldContinueLoading(bufferedDurationUs);
+    }
+}
@@ -1,6 +1,7 @@
 package net.ericsson.emovs.playback;
 
 import android.app.Activity;
+import android.util.Base64;
 import android.view.View;
 import android.view.ViewGroup;
 
@@ -13,8 +14,20 @@ import net.ericsson.emovs.playback.helpers.FakeEMPMetadataProvider;
 import net.ericsson.emovs.playback.helpers.FakeEntitlementProvider;
 import net.ericsson.emovs.playback.helpers.FakeExposureClient;
 import net.ericsson.emovs.playback.helpers.FakeTech;
+import net.ericsson.emovs.playback.helpers.VirtualProgramMonitor;
+import net.ericsson.emovs.playback.interfaces.IPreloadableTech;
+import net.ericsson.emovs.playback.interfaces.IReusableTech;
+import net.ericsson.emovs.playback.interfaces.ISourceSwitchableTech;
 import net.ericsson.emovs.playback.interfaces.ITech;
+import net.ericsson.emovs.playback.interfaces.ITokenRefreshableTech;
+import net.ericsson.emovs.playback.scheduling.CancellationToken;
+import net.ericsson.emovs.playback.scheduling.SeekScheduler;
+import net.ericsson.emovs.playback.services.EntitlementCache;
+import net.ericsson.emovs.playback.services.EntitlementKeeper;
+import net.ericsson.emovs.playback.services.EpgSnapshotStore;
+import net.ericsson.emovs.playback.services.ProgramMonitor;
 import net.ericsson.emovs.utilities.analytics.AnalyticsPlaybackConnector;
+import net.ericsson.emovs.utilities.entitlements.EntitledRunnable;
 import net.ericsson.emovs.utilities.entitlements.Entitlement;
 import net.ericsson.emovs.utilities.entitlements.IEntitlementCallback;
 import net.ericsson.emovs.utilities.entitlements.IEntitlementProvider;
@@ -35,13 +48,16 @@ import org.mockito.internal.matchers.InstanceOf;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
 
+import java.io.File;
 import java.util.ArrayList;
 
 import static net.ericsson.emovs.utilities.errors.WarningCodes.INVALID_START_TIME;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -60,6 +76,9 @@ import static org.mockito.MockitoAnnotations.initMocks;
 
 @RunWith(RobolectricTestRunner.class)
 public class EMPPlayerTest {
+    // The players under test never resolve programs from the process-wide snapshot left by other tests
+    static final EpgSnapshotStore NO_EPG_SNAPSHOT = new EpgSnapshotStore(null) {};
+
     // TODO: make unit tests to ensure cases where EmpProgram is passed without all information: like programStartTime and programEndTime
 
     PlaybackProperties DEFAULT_PLAYBACK_PROPS = PlaybackProperties.DEFAULT;
@@ -357,6 +376,577 @@ public class EMPPlayerTest {
         Assert.assertTrue(player.getPlaybackProperties().getPlayFrom() instanceof PlaybackProperties.PlayFrom.LiveEdge);
     }
 
+    @Test
+    public void live_program_from_epg_snapshot_test() throws Exception {
+        // A fresh snapshot resolves the live program: playback starts from its beginning and the program service knows it
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider();
+        FakeEMPMetadataProvider fakeMetadataProvider = new FakeEMPMetadataProvider();
+        TestUtils.mockProvider(EMPMetadataProvider.class, fakeMetadataProvider);
+        fakeMetadataProvider.mockEpg(null);
+
+        File file = File.createTempFile("epg_snapshot", ".bin");
+        file.delete();
+        live_channel.channelId = "snapshot-channel";
+        live_program.assetId = "@snapshot/1";
+        ArrayList<EmpProgram> snapshotEpg = new ArrayList<>();
+        snapshotEpg.add(live_program);
+        final EpgSnapshotStore snapshotStore = new EpgSnapshotStore(file) {};
+        snapshotStore.update(live_channel.channelId, snapshotEpg, live_program.startDateTime.getMillis(), live_program.endDateTime.getMillis());
+
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, techFactory, dummyActivity, null) {
+            @Override
+            protected EpgSnapshotStore getEpgSnapshotStore() {
+                return snapshotStore;
+            }
+        };
+        player.play(live_channel, BEGINNING_PLAYBACK_PROPS);
+        Thread.sleep(50);
+
+        Assert.assertTrue(player.getPlaybackProperties().getPlayFrom() instanceof PlaybackProperties.PlayFrom.Beginning);
+        Assert.assertEquals(live_program.startDateTime.getMillis(), ((PlaybackProperties.PlayFrom.Beginning) player.getPlaybackProperties().getPlayFrom()).startTime);
+        Assert.assertNotNull(player.programService);
+        EmpProgram initialProgram = player.programService.getCurrentProgram();
+        Assert.assertNotNull(initialProgram);
+        Assert.assertEquals("@snapshot/1", initialProgram.assetId);
+        Assert.assertEquals(live_program.endDateTime.getMillis(), initialProgram.endDateTime.getMillis());
+        file.delete();
+    }
+
+    @Test
+    public void preload_reuses_entitlement_test() throws Exception {
+        final int[] entitlementRequests = { 0 };
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playLive(String channelId, IEntitlementCallback listener) {
+                entitlementRequests[0]++;
+                super.playLive(channelId, listener);
+            }
+        };
+        fakeEE.setEntitlement(entitlement_no_maxbitrate_contract);
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, techFactory, dummyActivity, null);
+
+        player.preload(live_channel, DEFAULT_PLAYBACK_PROPS);
+        Assert.assertEquals(1, entitlementRequests[0]);
+
+        player.play(live_channel, DEFAULT_PLAYBACK_PROPS);
+        Thread.sleep(50);
+        Assert.assertEquals(1, entitlementRequests[0]);
+        Assert.assertNotNull(player.getEntitlement());
+        Assert.assertTrue(player.getPlaybackProperties().getPlayFrom() instanceof PlaybackProperties.PlayFrom.LiveEdge);
+
+        // Preloaded state is consumed by the first play
+        player.reset();
+        player.play(live_channel, DEFAULT_PLAYBACK_PROPS);
+        Thread.sleep(50);
+        Assert.assertEquals(2, entitlementRequests[0]);
+    }
+
+    @Test
+    public void latest_play_request_wins_test() throws Exception {
+        final ArrayList<IEntitlementCallback> pendingCallbacks = new ArrayList<>();
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playLive(String channelId, IEntitlementCallback listener) {
+                pendingCallbacks.add(listener);
+            }
+        };
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, techFactory, dummyActivity, null);
+
+        Entitlement firstEntitlement = new Entitlement();
+        firstEntitlement.mediaLocator = "first.isml";
+        Entitlement secondEntitlement = new Entitlement();
+        secondEntitlement.mediaLocator = "second.isml";
+
+        // Second request is issued right after the first one and must not be dropped
+        player.play(live_channel, DEFAULT_PLAYBACK_PROPS);
+        player.play(live_channel, DEFAULT_PLAYBACK_PROPS);
+        Assert.assertEquals(2, pendingCallbacks.size());
+
+        // Late answer of the superseded request is ignored
+        pendingCallbacks.get(1).onEntitlement(secondEntitlement);
+        pendingCallbacks.get(0).onEntitlement(firstEntitlement);
+        Thread.sleep(50);
+        Assert.assertEquals("second.isml", player.getEntitlement().mediaLocator);
+    }
+
+    @Test
+    public void stop_cancels_pending_startup_test() throws Exception {
+        final ArrayList<IEntitlementCallback> pendingCallbacks = new ArrayList<>();
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playLive(String channelId, IEntitlementCallback listener) {
+                pendingCallbacks.add(listener);
+            }
+        };
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, techFactory, dummyActivity, null);
+
+        player.play(live_channel, DEFAULT_PLAYBACK_PROPS);
+        player.stop();
+        pendingCallbacks.get(0).onEntitlement(entitlement_no_maxbitrate_contract);
+        Thread.sleep(50);
+        Assert.assertNull(player.getEntitlement());
+    }
+
+    @Test
+    public void channel_zapper_keeps_neighbours_warm_test() throws Exception {
+        final ArrayList<String> entitlementRequests = new ArrayList<>();
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playLive(String channelId, IEntitlementCallback listener) {
+                entitlementRequests.add(channelId);
+                super.playLive(channelId, listener);
+            }
+        };
+        fakeEE.setEntitlement(entitlement_no_maxbitrate_contract);
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, techFactory, dummyActivity, null);
+
+        ArrayList<EmpChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            EmpChannel channel = mock(EmpChannel.class);
+            channel.channelId = "channel_" + i;
+            channels.add(channel);
+        }
+
+        ChannelZapper zapper = new ChannelZapper(player, channels, new ChannelZapper.Config().withNeighbourCount(1));
+        Assert.assertEquals(2, zapper.getWarmSetSize());
+
+        // Current channel is played and both neighbours are warmed up
+        zapper.zapTo(0);
+        Thread.sleep(50);
+        Assert.assertEquals(3, entitlementRequests.size());
+        Assert.assertTrue(zapper.getWarmChannels().contains(channels.get(1)));
+        Assert.assertTrue(zapper.getWarmChannels().contains(channels.get(2)));
+
+        // Zapping up reuses the warm entitlement and only warms the new neighbour
+        player.reset();
+        zapper.channelUp();
+        Thread.sleep(50);
+        Assert.assertEquals(1, zapper.getCurrentIndex());
+        Assert.assertEquals(4, entitlementRequests.size());
+        Assert.assertEquals("channel_0", entitlementRequests.get(3));
+
+        // Memory budget limits the warm set
+        ChannelZapper.Config tightConfig = new ChannelZapper.Config().withNeighbourCount(2).withMemoryBudgetBytes(ChannelZapper.PIPELINE_OVERHEAD_BYTES);
+        Assert.assertEquals(0, new ChannelZapper(player, channels, tightConfig.withWarmBufferMs(1000)).getWarmSetSize());
+        zapper.release();
+        Assert.assertTrue(zapper.getWarmChannels().isEmpty());
+    }
+
+    @Test
+    public void channel_zapper_warm_lifetime_test() throws Exception {
+        class WarmFakeTech extends FakeTech implements IPreloadableTech {
+            boolean preloaded;
+            boolean activated;
+
+            @Override
+            public void preload(Player parent, Activity ctx, String playToken, PlaybackProperties properties, String mediaId, String manifestUrl, long warmBufferMs) {
+                preloaded = true;
+            }
+
+            @Override
+            public boolean isPreloaded() {
+                return preloaded;
+            }
+
+            @Override
+            public void activate(Player parent, Activity ctx, PlaybackProperties properties) {
+                activated = true;
+            }
+        }
+        final ArrayList<WarmFakeTech> builtTechs = new ArrayList<>();
+        TechFactory warmFactory = new TechFactory() {
+            @Override
+            public ITech build() {
+                WarmFakeTech tech = new WarmFakeTech();
+                builtTechs.add(tech);
+                return tech;
+            }
+        };
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider();
+        fakeEE.setEntitlement(entitlement_no_maxbitrate_contract);
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, warmFactory, dummyActivity, null);
+        ArrayList<EmpChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            EmpChannel channel = mock(EmpChannel.class);
+            channel.channelId = "warm_channel_" + i;
+            channels.add(channel);
+        }
+        ChannelZapper zapper = new ChannelZapper(player, channels, new ChannelZapper.Config().withNeighbourCount(1));
+
+        // Without a readable play token expiry, warm pipelines live PRELOAD_MAX_AGE_MS
+        zapper.zapTo(0);
+        Thread.sleep(50);
+        Assert.assertEquals(3, builtTechs.size());
+        long expiry = player.getPreloadExpiryTime(channels.get(1));
+        Assert.assertTrue(expiry > player.getServerTime());
+        Assert.assertTrue(expiry - player.getServerTime() <= EMPPlayer.PRELOAD_MAX_AGE_MS);
+
+        // Zapping into a warm channel swaps its tech in without building a throwaway one
+        player.reset();
+        zapper.channelUp();
+        Thread.sleep(50);
+        Assert.assertTrue(builtTechs.get(1).activated);
+        Assert.assertTrue(player.getTech() == builtTechs.get(1));
+        // Only the new neighbour (channel 0) got a tech
+        Assert.assertEquals(4, builtTechs.size());
+
+        // With a play token, warm pipelines live as long as the token
+        long expirySeconds = (player.getServerTime() + 3600000L) / 1000L;
+        fakeEE.setEntitlement(buildTokenEntitlement(expirySeconds));
+        player.cancelPreload(channels.get(2));
+        player.preload(channels.get(2), PlaybackProperties.DEFAULT);
+        Thread.sleep(50);
+        Assert.assertEquals(expirySeconds * 1000L - EntitlementCache.EXPIRY_MARGIN_MS, player.getPreloadExpiryTime(channels.get(2)));
+        zapper.release();
+    }
+
+    @Test
+    public void switch_to_prefetched_program_test() throws Exception {
+        class SwitchableFakeTech extends FakeTech implements ISourceSwitchableTech {
+            final ArrayList<String> switchedTokens = new ArrayList<>();
+
+            @Override
+            public boolean isPlaying() {
+                return true;
+            }
+
+            @Override
+            public boolean switchSource(String playToken, PlaybackProperties properties, String mediaId, String manifestUrl) {
+                switchedTokens.add(playToken);
+                return true;
+            }
+        }
+        final SwitchableFakeTech switchableTech = new SwitchableFakeTech();
+        final int[] builds = { 0 };
+        TechFactory switchableFactory = new TechFactory() {
+            @Override
+            public ITech build() {
+                builds[0]++;
+                return switchableTech;
+            }
+        };
+        final int[] catchupRequests = { 0 };
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playCatchup(String channelId, String programId, IEntitlementCallback listener) {
+                catchupRequests[0]++;
+                super.playCatchup(channelId, programId, listener);
+            }
+        };
+        fakeEE.setEntitlement(entitlement_no_maxbitrate_contract);
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, switchableFactory, dummyActivity, null);
+        player.play(live_program, DEFAULT_PLAYBACK_PROPS);
+        Thread.sleep(50);
+        Assert.assertEquals(1, builds[0]);
+
+        // Next program prefetched before the boundary
+        Entitlement prefetched = new Entitlement();
+        prefetched.mediaLocator = ".isml";
+        prefetched.playToken = "prefetched-token";
+        fakeEE.setEntitlement(prefetched);
+        int requestsBeforePrefetch = catchupRequests[0];
+        player.preload(catchup_program, BEGINNING_PLAYBACK_PROPS);
+        Thread.sleep(50);
+        Assert.assertEquals(requestsBeforePrefetch + 1, catchupRequests[0]);
+
+        // Continuing into it switches the running tech in place with the prefetched entitlement
+        player.switchToProgram(catchup_program, BEGINNING_PLAYBACK_PROPS.clone(), new CancellationToken());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Thread.sleep(50);
+        Assert.assertEquals(1, switchableTech.switchedTokens.size());
+        Assert.assertEquals("prefetched-token", switchableTech.switchedTokens.get(0));
+        Assert.assertTrue(player.getEntitlement() == prefetched);
+        Assert.assertTrue(player.getPlayable() == catchup_program);
+        Assert.assertEquals(requestsBeforePrefetch + 1, catchupRequests[0]);
+        Assert.assertEquals(1, builds[0]);
+    }
+
+    @Test
+    public void seek_scheduler_coalesces_burst_test() throws Exception {
+        final ArrayList<Long> seeks = new ArrayList<>();
+        SeekScheduler scheduler = new SeekScheduler(new SeekScheduler.Target() {
+            @Override
+            public long getPlayheadTime() {
+                return 100000L;
+            }
+
+            @Override
+            public void performSeekTo(long positionMs) {
+                seeks.add(positionMs);
+            }
+
+            @Override
+            public void performSeekToTime(long unixTimeMs) {
+                seeks.add(unixTimeMs);
+            }
+        }, SeekScheduler.DEFAULT_COALESCING_WINDOW_MS);
+
+        // Three +30s presses end up in a single seek to the final position
+        scheduler.seekBy(30000L);
+        scheduler.seekBy(30000L);
+        scheduler.seekBy(30000L);
+        Assert.assertEquals(0, seeks.size());
+        Assert.assertTrue(scheduler.hasPendingSeek());
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(1, seeks.size());
+        Assert.assertEquals(190000L, (long) seeks.get(0));
+
+        // An absolute seek replaces the pending target and relative ones are added to it
+        scheduler.seekBy(-30000L);
+        scheduler.seekToTime(50000L);
+        scheduler.seekBy(-10000L);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(2, seeks.size());
+        Assert.assertEquals(40000L, (long) seeks.get(1));
+
+        // Cancelled seeks are never performed
+        scheduler.seekTo(1000L);
+        scheduler.cancel();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        Assert.assertEquals(2, seeks.size());
+    }
+
+    @Test
+    public void entitlement_cache_test() throws Exception {
+        // An entitlement fetched ahead of a playback answers the next play without a new entitlement request
+        final int[] entitlementRequests = { 0 };
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playLive(String channelId, IEntitlementCallback listener) {
+                entitlementRequests[0]++;
+                super.playLive(channelId, listener);
+            }
+        };
+        long expirySeconds = (System.currentTimeMillis() + 3600000L) / 1000L;
+        Entitlement tokenEntitlement = buildTokenEntitlement(expirySeconds);
+        Assert.assertEquals(expirySeconds * 1000L, EntitlementCache.getPlayTokenExpiry(tokenEntitlement));
+        fakeEE.setEntitlement(tokenEntitlement);
+
+        final Entitlement[] received = new Entitlement[1];
+        EntitledRunnable onEntitlement = new EntitledRunnable() {
+            @Override
+            public void run() {
+                received[0] = this.entitlement;
+            }
+        };
+        EntitlementCache cache = EntitlementCache.getInstance(fakeEE);
+        cache.clear();
+        cache.refresh(EntitlementCache.Request.live("channel1"), null, null);
+        Assert.assertEquals(1, entitlementRequests[0]);
+        cache.play(EntitlementCache.Request.live("channel1"), onEntitlement, null);
+        Assert.assertEquals(1, entitlementRequests[0]);
+        Assert.assertTrue(received[0] == tokenEntitlement);
+
+        // An entitlement starts one playback session: the next play and the responses of plays are not cached
+        Assert.assertFalse(cache.contains(EntitlementCache.Request.live("channel1")));
+        cache.play(EntitlementCache.Request.live("channel1"), onEntitlement, null);
+        cache.play(EntitlementCache.Request.live("channel1"), onEntitlement, null);
+        Assert.assertEquals(3, entitlementRequests[0]);
+
+        // Plays that bypass the cache leave the entry to the next play
+        cache.refresh(EntitlementCache.Request.live("channel1"), null, null);
+        cache.fetch(EntitlementCache.Request.live("channel1"), onEntitlement, null);
+        Assert.assertEquals(5, entitlementRequests[0]);
+        Assert.assertTrue(cache.contains(EntitlementCache.Request.live("channel1")));
+
+        // Other keys and tokens without expiry always go to the backend
+        cache.invalidate(EntitlementCache.Request.live("channel1"));
+        fakeEE.setEntitlement(entitlement_no_maxbitrate_contract);
+        cache.refresh(EntitlementCache.Request.live("channel2"), null, null);
+        cache.play(EntitlementCache.Request.live("channel2"), onEntitlement, null);
+        Assert.assertEquals(7, entitlementRequests[0]);
+    }
+
+    @Test
+    public void entitlement_cache_session_test() throws Exception {
+        // Entries of a user session are never handed to the next one
+        final int[] entitlementRequests = { 0 };
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playLive(String channelId, IEntitlementCallback listener) {
+                entitlementRequests[0]++;
+                super.playLive(channelId, listener);
+            }
+        };
+        fakeEE.setEntitlement(buildTokenEntitlement((System.currentTimeMillis() + 3600000L) / 1000L));
+        final String[] sessionToken = { "user1" };
+        EntitlementCache cache = new EntitlementCache(fakeEE) {
+            @Override
+            protected Object getSessionToken() {
+                return sessionToken[0];
+            }
+        };
+        EntitledRunnable onEntitlement = new EntitledRunnable() {
+            @Override
+            public void run() {
+            }
+        };
+        cache.refresh(EntitlementCache.Request.live("channel1"), null, null);
+        Assert.assertTrue(cache.contains(EntitlementCache.Request.live("channel1")));
+        sessionToken[0] = "user2";
+        Assert.assertFalse(cache.contains(EntitlementCache.Request.live("channel1")));
+        cache.play(EntitlementCache.Request.live("channel1"), onEntitlement, null);
+        Assert.assertEquals(2, entitlementRequests[0]);
+    }
+
+    @Test
+    public void entitlement_keeper_test() throws Exception {
+        // The play token is renewed ahead of its expiry, over and over, until the keeper is stopped
+        final long startTime = 1500000000000L;
+        final VirtualProgramMonitor monitor = new VirtualProgramMonitor(startTime);
+        final int[] entitlementRequests = { 0 };
+        final ArrayList<Entitlement> refreshed = new ArrayList<>();
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider() {
+            @Override
+            public void playLive(String channelId, IEntitlementCallback listener) {
+                entitlementRequests[0]++;
+                setEntitlement(buildTokenEntitlement((monitor.currentTime() + 3600000L) / 1000L));
+                super.playLive(channelId, listener);
+            }
+        };
+        EntitlementKeeper keeper = new EntitlementKeeper(EntitlementCache.getInstance(fakeEE), EntitlementCache.Request.live("channel1"), new EntitlementKeeper.Target() {
+            @Override
+            public void onEntitlementRefreshed(Entitlement entitlement) {
+                refreshed.add(entitlement);
+            }
+        }) {
+            @Override
+            protected long currentTime() {
+                return monitor.currentTime();
+            }
+
+            @Override
+            protected ProgramMonitor getScheduler() {
+                return monitor;
+            }
+        };
+
+        Assert.assertFalse(keeper.start(entitlement_no_maxbitrate_contract));
+        Assert.assertTrue(keeper.start(buildTokenEntitlement((startTime + 3600000L) / 1000L)));
+        monitor.runUntil(startTime + 3600000L - EntitlementKeeper.REFRESH_LEAD_MS - 1);
+        Assert.assertEquals(0, entitlementRequests[0]);
+        monitor.runUntil(startTime + 3600000L - EntitlementKeeper.REFRESH_LEAD_MS);
+        Assert.assertEquals(1, entitlementRequests[0]);
+        Assert.assertEquals(1, refreshed.size());
+        monitor.runUntil(startTime + 3 * 3600000L);
+        Assert.assertEquals(3, entitlementRequests[0]);
+        Assert.assertEquals(3, refreshed.size());
+
+        keeper.stop();
+        monitor.runUntil(startTime + 6 * 3600000L);
+        Assert.assertEquals(3, entitlementRequests[0]);
+        Assert.assertFalse(keeper.isRunning());
+    }
+
+    @Test
+    public void refreshed_play_token_keeps_session_test() throws Exception {
+        class TokenRefreshableFakeTech extends FakeTech implements ITokenRefreshableTech {
+            final ArrayList<String> playTokens = new ArrayList<>();
+
+            @Override
+            public boolean refreshPlayToken(String playToken) {
+                playTokens.add(playToken);
+                return true;
+            }
+        }
+        final TokenRefreshableFakeTech refreshableTech = new TokenRefreshableFakeTech();
+        TechFactory refreshableFactory = new TechFactory() {
+            @Override
+            public ITech build() {
+                return refreshableTech;
+            }
+        };
+        long expirySeconds = (System.currentTimeMillis() + 3600000L) / 1000L;
+        Entitlement sessionEntitlement = buildTokenEntitlement(expirySeconds);
+        sessionEntitlement.playSessionId = "session-1";
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider();
+        fakeEE.setEntitlement(sessionEntitlement);
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, refreshableFactory, dummyActivity, null);
+        final int[] entitlementChanges = { 0 };
+        player.play(live_program, DEFAULT_PLAYBACK_PROPS);
+        Thread.sleep(50);
+        player.addListener(new EmptyPlaybackEventListener(player) {
+            @Override
+            public void onEntitlementChange() {
+                entitlementChanges[0]++;
+            }
+        });
+
+        // Only the play token of the refreshed entitlement is taken: same session, no entitlement change event
+        Entitlement refreshed = buildTokenEntitlement(expirySeconds + 3600L);
+        refreshed.playSessionId = "session-2";
+        player.applyRefreshedEntitlement(EMPPlayer.getEntitlementRequest(player.getPlayable()), refreshed);
+        Assert.assertEquals(1, refreshableTech.playTokens.size());
+        Assert.assertEquals(refreshed.playToken, refreshableTech.playTokens.get(0));
+        Assert.assertEquals(refreshed.playToken, player.getEntitlement().playToken);
+        Assert.assertEquals("session-1", player.getSessionId());
+        Assert.assertEquals(0, entitlementChanges[0]);
+        player.release();
+    }
+
+    @Test
+    public void player_reuse_test() throws Exception {
+        class ReusableFakeTech extends FakeTech implements IReusableTech {
+            int recycles;
+            int releases;
+
+            @Override
+            public boolean recycle() {
+                recycles++;
+                return true;
+            }
+
+            @Override
+            public void release() {
+                releases++;
+            }
+        }
+        final ArrayList<ReusableFakeTech> builtTechs = new ArrayList<>();
+        TechFactory countingFactory = new TechFactory() {
+            @Override
+            public ITech build() {
+                ReusableFakeTech tech = new ReusableFakeTech();
+                builtTechs.add(tech);
+                return tech;
+            }
+        };
+        FakeEntitlementProvider fakeEE = new FakeEntitlementProvider();
+        fakeEE.setEntitlement(entitlement_no_maxbitrate_contract);
+        EMPPlayerTechGetter player = new EMPPlayerTechGetter(null, fakeEE, countingFactory, dummyActivity, null);
+
+        // Without reuse every play builds a new tech and releases the previous one
+        player.play(live_program, new PlaybackProperties());
+        Thread.sleep(50);
+        player.play(live_program, new PlaybackProperties());
+        Thread.sleep(50);
+        Assert.assertEquals(2, builtTechs.size());
+        Assert.assertEquals(1, builtTechs.get(0).releases);
+
+        // With reuse the tech is recycled and loaded again with the new stream
+        player.play(live_program, new PlaybackProperties().withPlayerReuse(true));
+        Thread.sleep(50);
+        player.play(catchup_program, new PlaybackProperties().withPlayerReuse(true));
+        Thread.sleep(50);
+        Assert.assertEquals(2, builtTechs.size());
+        Assert.assertEquals(2, builtTechs.get(1).recycles);
+        Assert.assertEquals(0, builtTechs.get(1).releases);
+        Assert.assertTrue(player.getTech() == builtTechs.get(1));
+        Assert.assertTrue(player.getTech().propsFedToTech.isPlayerReuse());
+    }
+
+    private static Entitlement buildTokenEntitlement(long expirySeconds) {
+        try {
+            String claims = Base64.encodeToString(("{\"exp\":" + expirySeconds + "}").getBytes("UTF-8"), Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+            Entitlement entitlement = new Entitlement();
+            entitlement.mediaLocator = ".isml";
+            entitlement.playToken = "header." + claims + ".signature";
+            return entitlement;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     class EMPPlayerTechGetter extends EMPPlayer {
         public int warningCode;
 
@@ -370,7 +960,11 @@ public class EMPPlayerTest {
 
         public void reset() {
             this.warningCode = -1;
-            this.lastPlayTimeMs = 0L;
+        }
+
+        @Override
+        protected EpgSnapshotStore getEpgSnapshotStore() {
+            return NO_EPG_SNAPSHOT;
         }
 
         @Override
@@ -7,12 +7,24 @@ import net.ericsson.emovs.exposure.metadata.EMPMetadataProvider;
 import net.ericsson.emovs.playback.helpers.FakeEMPEntitlementProvider;
 import net.ericsson.emovs.playback.helpers.FakeEMPMetadataProvider;
 import net.ericsson.emovs.playback.helpers.FakeEntitledPlayer;
+import net.ericsson.emovs.playback.helpers.FakeEntitlementProvider;
 import net.ericsson.emovs.playback.helpers.FakeProgramService;
+import net.ericsson.emovs.playback.services.EntitlementIntervalCache;
+import net.ericsson.emovs.playback.services.EpgCache;
+import net.ericsson.emovs.playback.services.EpgSnapshotStore;
+import net.ericsson.emovs.playback.services.ProgramMonitor;
 import net.ericsson.emovs.playback.services.ProgramService;
+import net.ericsson.emovs.playback.services.SharedEntitlementCache;
+import net.ericsson.emovs.playback.services.TokenBucket;
 import net.ericsson.emovs.utilities.entitlements.Entitlement;
 import net.ericsson.emovs.utilities.errors.ErrorCodes;
+import net.ericsson.emovs.utilities.errors.Error;
+import net.ericsson.emovs.utilities.errors.ErrorRunnable;
 import net.ericsson.emovs.utilities.errors.WarningCodes;
+import net.ericsson.emovs.utilities.interfaces.IMetadataCallback;
 import net.ericsson.emovs.utilities.models.EmpProgram;
+import net.ericsson.emovs.utilities.queries.EpgQueryParameters;
+import net.ericsson.emovs.utilities.system.ParameterizedRunnable;
 import net.ericsson.emovs.utilities.test.TestUtils;
 
 import org.joda.time.DateTime;
@@ -22,8 +34,13 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -90,7 +107,6 @@ public class ProgramServiceCacheTest {
     @Test
     public void entitled_live_program_boundary_crossing_test() throws Exception {
         // Test Case 1: Normal playback and program ends and starts a new program (User is ENTITLED to watch next program)
-        ProgramService.FUZZY_ENTITLEMENT_MAX_DELAY = 30000;
 
         FakeEMPMetadataProvider fakeMetadataProvider = new FakeEMPMetadataProvider();
         TestUtils.mockProvider(EMPMetadataProvider.class, fakeMetadataProvider);
@@ -109,6 +125,7 @@ public class ProgramServiceCacheTest {
 
 
         FakeProgramService service = new FakeProgramService(player, entitlement_with_bookmark_emup, null);
+        service.setEntitlementFuzzyMaxDelay(30000);
 
         fakeEntitlementProvider.mockIsEntitled(true);
         fakeEntitlementProvider.forgetEntitlementCheck();
@@ -152,7 +169,6 @@ public class ProgramServiceCacheTest {
     @Test
     public void not_entitled_live_program_boundary_crossing_test() throws Exception {
         // Test Case 2: Normal playback and program ends and starts a new program (User is NOT ENTITLED to watch next program)
-        ProgramService.FUZZY_ENTITLEMENT_MAX_DELAY = 0;
 
         FakeEMPMetadataProvider fakeMetadataProvider = new FakeEMPMetadataProvider();
         TestUtils.mockProvider(EMPMetadataProvider.class, fakeMetadataProvider);
@@ -170,6 +186,7 @@ public class ProgramServiceCacheTest {
         player.mockIsPlaying(true);
 
         FakeProgramService service = new FakeProgramService(player, entitlement_with_bookmark_emup, null);
+        service.setEntitlementFuzzyMaxDelay(0);
 
         fakeEntitlementProvider.mockIsEntitled(true);
         fakeEntitlementProvider.forgetEntitlementCheck();
@@ -190,7 +207,7 @@ public class ProgramServiceCacheTest {
         service.clear();
         fakeEntitlementProvider.mockIsEntitled(false);
         fakeEntitlementProvider.forgetEntitlementCheck();
-        ProgramService.FUZZY_ENTITLEMENT_MAX_DELAY = 30000;
+        service.setEntitlementFuzzyMaxDelay(30000);
 
         Thread.sleep(2500);
 
@@ -321,4 +338,397 @@ public class ProgramServiceCacheTest {
         service.interrupt();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void entitlement_interval_cache_test() throws Exception {
+        // Decisions are kept per program interval and answered locally until they expire or are evicted
+        FakeEntitledPlayer player = new FakeEntitledPlayer();
+        EntitlementIntervalCache cache = new EntitlementIntervalCache(player);
+
+        cache.register(live_program1, true);
+        cache.register(live_program2, false);
+
+        Assert.assertTrue(cache.isTimeAllowed(live_program1.startDateTime.getMillis() + 1L) == true);
+        Assert.assertTrue(cache.isTimeAllowed(live_program2.startDateTime.getMillis() + 1L) == false);
+        // Repeated reads do not consume the decision
+        Assert.assertTrue(cache.lookup(live_program1.startDateTime.getMillis() + 1L).program == live_program1);
+        Assert.assertNull(cache.isTimeAllowed(live_program2.endDateTime.getMillis() + 1L));
+
+        cache.registerGapInEpg(live_program2.endDateTime.getMillis() + 1L);
+        Assert.assertTrue(cache.lookup(live_program2.endDateTime.getMillis() + 10L).gapInEpg);
+
+        // A burst of outcomes without program only evicts its own kind, not the program decisions
+        for (int i = 0; i < EntitlementIntervalCache.MAX_ENTRIES; ++i) {
+            cache.registerCheckNotPossible(-1000000L * (i + 1));
+        }
+        Assert.assertEquals(2 + EntitlementIntervalCache.MAX_NO_PROGRAM_ENTRIES, cache.size());
+        Assert.assertTrue(cache.isTimeAllowed(live_program1.startDateTime.getMillis() + 1L) == true);
+        Assert.assertTrue(cache.isTimeAllowed(live_program2.startDateTime.getMillis() + 1L) == false);
+        Assert.assertTrue(cache.lookup(-1000000L * EntitlementIntervalCache.MAX_ENTRIES).checkNotPossible);
+        Assert.assertNull(cache.lookup(live_program2.endDateTime.getMillis() + 10L));
+
+        // Program decisions are evicted by program decisions beyond MAX_ENTRIES
+        for (int i = 0; i < EntitlementIntervalCache.MAX_ENTRIES; ++i) {
+            EmpProgram program = mock(EmpProgram.class);
+            program.assetId = "@evicting/" + i;
+            program.startDateTime = new DateTime(-100000000L * (i + 1));
+            program.endDateTime = new DateTime(-100000000L * (i + 1) + 60000L);
+            cache.register(program, true);
+        }
+        Assert.assertEquals(EntitlementIntervalCache.MAX_ENTRIES + EntitlementIntervalCache.MAX_NO_PROGRAM_ENTRIES, cache.size());
+        Assert.assertNull(cache.isTimeAllowed(live_program1.startDateTime.getMillis() + 1L));
+    }
+
+    @Test
+    public void shared_entitlement_cache_merges_in_flight_test() throws Exception {
+        // Concurrent checks of the same asset share one backend request and its result
+        final AtomicInteger backendCalls = new AtomicInteger(0);
+        final Runnable[] pendingAnswer = new Runnable[1];
+        FakeEntitlementProvider provider = new FakeEntitlementProvider() {
+            @Override
+            public void isEntitledAsync(String mediaId, Runnable onEntitled, ErrorRunnable onNotEntitled) {
+                backendCalls.incrementAndGet();
+                pendingAnswer[0] = onEntitled;
+            }
+        };
+
+        final AtomicInteger allowedCount = new AtomicInteger(0);
+        Runnable onAllowed = new Runnable() {
+            @Override
+            public void run() {
+                allowedCount.incrementAndGet();
+            }
+        };
+
+        SharedEntitlementCache cache = SharedEntitlementCache.getInstance();
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+
+        Assert.assertEquals(1, backendCalls.get());
+        Assert.assertTrue(cache.isCheckInFlight(provider, "@id/shared"));
+        Assert.assertEquals(0, allowedCount.get());
+
+        pendingAnswer[0].run();
+
+        Assert.assertFalse(cache.isCheckInFlight(provider, "@id/shared"));
+        Assert.assertEquals(2, allowedCount.get());
+
+        // Answered from the cache
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+        Assert.assertEquals(1, backendCalls.get());
+        Assert.assertEquals(3, allowedCount.get());
+    }
+
+    @Test
+    public void shared_entitlement_cache_session_test() throws Exception {
+        // Decisions of a user session are never used for the next one
+        final AtomicInteger backendCalls = new AtomicInteger(0);
+        final Runnable[] pendingAnswer = new Runnable[1];
+        FakeEntitlementProvider provider = new FakeEntitlementProvider() {
+            @Override
+            public void isEntitledAsync(String mediaId, Runnable onEntitled, ErrorRunnable onNotEntitled) {
+                backendCalls.incrementAndGet();
+                pendingAnswer[0] = onEntitled;
+            }
+        };
+        final String[] sessionToken = { "user1" };
+        SharedEntitlementCache cache = new SharedEntitlementCache() {
+            @Override
+            protected Object getSessionToken() {
+                return sessionToken[0];
+            }
+        };
+        final AtomicInteger allowedCount = new AtomicInteger(0);
+        Runnable onAllowed = new Runnable() {
+            @Override
+            public void run() {
+                allowedCount.incrementAndGet();
+            }
+        };
+
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+        pendingAnswer[0].run();
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+        Assert.assertEquals(1, backendCalls.get());
+        Assert.assertEquals(2, allowedCount.get());
+
+        // New session: the check goes to the backend again
+        sessionToken[0] = "user2";
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+        Assert.assertEquals(2, backendCalls.get());
+
+        // A check sent in the previous session answers its callers but is not cached for the new one
+        Runnable previousSessionAnswer = pendingAnswer[0];
+        sessionToken[0] = "user3";
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+        Assert.assertEquals(3, backendCalls.get());
+        previousSessionAnswer.run();
+        Assert.assertEquals(3, allowedCount.get());
+        Assert.assertTrue(cache.isCheckInFlight(provider, "@id/shared"));
+        pendingAnswer[0].run();
+        Assert.assertEquals(4, allowedCount.get());
+        cache.isEntitledAsync(provider, "@id/shared", onAllowed, null);
+        Assert.assertEquals(3, backendCalls.get());
+    }
+
+    @Test
+    public void seek_window_entitlement_map_test() throws Exception {
+        // Programs of the seek window are resolved in the background and seeks into them are decided locally
+        FakeEMPMetadataProvider fakeMetadataProvider = new FakeEMPMetadataProvider();
+        TestUtils.mockProvider(EMPMetadataProvider.class, fakeMetadataProvider);
+
+        FakeEMPEntitlementProvider fakeEntitlementProvider = new FakeEMPEntitlementProvider() {
+            @Override
+            public void isEntitledAsync(String mediaId, Runnable onEntitled, ErrorRunnable onNotEntitled) {
+                this.wasEntitlementCheckDone = true;
+                if ("@id/2".equals(mediaId)) {
+                    onNotEntitled.run(ErrorCodes.PLAYBACK_NOT_ENTITLED, "USER_NOT_ENTITLED");
+                }
+                else {
+                    onEntitled.run();
+                }
+            }
+        };
+        TestUtils.mockProvider(EMPEntitlementProvider.class, fakeEntitlementProvider);
+
+        live_program1.endDateTime = new DateTime(live_program1.startDateTime.getMillis() + 60000L);
+        live_program2.startDateTime = new DateTime(live_program1.endDateTime.getMillis());
+        live_program2.endDateTime = new DateTime(live_program2.startDateTime.getMillis() + 60000L);
+
+        ArrayList<EmpProgram> windowEpg = new ArrayList<>();
+        windowEpg.add(live_program1);
+        windowEpg.add(live_program2);
+        fakeMetadataProvider.mockEpg(windowEpg);
+
+        final long[] seekRange = new long[] { live_program1.startDateTime.getMillis(), live_program2.endDateTime.getMillis() };
+        FakeEntitledPlayer player = new FakeEntitledPlayer() {
+            @Override
+            public long[] getSeekTimeRange() {
+                return seekRange;
+            }
+        };
+        player.mockIsPlaying(true);
+        player.mockPlayHeadTime(live_program1.startDateTime.getMillis() + 1L);
+
+        FakeProgramService service = new FakeProgramService(player, entitlement_with_bookmark_emup, null);
+        service.setEntitlementFuzzyMaxDelay(0);
+        service.start();
+
+        for (int i = 0; i < 200 && service.getEntitlementMap().size() < 2; ++i) {
+            Thread.sleep(10);
+        }
+
+        ArrayList<EntitlementIntervalCache.Decision> map = service.getEntitlementMap();
+        Assert.assertEquals(2, map.size());
+        Assert.assertTrue(map.get(0).program == live_program1 && map.get(0).isAllowed);
+        Assert.assertTrue(map.get(1).program == live_program2 && map.get(1).isAllowed == false);
+
+        final boolean[] forbidden = new boolean[1];
+        fakeEntitlementProvider.forgetEntitlementCheck();
+        service.clear();
+        service.isEntitled(live_program2.startDateTime.getMillis() + 1L, null, new ErrorRunnable() {
+            @Override
+            public void run(int errorCode, String errorMessage) {
+                forbidden[0] = true;
+            }
+        }, false);
+
+        Assert.assertTrue(forbidden[0]);
+        Assert.assertTrue(service.wasTimeAllowedCalled());
+        Assert.assertTrue(fakeEntitlementProvider.wasEntitlementCheckDone == false);
+
+        service.interrupt();
+    }
+
+    @Test
+    public void request_bucket_foreground_reserve_test() throws Exception {
+        // Background requests leave the reserve of the bucket to the boundary and seek checks
+        TokenBucket bucket = new TokenBucket(ProgramMonitor.REQUEST_BUCKET_CAPACITY, ProgramMonitor.REQUEST_BUCKET_REFILL_PERIOD_MS) {
+            @Override
+            protected long currentTime() {
+                return 0;
+            }
+        };
+        int backgroundRequests = 0;
+        while (bucket.tryAcquire(ProgramMonitor.REQUEST_BUCKET_FOREGROUND_RESERVE)) {
+            backgroundRequests++;
+        }
+        Assert.assertEquals(ProgramMonitor.REQUEST_BUCKET_CAPACITY - ProgramMonitor.REQUEST_BUCKET_FOREGROUND_RESERVE, backgroundRequests);
+        for (int i = 0; i < ProgramMonitor.REQUEST_BUCKET_FOREGROUND_RESERVE; ++i) {
+            Assert.assertTrue(bucket.tryAcquire());
+        }
+        Assert.assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    public void epg_cache_test() throws Exception {
+        // One window fetch answers every lookup inside it, concurrent misses share the request in flight
+        final AtomicInteger backendCalls = new AtomicInteger(0);
+        final Runnable[] pendingAnswer = new Runnable[1];
+        final ArrayList<EmpProgram> windowEpg = new ArrayList<>();
+        windowEpg.add(live_program1);
+        windowEpg.add(live_program2);
+        FakeEMPMetadataProvider provider = new FakeEMPMetadataProvider() {
+            @Override
+            public void getEpgWithTime(String channelId, long epgTimeNowMs, final IMetadataCallback<ArrayList<EmpProgram>> callback, EpgQueryParameters params) {
+                backendCalls.incrementAndGet();
+                pendingAnswer[0] = new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onMetadata(windowEpg);
+                    }
+                };
+            }
+        };
+
+        final ArrayList<EmpProgram> results = new ArrayList<>();
+        IMetadataCallback<ArrayList<EmpProgram>> callback = new IMetadataCallback<ArrayList<EmpProgram>>() {
+            @Override
+            public void onMetadata(ArrayList<EmpProgram> programs) {
+                results.add(programs.isEmpty() ? null : programs.get(0));
+            }
+
+            @Override
+            public void onError(Error error) {
+            }
+        };
+
+        EpgCache cache = EpgCache.getInstance(provider);
+        long channelTime = live_program1.startDateTime.getMillis();
+        Assert.assertNull(cache.getCachedProgramsAt("12345", channelTime + 1L));
+        cache.getProgramsAt("12345", channelTime + 1L, callback);
+        cache.getProgramsAt("12345", live_program2.startDateTime.getMillis() + 1L, callback);
+        Assert.assertEquals(1, backendCalls.get());
+        Assert.assertEquals(0, results.size());
+
+        pendingAnswer[0].run();
+        Assert.assertEquals(2, results.size());
+        Assert.assertTrue(results.get(0) == live_program1);
+        Assert.assertTrue(results.get(1) == live_program2);
+
+        // In memory from now on: the starting program wins at a boundary, outside the programs span is unknown
+        Assert.assertTrue(cache.getProgramAt("12345", live_program1.endDateTime.getMillis()) == live_program2);
+        Assert.assertNull(cache.getCachedProgramsAt("12345", live_program2.endDateTime.getMillis() + 1L));
+        cache.getProgramsAt("12345", channelTime + 500L, callback);
+        Assert.assertEquals(1, backendCalls.get());
+        Assert.assertTrue(results.get(2) == live_program1);
+
+        // Program times replaced in place: the channel is fetched again
+        live_program1.endDateTime = new DateTime(live_program1.endDateTime.getMillis() - 100L);
+        Assert.assertNull(cache.getCachedProgramsAt("12345", channelTime + 1L));
+    }
+
+    @Test
+    public void epg_cache_range_test() throws Exception {
+        // Range queries (seek window) share requests in flight with the point lookups and are answered from memory afterwards
+        final AtomicInteger backendCalls = new AtomicInteger(0);
+        final Runnable[] pendingAnswer = new Runnable[1];
+        final ArrayList<EmpProgram> windowEpg = new ArrayList<>();
+        windowEpg.add(live_program1);
+        windowEpg.add(live_program2);
+        FakeEMPMetadataProvider provider = new FakeEMPMetadataProvider() {
+            @Override
+            public void getEpgWithTime(String channelId, long epgTimeNowMs, final IMetadataCallback<ArrayList<EmpProgram>> callback, EpgQueryParameters params) {
+                backendCalls.incrementAndGet();
+                pendingAnswer[0] = new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onMetadata(windowEpg);
+                    }
+                };
+            }
+        };
+
+        final ArrayList<ArrayList<EmpProgram>> results = new ArrayList<>();
+        IMetadataCallback<ArrayList<EmpProgram>> callback = new IMetadataCallback<ArrayList<EmpProgram>>() {
+            @Override
+            public void onMetadata(ArrayList<EmpProgram> programs) {
+                results.add(programs);
+            }
+
+            @Override
+            public void onError(Error error) {
+            }
+        };
+
+        EpgCache cache = EpgCache.getInstance(provider);
+        long from = live_program1.startDateTime.getMillis();
+        long to = live_program2.endDateTime.getMillis();
+        Assert.assertNull(cache.getCachedPrograms("12345", from, to));
+        cache.getPrograms("12345", from, to, callback);
+        cache.getProgramsAt("12345", from + 1L, callback);
+        cache.getPrograms("12345", from + 1L, to - 1L, callback);
+        Assert.assertEquals(1, backendCalls.get());
+        Assert.assertEquals(0, results.size());
+
+        pendingAnswer[0].run();
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(2, results.get(0).size());
+        Assert.assertTrue(results.get(0).get(0) == live_program1 && results.get(0).get(1) == live_program2);
+        Assert.assertEquals(1, results.get(1).size());
+        Assert.assertTrue(results.get(1).get(0) == live_program1);
+        Assert.assertEquals(2, results.get(2).size());
+
+        // In memory from now on, a range past the programs span is fetched
+        ArrayList<EmpProgram> cached = cache.getCachedPrograms("12345", from, to);
+        Assert.assertNotNull(cached);
+        Assert.assertEquals(2, cached.size());
+        cache.getPrograms("12345", from, to, callback);
+        Assert.assertEquals(1, backendCalls.get());
+        Assert.assertEquals(4, results.size());
+        cache.getPrograms("12345", from, to + 1000L, callback);
+        Assert.assertEquals(2, backendCalls.get());
+    }
+
+    @Test
+    public void epg_snapshot_store_test() throws Exception {
+        // Snapshot survives a restart (new store on the same file) and fetched windows replace the programs they overlap
+        File file = File.createTempFile("epg_snapshot", ".bin");
+        file.delete();
+
+        ArrayList<EmpProgram> windowEpg = new ArrayList<>();
+        windowEpg.add(live_program1);
+        windowEpg.add(live_program2);
+        EpgSnapshotStore store = new EpgSnapshotStore(file) {};
+        store.update("12345", windowEpg, live_program1.startDateTime.getMillis(), live_program2.endDateTime.getMillis());
+        store.flush();
+        Assert.assertTrue(file.exists());
+
+        EpgSnapshotStore restarted = new EpgSnapshotStore(file) {};
+        EmpProgram program = restarted.getProgramAt("12345", live_program2.startDateTime.getMillis() + 1L, EpgSnapshotStore.STARTUP_MAX_AGE_MS);
+        Assert.assertNotNull(program);
+        Assert.assertEquals("@id/2", program.assetId);
+        Assert.assertEquals(live_program2.endDateTime.getMillis(), program.endDateTime.getMillis());
+        Assert.assertNull(restarted.getProgramAt("12345", live_program2.endDateTime.getMillis() + 1L, EpgSnapshotStore.STARTUP_MAX_AGE_MS));
+        Assert.assertNull(restarted.getProgramAt("67890", live_program1.startDateTime.getMillis() + 1L, EpgSnapshotStore.STARTUP_MAX_AGE_MS));
+
+        // Delta: only the window of the second program is refreshed
+        EmpProgram replacement = mock(EmpProgram.class);
+        replacement.assetId = "@id/3";
+        replacement.startDateTime = live_program2.startDateTime;
+        replacement.endDateTime = live_program2.endDateTime;
+        ArrayList<EmpProgram> deltaEpg = new ArrayList<>();
+        deltaEpg.add(replacement);
+        restarted.update("12345", deltaEpg, live_program2.startDateTime.getMillis() + 1L, live_program2.endDateTime.getMillis());
+        Assert.assertEquals("@id/3", restarted.getProgramAt("12345", live_program2.startDateTime.getMillis() + 1L, EpgSnapshotStore.STARTUP_MAX_AGE_MS).assetId);
+        Assert.assertEquals("@id/1", restarted.getProgramAt("12345", live_program1.startDateTime.getMillis() + 1L, EpgSnapshotStore.STARTUP_MAX_AGE_MS).assetId);
+        restarted.flush();
+        Assert.assertEquals(2, new EpgSnapshotStore(file) {}.getPrograms("12345").size());
+
+        // Startup lookups are answered on the store's writer thread, never on the caller's
+        final ArrayList<EmpProgram> found = new ArrayList<>();
+        final ArrayList<String> threads = new ArrayList<>();
+        final CountDownLatch resolved = new CountDownLatch(1);
+        restarted.getProgramAt("12345", live_program2.startDateTime.getMillis() + 1L, EpgSnapshotStore.STARTUP_MAX_AGE_MS, new ParameterizedRunnable<EmpProgram>() {
+            @Override
+            public void run(EmpProgram program) {
+                found.add(program);
+                threads.add(Thread.currentThread().getName());
+                resolved.countDown();
+            }
+        });
+        Assert.assertTrue(resolved.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals("@id/3", found.get(0).assetId);
+        Assert.assertEquals("EpgSnapshotStore", threads.get(0));
+        file.delete();
+    }
+}
@@ -0,0 +1,64 @@
+package net.ericsson.emovs.playback;
+
+import junit.framework.Assert;
+
+import net.ericsson.emovs.playback.helpers.FleetSimulation;
+import net.ericsson.emovs.playback.services.EpgCache;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+/**
+ * Fleet-scale ProgramService simulations on a virtual clock (1000 players, 2 hours of EPG)
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ProgramServiceSimulationTest {
+    @Test
+    public void boundary_load_without_fuzzing_test() throws Exception {
+        FleetSimulation simulation = new FleetSimulation();
+        simulation.fuzzyMaxDelayMs = 0;
+        FleetSimulation.Report report = simulation.run();
+
+        // Every player checks every program once
+        Assert.assertEquals("No fuzzing: " + report, simulation.players * simulation.programs, report.entitlementCalls);
+        // ...and all of them hit the backend in the same second at the boundaries
+        Assert.assertTrue("No fuzzing: " + report, report.getBoundaryPeakCallsPerSecond(120000L) >= simulation.players);
+        // Every device fetches the EPG of every program once, and again only when its cached window went stale
+        long totalDurationMs = simulation.programs * simulation.programDurationMs;
+        Assert.assertTrue("No fuzzing: " + report, report.epgCalls >= simulation.players * simulation.programs);
+        Assert.assertTrue("No fuzzing: " + report, report.epgCalls <= simulation.players * (simulation.programs + totalDurationMs / EpgCache.WINDOW_TTL_MS + 1));
+    }
+
+    @Test
+    public void fuzzing_spreads_boundary_load_test() throws Exception {
+        FleetSimulation unfuzzed = new FleetSimulation();
+        unfuzzed.fuzzyMaxDelayMs = 0;
+        FleetSimulation.Report unfuzzedReport = unfuzzed.run();
+
+        FleetSimulation fuzzed = new FleetSimulation();
+        fuzzed.fuzzyMaxDelayMs = 60000;
+        FleetSimulation.Report fuzzedReport = fuzzed.run();
+
+        String message = "No fuzzing: " + unfuzzedReport + ", fuzzing 60s: " + fuzzedReport;
+        Assert.assertEquals(message, fuzzed.players * fuzzed.programs, fuzzedReport.entitlementCalls);
+        Assert.assertTrue(message, fuzzedReport.getBoundaryPeakCallsPerSecond(120000L) * 4 < unfuzzedReport.getBoundaryPeakCallsPerSecond(120000L));
+    }
+
+    @Test
+    public void deterministic_simulation_test() throws Exception {
+        FleetSimulation first = new FleetSimulation();
+        first.players = 200;
+        first.fuzzyMaxDelayMs = 30000;
+        first.seed = 42;
+
+        FleetSimulation second = new FleetSimulation();
+        second.players = 200;
+        second.fuzzyMaxDelayMs = 30000;
+        second.seed = 42;
+
+        Assert.assertTrue(Arrays.equals(first.run().callsPerSecond, second.run().callsPerSecond));
+    }
+}
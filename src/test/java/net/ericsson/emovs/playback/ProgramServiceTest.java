@@ -7,11 +7,26 @@ import net.ericsson.emovs.exposure.metadata.EMPMetadataProvider;
 import net.ericsson.emovs.playback.helpers.FakeEMPEntitlementProvider;
 import net.ericsson.emovs.playback.helpers.FakeEMPMetadataProvider;
 import net.ericsson.emovs.playback.helpers.FakeEntitledPlayer;
+import net.ericsson.emovs.playback.helpers.FakeEntitlementProvider;
+import net.ericsson.emovs.playback.helpers.FakeProgramService;
+import net.ericsson.emovs.playback.helpers.VirtualProgramMonitor;
+import net.ericsson.emovs.playback.interfaces.IPlayheadSnapshotProvider;
+import net.ericsson.emovs.playback.scheduling.PlayheadPublisher;
+import net.ericsson.emovs.playback.scheduling.PlayheadSnapshot;
+import net.ericsson.emovs.playback.services.CircuitBreaker;
+import net.ericsson.emovs.playback.services.EpgCache;
 import net.ericsson.emovs.playback.services.ProgramService;
+import net.ericsson.emovs.playback.services.RetryPolicy;
 import net.ericsson.emovs.utilities.entitlements.Entitlement;
+import net.ericsson.emovs.utilities.entitlements.IEntitlementProvider;
 import net.ericsson.emovs.utilities.errors.ErrorCodes;
+import net.ericsson.emovs.utilities.errors.ErrorRunnable;
 import net.ericsson.emovs.utilities.errors.WarningCodes;
+import net.ericsson.emovs.utilities.interfaces.IMetadataCallback;
+import net.ericsson.emovs.utilities.interfaces.IMetadataProvider;
+import net.ericsson.emovs.utilities.interfaces.IPlaybackEventListener;
 import net.ericsson.emovs.utilities.models.EmpProgram;
+import net.ericsson.emovs.utilities.queries.EpgQueryParameters;
 import net.ericsson.emovs.utilities.test.TestUtils;
 
 import org.joda.time.DateTime;
@@ -20,9 +35,12 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
 
 import java.util.ArrayList;
+import java.util.Random;
 
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -58,7 +76,6 @@ public class ProgramServiceTest {
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        ProgramService.FUZZY_ENTITLEMENT_MAX_DELAY = 0;
 
         when(live_program1.liveNow()).thenReturn(true);
         live_program1.assetId = "@id/1";
@@ -108,6 +125,7 @@ public class ProgramServiceTest {
 
 
         ProgramService service = new ProgramService(player, entitlement_with_bookmark_emup, null);
+        service.setEntitlementFuzzyMaxDelay(0);
 
         fakeEntitlementProvider.mockIsEntitled(true);
         fakeEntitlementProvider.forgetEntitlementCheck();
@@ -163,6 +181,7 @@ public class ProgramServiceTest {
         player.mockIsPlaying(true);
 
         ProgramService service = new ProgramService(player, entitlement_with_bookmark_emup, null);
+        service.setEntitlementFuzzyMaxDelay(0);
 
         fakeEntitlementProvider.mockIsEntitled(true);
         fakeEntitlementProvider.forgetEntitlementCheck();
@@ -213,6 +232,7 @@ public class ProgramServiceTest {
         player.mockIsPlaying(true);
 
         ProgramService service = new ProgramService(player, entitlement_with_bookmark_emup, null);
+        service.setEntitlementFuzzyMaxDelay(0);
 
         fakeEntitlementProvider.mockIsEntitled(true);
         fakeEntitlementProvider.forgetEntitlementCheck();
@@ -264,6 +284,7 @@ public class ProgramServiceTest {
         player.mockIsPlaying(true);
 
         ProgramService service = new ProgramService(player, entitlement_with_bookmark_emup, null);
+        service.setEntitlementFuzzyMaxDelay(0);
 
         fakeEntitlementProvider.mockIsEntitled(true);
         fakeEntitlementProvider.forgetEntitlementCheck();
@@ -299,4 +320,378 @@ public class ProgramServiceTest {
         service.interrupt();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void program_boundary_listener_test() throws Exception {
+        // Listener is notified once, a lead time before the current program ends
+        FakeEMPMetadataProvider fakeMetadataProvider = new FakeEMPMetadataProvider();
+        TestUtils.mockProvider(EMPMetadataProvider.class, fakeMetadataProvider);
+
+        FakeEntitledPlayer player = new FakeEntitledPlayer();
+        player.mockIsPlaying(true);
+        player.mockPlayHeadTime(live_program1.startDateTime.getMillis() + 1L);
+
+        final ArrayList<EmpProgram> endingPrograms = new ArrayList<>();
+        ProgramService service = new ProgramService(player, entitlement_with_bookmark_emup, live_program1);
+        service.setEntitlementFuzzyMaxDelay(0);
+        service.setProgramBoundaryListener(5000L, new ProgramService.ProgramBoundaryListener() {
+            @Override
+            public void onProgramEnding(EmpProgram program) {
+                endingPrograms.add(program);
+            }
+        });
+
+        service.start();
+        Thread.sleep(2500);
+
+        Assert.assertEquals(1, endingPrograms.size());
+        Assert.assertTrue(endingPrograms.get(0) == live_program1);
+
+        service.interrupt();
+    }
+
+    @Test
+    public void program_boundary_deadline_test() throws Exception {
+        // Service sleeps until the program end instead of polling, scaled by the playback rate
+        FakeEntitledPlayer player = new FakeEntitledPlayer();
+        player.mockIsPlaying(true);
+
+        live_program1.endDateTime = new DateTime(live_program1.startDateTime.getMillis() + 120000L);
+        FakeProgramService service = new FakeProgramService(player, entitlement_with_bookmark_emup, live_program1);
+        service.setEntitlementFuzzyMaxDelay(0);
+        long playheadTime = live_program1.startDateTime.getMillis() + 1L;
+
+        // Next program is pre-checked BOUNDARY_PREFETCH_LEAD_TIME before the end
+        Assert.assertEquals(120000L - ProgramService.BOUNDARY_PREFETCH_LEAD_TIME, service.getNextCheckDelay(playheadTime));
+
+        service.setPlaybackRate(2.0f);
+        Assert.assertEquals((120000L - ProgramService.BOUNDARY_PREFETCH_LEAD_TIME) / 2, service.getNextCheckDelay(playheadTime));
+        service.setPlaybackRate(1.0f);
+
+        // Past the pre-check: re-sync the playhead shortly before the end, then wake up exactly at the end
+        long prefetchTime = live_program1.endDateTime.getMillis() + 1L - ProgramService.BOUNDARY_PREFETCH_LEAD_TIME;
+        Assert.assertEquals(ProgramService.BOUNDARY_PREFETCH_LEAD_TIME - ProgramService.BOUNDARY_TIMER_SYNC_WINDOW, service.getNextCheckDelay(prefetchTime));
+        long syncTime = live_program1.endDateTime.getMillis() - ProgramService.BOUNDARY_TIMER_SYNC_WINDOW + 1L;
+        Assert.assertEquals(ProgramService.BOUNDARY_TIMER_SYNC_WINDOW, service.getNextCheckDelay(syncTime));
+
+        live_program1.endDateTime = new DateTime(live_program1.startDateTime.getMillis() + 3600000L);
+        Assert.assertEquals(ProgramService.MAX_WAIT_TIME, service.getNextCheckDelay(playheadTime));
+
+        // Boundary crossed and next program unknown: regular retry cadence
+        Assert.assertEquals(ProgramService.LONG_WAIT_TIME, service.getNextCheckDelay(live_program1.endDateTime.getMillis() + 10L));
+    }
+
+    @Test
+    public void program_changed_at_boundary_test() throws Exception {
+        // PROGRAM_CHANGED is dispatched when the playhead crosses the program end, with the decision pre-fetched ahead of it
+        long startTime = 1500000000000L;
+        final VirtualProgramMonitor monitor = new VirtualProgramMonitor(startTime);
+        final EmpProgram current = mock(EmpProgram.class);
+        current.assetId = "@boundary/1";
+        current.startDateTime = new DateTime(startTime);
+        current.endDateTime = new DateTime(startTime + 60000L);
+        final EmpProgram next = mock(EmpProgram.class);
+        next.assetId = "@boundary/2";
+        next.startDateTime = current.endDateTime;
+        next.endDateTime = new DateTime(startTime + 120000L);
+
+        final int[] epgCalls = { 0 };
+        final int[] entitlementCalls = { 0 };
+        final FakeEMPMetadataProvider metadataProvider = new FakeEMPMetadataProvider() {
+            @Override
+            public void getEpgWithTime(String channelId, long epgTimeNowMs, IMetadataCallback<ArrayList<EmpProgram>> callback, EpgQueryParameters params) {
+                epgCalls[0]++;
+                super.getEpgWithTime(channelId, epgTimeNowMs, callback, params);
+            }
+        };
+        ArrayList<EmpProgram> epg = new ArrayList<>();
+        epg.add(current);
+        epg.add(next);
+        metadataProvider.mockEpg(epg);
+        final FakeEntitlementProvider entitlementProvider = new FakeEntitlementProvider() {
+            @Override
+            public void isEntitledAsync(String mediaId, Runnable onEntitled, ErrorRunnable onNotEntitled) {
+                entitlementCalls[0]++;
+                monitor.schedule(onEntitled, 100L);
+            }
+        };
+        final ArrayList<EmpProgram> changedPrograms = new ArrayList<>();
+        final ArrayList<Long> changeTimes = new ArrayList<>();
+        FakeEntitledPlayer player = new FakeEntitledPlayer() {
+            @Override
+            public long getPlayheadTime() {
+                return monitor.currentTime();
+            }
+
+            @Override
+            public long getServerTime() {
+                return monitor.currentTime();
+            }
+
+            @Override
+            public void trigger(IPlaybackEventListener.EventId eventId, Object param) {
+                super.trigger(eventId, param);
+                if (eventId == IPlaybackEventListener.EventId.PROGRAM_CHANGED) {
+                    changedPrograms.add((EmpProgram) param);
+                    changeTimes.add(monitor.currentTime());
+                }
+            }
+
+            @Override
+            public IMetadataProvider getMetadataProvider() {
+                return metadataProvider;
+            }
+
+            @Override
+            public IEntitlementProvider getEntitlementProvider() {
+                return entitlementProvider;
+            }
+        };
+        player.mockIsPlaying(true);
+
+        final EpgCache epgCache = new EpgCache(metadataProvider) {
+            @Override
+            protected long currentTime() {
+                return monitor.currentTime();
+            }
+        };
+        ProgramService service = new ProgramService(player, entitlement_with_bookmark_emup, current, monitor) {
+            @Override
+            protected EpgCache getEpgCache() {
+                return epgCache;
+            }
+        };
+        service.setEntitlementFuzzyMaxDelay(0);
+        service.start();
+
+        // Next program is looked up and checked BOUNDARY_PREFETCH_LEAD_TIME before the end, without switching yet
+        long endTime = current.endDateTime.getMillis();
+        monitor.runUntil(endTime);
+        Assert.assertEquals(1, epgCalls[0]);
+        Assert.assertEquals(1, entitlementCalls[0]);
+        Assert.assertTrue(changedPrograms.isEmpty());
+        Assert.assertTrue(service.getCurrentProgram() == current);
+
+        // Crossing: dispatched on the first instant past endDateTime, decided from the pre-fetched outcome
+        monitor.runUntil(endTime + 1);
+        Assert.assertEquals(1, changedPrograms.size());
+        Assert.assertTrue(changedPrograms.get(0) == next);
+        Assert.assertEquals(endTime + 1, (long) changeTimes.get(0));
+        Assert.assertTrue(service.getCurrentProgram() == next);
+        Assert.assertEquals(1, epgCalls[0]);
+        Assert.assertEquals(1, entitlementCalls[0]);
+        Assert.assertNull(player.lastWarning);
+
+        service.interrupt();
+    }
+
+    @Test
+    public void program_changed_without_current_program_test() throws Exception {
+        // With no current program (startup without EPG, gap in EPG), resolving one dispatches PROGRAM_CHANGED on the
+        // network path and on the cached decision path alike
+        long startTime = 1500000000000L;
+        final VirtualProgramMonitor monitor = new VirtualProgramMonitor(startTime);
+        final EmpProgram program = mock(EmpProgram.class);
+        program.assetId = "@nocurrent/1";
+        program.startDateTime = new DateTime(startTime - 30000L);
+        program.endDateTime = new DateTime(startTime + 60000L);
+
+        final int[] entitlementCalls = { 0 };
+        final FakeEMPMetadataProvider metadataProvider = new FakeEMPMetadataProvider();
+        ArrayList<EmpProgram> epg = new ArrayList<>();
+        epg.add(program);
+        metadataProvider.mockEpg(epg);
+        final FakeEntitlementProvider entitlementProvider = new FakeEntitlementProvider() {
+            @Override
+            public void isEntitledAsync(String mediaId, Runnable onEntitled, ErrorRunnable onNotEntitled) {
+                entitlementCalls[0]++;
+                monitor.schedule(onEntitled, 100L);
+            }
+        };
+        final ArrayList<EmpProgram> changedPrograms = new ArrayList<>();
+        FakeEntitledPlayer player = new FakeEntitledPlayer() {
+            @Override
+            public void trigger(IPlaybackEventListener.EventId eventId, Object param) {
+                super.trigger(eventId, param);
+                if (eventId == IPlaybackEventListener.EventId.PROGRAM_CHANGED) {
+                    changedPrograms.add((EmpProgram) param);
+                }
+            }
+
+            @Override
+            public IMetadataProvider getMetadataProvider() {
+                return metadataProvider;
+            }
+
+            @Override
+            public IEntitlementProvider getEntitlementProvider() {
+                return entitlementProvider;
+            }
+        };
+        final EpgCache epgCache = new EpgCache(metadataProvider) {
+            @Override
+            protected long currentTime() {
+                return monitor.currentTime();
+            }
+        };
+
+        // Network path
+        ProgramService fetching = new ProgramService(player, entitlement_with_bookmark_emup, null, monitor) {
+            @Override
+            protected EpgCache getEpgCache() {
+                return epgCache;
+            }
+        };
+        fetching.checkTimeshiftAllowance(startTime, null, null, true, false);
+        monitor.runUntil(startTime + 100L);
+        Assert.assertEquals(1, entitlementCalls[0]);
+        Assert.assertEquals(1, changedPrograms.size());
+        Assert.assertTrue(changedPrograms.get(0) == program);
+        Assert.assertTrue(fetching.getCurrentProgram() == program);
+
+        // Cached decision path: the outcome is cached first without switching, then applied
+        changedPrograms.clear();
+        ProgramService cached = new ProgramService(player, entitlement_with_bookmark_emup, null, monitor) {
+            @Override
+            protected EpgCache getEpgCache() {
+                return epgCache;
+            }
+        };
+        cached.checkTimeshiftAllowance(startTime + 1000L, null, null, true, true);
+        monitor.runUntil(startTime + 1100L);
+        Assert.assertTrue(changedPrograms.isEmpty());
+        Assert.assertNull(cached.getCurrentProgram());
+        cached.checkTimeshiftAllowance(startTime + 1000L, null, null, true, false);
+        Assert.assertEquals(1, changedPrograms.size());
+        Assert.assertTrue(changedPrograms.get(0) == program);
+        Assert.assertTrue(cached.getCurrentProgram() == program);
+
+        // Same program again: no dispatch on either path
+        cached.checkTimeshiftAllowance(startTime + 2000L, null, null, true, false);
+        fetching.checkTimeshiftAllowance(startTime + 2000L, null, null, true, false);
+        monitor.runUntil(startTime + 2100L);
+        Assert.assertEquals(1, changedPrograms.size());
+    }
+
+    @Test
+    public void backend_backoff_test() throws Exception {
+        // Retries back off exponentially (capped) and the circuit opens after consecutive failures
+        RetryPolicy policy = new RetryPolicy(1000L, 8000L, 2.0, 0);
+        Random random = new Random(0);
+        Assert.assertEquals(1000L, policy.getDelay(1, random));
+        Assert.assertEquals(2000L, policy.getDelay(2, random));
+        Assert.assertEquals(4000L, policy.getDelay(3, random));
+        Assert.assertEquals(8000L, policy.getDelay(10, random));
+
+        RetryPolicy jittered = new RetryPolicy(1000L, 8000L, 2.0, 0.5);
+        long delay = jittered.getDelay(3, random);
+        Assert.assertTrue(delay >= 2000L && delay <= 4000L);
+
+        CircuitBreaker breaker = new CircuitBreaker(2, 60000L);
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.onFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        breaker.onSuccess();
+        Assert.assertTrue(breaker.allowRequest());
+    }
+
+    @Test
+    public void playhead_snapshot_test() throws Exception {
+        // Published snapshots are extrapolated at the playback rate, and the service reads them instead of the tech
+        PlayheadSnapshot playing = new PlayheadSnapshot(100000L, 1000L, new long[] { 0L, 200000L }, true, false, 2.0f, 5000L);
+        Assert.assertEquals(100000L, playing.getPlayheadTimeAt(4000L));
+        Assert.assertEquals(102000L, playing.getPlayheadTimeAt(6000L));
+        playing.getSeekTimeRange()[1] = 0L;
+        Assert.assertEquals(200000L, playing.getSeekTimeRange()[1]);
+
+        final PlayheadSnapshot paused = new PlayheadSnapshot(100000L, 1000L, null, true, true, 1.0f, 5000L);
+        Assert.assertEquals(100000L, paused.getPlayheadTimeAt(60000L));
+
+        class SnapshotPlayer extends FakeEntitledPlayer implements IPlayheadSnapshotProvider {
+            @Override
+            public PlayheadSnapshot getPlayheadSnapshot() {
+                return paused;
+            }
+
+            @Override
+            public void addPlayheadConsumer() {
+            }
+
+            @Override
+            public void removePlayheadConsumer() {
+            }
+        }
+        SnapshotPlayer player = new SnapshotPlayer();
+        player.mockIsPlaying(true);
+
+        live_program1.endDateTime = new DateTime(live_program1.startDateTime.getMillis() + 120000L);
+        FakeProgramService service = new FakeProgramService(player, entitlement_with_bookmark_emup, live_program1);
+        service.setEntitlementFuzzyMaxDelay(0);
+        // FakeEntitledPlayer.isPaused() is false, but the published state is paused
+        Assert.assertEquals(ProgramService.MAX_WAIT_TIME, service.getNextCheckDelay(live_program1.startDateTime.getMillis() + 1L));
+    }
+
+    @Test
+    public void playhead_publisher_ticks_only_with_consumers_test() throws Exception {
+        // State changes are always published, periodic republishing only runs while a consumer is registered
+        final int[] reads = { 0 };
+        PlayheadPublisher publisher = new PlayheadPublisher(new PlayheadPublisher.Source() {
+            @Override
+            public long getPlayheadTime() {
+                reads[0]++;
+                return 0;
+            }
+
+            @Override
+            public long getPlayheadPosition() {
+                return 0;
+            }
+
+            @Override
+            public long[] getSeekTimeRange() {
+                return null;
+            }
+
+            @Override
+            public boolean isPlaying() {
+                return true;
+            }
+
+            @Override
+            public boolean isPaused() {
+                return false;
+            }
+
+            @Override
+            public float getPlaybackRate() {
+                return 1.0f;
+            }
+
+            @Override
+            public long getServerTime() {
+                return 0;
+            }
+        }, 250L);
+
+        publisher.start();
+        ShadowLooper.idleMainLooper(1000L);
+        Assert.assertEquals(1, reads[0]);
+        Assert.assertFalse(publisher.isRunning());
+
+        publisher.addConsumer();
+        ShadowLooper.idleMainLooper(1000L);
+        Assert.assertTrue(publisher.isRunning());
+        Assert.assertEquals(5, reads[0]);
+
+        publisher.removeConsumer();
+        ShadowLooper.idleMainLooper(1000L);
+        Assert.assertFalse(publisher.isRunning());
+        Assert.assertEquals(5, reads[0]);
+
+        publisher.publish();
+        Assert.assertEquals(6, reads[0]);
+        publisher.stop();
+    }
+}
@@ -0,0 +1,172 @@
+package net.ericsson.emovs.playback;
+
+import junit.framework.Assert;
+
+import net.ericsson.emovs.playback.scheduling.CancellationToken;
+import net.ericsson.emovs.playback.scheduling.StartupGraph;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dependency ordering, concurrency, failure and cancellation of the playback startup graph
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StartupGraphTest {
+    @Test
+    public void stage_ordering_test() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        StartupGraph graph = new StartupGraph();
+        graph.addStage("playback", recordingStage(order, "playback"), "entitlement", "epg");
+        graph.addStage("entitlement", recordingStage(order, "entitlement"));
+        graph.addStage("epg", recordingStage(order, "epg"), "entitlement");
+        graph.start();
+
+        Assert.assertEquals(Arrays.asList("entitlement", "epg", "playback"), order);
+        Assert.assertTrue(graph.isCompleted("playback"));
+        Assert.assertEquals("entitlement-result", graph.getResult("entitlement"));
+
+        // A stage completed twice only runs its dependents once
+        graph.complete("entitlement", "late");
+        Assert.assertEquals(3, order.size());
+        Assert.assertEquals("entitlement-result", graph.getResult("entitlement"));
+    }
+
+    @Test
+    public void concurrent_independent_stages_test() throws Exception {
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final CountDownLatch joined = new CountDownLatch(1);
+        final StartupGraph graph = new StartupGraph();
+        graph.addStage("entitlement", asyncStage("entitlement", bothStarted));
+        graph.addStage("epg", asyncStage("epg", bothStarted));
+        graph.addStage("playback", new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                joined.countDown();
+                graph.complete("playback");
+            }
+        }, "entitlement", "epg");
+        graph.start();
+
+        // Both requests are in flight at the same time, and the join runs once both are done
+        Assert.assertTrue(bothStarted.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue(joined.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue(graph.isCompleted("entitlement"));
+        Assert.assertTrue(graph.isCompleted("epg"));
+    }
+
+    @Test
+    public void error_propagation_test() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        StartupGraph graph = new StartupGraph();
+        graph.addStage("entitlement", new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                // Failed stage: reports its error and never completes
+                order.add("entitlement-error");
+            }
+        });
+        graph.addStage("manifest", recordingStage(order, "manifest"), "entitlement");
+        graph.addStage("playback", recordingStage(order, "playback"), "manifest");
+        graph.start();
+        Assert.assertEquals(Arrays.asList("entitlement-error"), order);
+        Assert.assertFalse(graph.isCompleted("manifest"));
+
+        // Exceptions thrown by a stage reach the caller that dispatched it
+        StartupGraph throwing = new StartupGraph();
+        throwing.addStage("entitlement", new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                throw new IllegalArgumentException("bad entitlement");
+            }
+        });
+        try {
+            throwing.start();
+            Assert.fail("Stage exception was swallowed");
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertEquals("bad entitlement", e.getMessage());
+        }
+
+        // Unknown dependencies are rejected when the graph starts
+        StartupGraph broken = new StartupGraph();
+        broken.addStage("playback", recordingStage(order, "playback"), "missing");
+        try {
+            broken.start();
+            Assert.fail("Unknown dependency was accepted");
+        }
+        catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void cancellation_test() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final ArrayList<StartupGraph> pending = new ArrayList<>();
+        CancellationToken token = new CancellationToken();
+        StartupGraph graph = new StartupGraph(token);
+        graph.addStage("entitlement", new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                order.add("entitlement");
+                pending.add(graph);
+            }
+        });
+        graph.addStage("playback", recordingStage(order, "playback"), "entitlement");
+        graph.start();
+
+        // A superseded play request: the late completion is ignored and nothing else runs
+        token.cancel();
+        Assert.assertTrue(graph.isCancelled());
+        pending.get(0).complete("entitlement", "late");
+        Assert.assertEquals(Arrays.asList("entitlement"), order);
+        Assert.assertFalse(graph.isCompleted("entitlement"));
+
+        // A graph cancelled before it starts dispatches nothing
+        StartupGraph cancelled = new StartupGraph();
+        cancelled.addStage("entitlement", recordingStage(order, "never"));
+        cancelled.cancel();
+        cancelled.start();
+        Assert.assertEquals(1, order.size());
+    }
+
+    private static StartupGraph.Stage recordingStage(final List<String> order, final String name) {
+        return new StartupGraph.Stage() {
+            @Override
+            public void run(StartupGraph graph) {
+                order.add(name);
+                graph.complete(name, name + "-result");
+            }
+        };
+    }
+
+    private static StartupGraph.Stage asyncStage(final String name, final CountDownLatch bothStarted) {
+        return new StartupGraph.Stage() {
+            @Override
+            public void run(final StartupGraph graph) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        bothStarted.countDown();
+                        try {
+                            // Completes only once the other independent stage is running too
+                            bothStarted.await(2, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        graph.complete(name);
+                    }
+                }).start();
+            }
+        };
+    }
+}
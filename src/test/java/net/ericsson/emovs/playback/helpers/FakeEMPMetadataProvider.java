@@ -1,6 +1,7 @@
 package net.ericsson.emovs.playback.helpers;
 
 import net.ericsson.emovs.exposure.metadata.EMPMetadataProvider;
+import net.ericsson.emovs.playback.services.EpgCache;
 import net.ericsson.emovs.utilities.interfaces.IMetadataCallback;
 import net.ericsson.emovs.utilities.models.EmpProgram;
 import net.ericsson.emovs.utilities.errors.Error;
@@ -18,6 +19,8 @@ public  class FakeEMPMetadataProvider extends EMPMetadataProvider {
 
     public void mockEpg(ArrayList<EmpProgram> _epg){
         this.epg = _epg;
+        // New backend data: forget the EPG cached from the previous mock
+        EpgCache.getInstance(this).clear();
     }
 
     public void mockBackendAvailability(boolean availability) {
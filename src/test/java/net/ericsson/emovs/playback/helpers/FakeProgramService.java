@@ -1,5 +1,6 @@
 package net.ericsson.emovs.playback.helpers;
 
+import net.ericsson.emovs.playback.services.EntitlementIntervalCache;
 import net.ericsson.emovs.playback.services.ProgramService;
 import net.ericsson.emovs.utilities.entitlements.Entitlement;
 import net.ericsson.emovs.utilities.interfaces.IEntitledPlayer;
@@ -12,7 +13,7 @@ import net.ericsson.emovs.utilities.models.EmpProgram;
 public class FakeProgramService extends ProgramService {
     public FakeProgramService(IEntitledPlayer player, Entitlement entitlement, EmpProgram initialProgram) {
         super(player, entitlement, initialProgram);
-        this.eeCache = new FakeCache();
+        this.eeCache = new FakeCache(player);
     }
 
     public void clear() {
@@ -23,12 +24,20 @@ public class FakeProgramService extends ProgramService {
         return ((FakeCache) eeCache).cacheCalled;
     }
 
-    private class FakeCache extends EntitlementCheckCache {
+    public long getNextCheckDelay(long playheadTime) {
+        return getNextCheckDelay(playheadTime, 0);
+    }
+
+    private class FakeCache extends EntitlementIntervalCache {
         public boolean cacheCalled = false;
 
+        public FakeCache(IEntitledPlayer player) {
+            super(player);
+        }
+
         @Override
-        public Boolean isTimeAllowed(long playheadTime) {
-            Boolean outcome = super.isTimeAllowed(playheadTime);
+        public Decision lookup(long playheadTime) {
+            Decision outcome = super.lookup(playheadTime);
             if (outcome != null) {
                 cacheCalled = true;
             }
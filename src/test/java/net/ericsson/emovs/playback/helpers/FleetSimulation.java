@@ -0,0 +1,281 @@
+package net.ericsson.emovs.playback.helpers;
+
+import net.ericsson.emovs.exposure.metadata.EMPMetadataProvider;
+import net.ericsson.emovs.playback.services.CircuitBreaker;
+import net.ericsson.emovs.playback.services.EpgCache;
+import net.ericsson.emovs.playback.services.ProgramService;
+import net.ericsson.emovs.playback.services.TokenBucket;
+import net.ericsson.emovs.utilities.entitlements.Entitlement;
+import net.ericsson.emovs.utilities.entitlements.IEntitlementProvider;
+import net.ericsson.emovs.utilities.errors.ErrorRunnable;
+import net.ericsson.emovs.utilities.interfaces.IMetadataCallback;
+import net.ericsson.emovs.utilities.interfaces.IMetadataProvider;
+import net.ericsson.emovs.utilities.models.EmpProgram;
+import net.ericsson.emovs.utilities.queries.EpgQueryParameters;
+
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * <p>
+ *     Deterministic simulation of a fleet of live players monitored by ProgramService.
+ * </p>
+ * <p>
+ *     Every player tunes in to the same channel at a random instant of the tune-in period and stays at the live edge.
+ *     Each player is a device of its own: it has its own exposure providers, EPG cache and request shaping. Checks and
+ *     cache expiries run on a VirtualProgramMonitor and the fake providers answer after a fixed virtual latency, so hours
+ *     of EPG are simulated in seconds and every run with the same seed gives the same report.
+ * </p>
+ */
+public class FleetSimulation {
+    public int players = 1000;
+    public int programs = 4;
+    public long programDurationMs = 30 * 60 * 1000L;
+    public long tuneInPeriodMs = 10 * 60 * 1000L;
+    public long backendLatencyMs = 200L;
+    public int fuzzyMaxDelayMs = 0;
+    public long seed = 0;
+
+    /**
+     * Backend calls observed during a simulation
+     */
+    public static class Report {
+        public final long startTime;
+        public final int[] callsPerSecond;
+        public final ArrayList<Long> boundaries = new ArrayList<>();
+        public int epgCalls;
+        public int entitlementCalls;
+
+        Report(long startTime, long durationMs) {
+            this.startTime = startTime;
+            this.callsPerSecond = new int[(int) (durationMs / 1000L) + 1];
+        }
+
+        void record(long time) {
+            int second = (int) ((time - this.startTime) / 1000L);
+            if (second >= 0 && second < this.callsPerSecond.length) {
+                this.callsPerSecond[second]++;
+            }
+        }
+
+        /**
+         * @return highest number of backend calls (EPG + entitlement) in one second
+         */
+        public int getPeakCallsPerSecond() {
+            return getPeakCallsPerSecond(this.startTime, this.startTime + this.callsPerSecond.length * 1000L);
+        }
+
+        /**
+         * @return highest number of backend calls in one second of [fromTime, toTime)
+         */
+        public int getPeakCallsPerSecond(long fromTime, long toTime) {
+            int peak = 0;
+            int from = (int) Math.max(0, (fromTime - this.startTime) / 1000L);
+            int to = (int) Math.min(this.callsPerSecond.length, (toTime - this.startTime) / 1000L);
+            for (int i = from; i < to; ++i) {
+                peak = Math.max(peak, this.callsPerSecond[i]);
+            }
+            return peak;
+        }
+
+        /**
+         * @param windowMs time before and after each program boundary
+         * @return highest number of backend calls in one second around any program boundary
+         */
+        public int getBoundaryPeakCallsPerSecond(long windowMs) {
+            int peak = 0;
+            for (long boundary : this.boundaries) {
+                peak = Math.max(peak, getPeakCallsPerSecond(boundary - windowMs, boundary + windowMs));
+            }
+            return peak;
+        }
+
+        @Override
+        public String toString() {
+            return "epgCalls=" + epgCalls + " entitlementCalls=" + entitlementCalls +
+                    " peakCallsPerSecond=" + getPeakCallsPerSecond() +
+                    " boundaryPeakCallsPerSecond=" + getBoundaryPeakCallsPerSecond(120000L);
+        }
+    }
+
+    public Report run() {
+        final long epgStart = 1500000000000L;
+        final ArrayList<EmpProgram> epg = new ArrayList<>();
+        for (int i = 0; i < this.programs; ++i) {
+            EmpProgram program = mock(EmpProgram.class);
+            program.assetId = "@sim/" + i;
+            program.startDateTime = new DateTime(epgStart + i * this.programDurationMs);
+            program.endDateTime = new DateTime(epgStart + (i + 1) * this.programDurationMs);
+            epg.add(program);
+        }
+
+        final VirtualProgramMonitor monitor = new VirtualProgramMonitor(epgStart);
+        final long endTime = epgStart + this.programs * this.programDurationMs;
+        final Report report = new Report(epgStart, endTime - epgStart);
+        for (int i = 1; i < this.programs; ++i) {
+            report.boundaries.add(epgStart + i * this.programDurationMs);
+        }
+
+        final Entitlement entitlement = new Entitlement();
+        entitlement.channelId = "sim";
+        entitlement.isLive = true;
+        entitlement.isUnifiedStream = true;
+
+        final ArrayList<ProgramService> services = new ArrayList<>();
+        Random random = new Random(this.seed);
+        for (int i = 0; i < this.players; ++i) {
+            SimulatedPlayer player = new SimulatedPlayer(monitor,
+                    new SimulatedMetadataProvider(monitor, report, epg, this.backendLatencyMs),
+                    new SimulatedEntitlementProvider(monitor, report, this.backendLatencyMs));
+            final SimulatedProgramService service = new SimulatedProgramService(player, entitlement, monitor, this.seed + i);
+            service.setEntitlementFuzzyMaxDelay(this.fuzzyMaxDelayMs);
+            services.add(service);
+            monitor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    service.start();
+                }
+            }, (long) (random.nextDouble() * this.tuneInPeriodMs));
+        }
+
+        monitor.runUntil(endTime - 1);
+        for (ProgramService service : services) {
+            service.interrupt();
+        }
+        return report;
+    }
+
+    private static class SimulatedProgramService extends ProgramService {
+        private final EpgCache epgCache;
+
+        SimulatedProgramService(SimulatedPlayer player, Entitlement entitlement, final VirtualProgramMonitor monitor, long seed) {
+            super(player, entitlement, null, monitor);
+            this.randomizer = new Random(seed);
+            // One device per player: device-wide shaping and EPG cache on the virtual clock
+            this.requestBucket = new VirtualTokenBucket(monitor);
+            this.circuitBreaker = new CircuitBreaker(5, 30000L);
+            this.epgCache = new VirtualEpgCache(player.metadataProvider, monitor);
+        }
+
+        @Override
+        protected EpgCache getEpgCache() {
+            return this.epgCache;
+        }
+    }
+
+    private static class VirtualEpgCache extends EpgCache {
+        private VirtualProgramMonitor monitor;
+
+        VirtualEpgCache(IMetadataProvider provider, VirtualProgramMonitor monitor) {
+            super(provider);
+            this.monitor = monitor;
+        }
+
+        @Override
+        protected long currentTime() {
+            return this.monitor == null ? 0 : this.monitor.currentTime();
+        }
+    }
+
+    private static class VirtualTokenBucket extends TokenBucket {
+        private VirtualProgramMonitor monitor;
+
+        VirtualTokenBucket(VirtualProgramMonitor monitor) {
+            super(20, 500L);
+            this.monitor = monitor;
+        }
+
+        @Override
+        protected long currentTime() {
+            return this.monitor == null ? 0 : this.monitor.currentTime();
+        }
+    }
+
+    private static class SimulatedPlayer extends FakeEntitledPlayer {
+        final VirtualProgramMonitor monitor;
+        final IMetadataProvider metadataProvider;
+        final IEntitlementProvider entitlementProvider;
+
+        SimulatedPlayer(VirtualProgramMonitor monitor, IMetadataProvider metadataProvider, IEntitlementProvider entitlementProvider) {
+            this.monitor = monitor;
+            this.metadataProvider = metadataProvider;
+            this.entitlementProvider = entitlementProvider;
+            mockIsPlaying(true);
+        }
+
+        @Override
+        public long getPlayheadTime() {
+            return this.monitor.currentTime();
+        }
+
+        @Override
+        public long getServerTime() {
+            return this.monitor.currentTime();
+        }
+
+        @Override
+        public IMetadataProvider getMetadataProvider() {
+            return this.metadataProvider;
+        }
+
+        @Override
+        public IEntitlementProvider getEntitlementProvider() {
+            return this.entitlementProvider;
+        }
+    }
+
+    private static class SimulatedMetadataProvider extends EMPMetadataProvider {
+        final VirtualProgramMonitor monitor;
+        final Report report;
+        final ArrayList<EmpProgram> epg;
+        final long latencyMs;
+
+        SimulatedMetadataProvider(VirtualProgramMonitor monitor, Report report, ArrayList<EmpProgram> epg, long latencyMs) {
+            this.monitor = monitor;
+            this.report = report;
+            this.epg = epg;
+            this.latencyMs = latencyMs;
+        }
+
+        @Override
+        public void getEpgWithTime(String channelId, long epgTimeNowMs, final IMetadataCallback<ArrayList<EmpProgram>> callback, EpgQueryParameters params) {
+            this.report.epgCalls++;
+            this.report.record(this.monitor.currentTime());
+            final ArrayList<EmpProgram> programs = new ArrayList<>();
+            for (EmpProgram program : this.epg) {
+                if (program.startDateTime.getMillis() <= epgTimeNowMs && epgTimeNowMs < program.endDateTime.getMillis()) {
+                    programs.add(program);
+                }
+            }
+            this.monitor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onMetadata(programs);
+                }
+            }, this.latencyMs);
+        }
+    }
+
+    private static class SimulatedEntitlementProvider extends FakeEntitlementProvider {
+        final VirtualProgramMonitor monitor;
+        final Report report;
+        final long latencyMs;
+
+        SimulatedEntitlementProvider(VirtualProgramMonitor monitor, Report report, long latencyMs) {
+            this.monitor = monitor;
+            this.report = report;
+            this.latencyMs = latencyMs;
+        }
+
+        @Override
+        public void isEntitledAsync(String mediaId, final Runnable onEntitled, ErrorRunnable onNotEntitled) {
+            this.report.entitlementCalls++;
+            this.report.record(this.monitor.currentTime());
+            this.monitor.schedule(onEntitled, this.latencyMs);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.ericsson.emovs.playback.helpers;
+
+import net.ericsson.emovs.playback.services.ProgramMonitor;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ProgramMonitor driven by a virtual clock: scheduled checks only run when the clock is advanced with runUntil(),
+ * in deadline order (ties in scheduling order), so simulations are deterministic and run as fast as the CPU allows.
+ */
+public class VirtualProgramMonitor extends ProgramMonitor {
+    private final PriorityQueue<VirtualTask> queue = new PriorityQueue<>();
+    private long now;
+    private long sequence;
+
+    public VirtualProgramMonitor(long startTime) {
+        this.now = startTime;
+    }
+
+    public long currentTime() {
+        return this.now;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        VirtualTask scheduled = new VirtualTask(task, this.now + Math.max(0, delayMs), this.sequence++);
+        this.queue.add(scheduled);
+        return scheduled;
+    }
+
+    /**
+     * Runs every task due up to endTime, advancing the clock to each deadline
+     *
+     * @param endTime virtual time to stop at
+     * @return number of tasks executed
+     */
+    public int runUntil(long endTime) {
+        int executed = 0;
+        while (this.queue.isEmpty() == false && this.queue.peek().time <= endTime) {
+            VirtualTask task = this.queue.poll();
+            if (task.cancelled) {
+                continue;
+            }
+            this.now = task.time;
+            task.done = true;
+            task.runnable.run();
+            executed++;
+        }
+        this.now = Math.max(this.now, endTime);
+        return executed;
+    }
+
+    public int getPendingTaskCount() {
+        return this.queue.size();
+    }
+
+    private class VirtualTask implements ScheduledFuture<Object> {
+        final Runnable runnable;
+        final long time;
+        final long order;
+        boolean cancelled;
+        boolean done;
+
+        VirtualTask(Runnable runnable, long time, long order) {
+            this.runnable = runnable;
+            this.time = time;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(this.time - now, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            VirtualTask task = (VirtualTask) other;
+            if (this.time != task.time) {
+                return this.time < task.time ? -1 : 1;
+            }
+            return this.order < task.order ? -1 : (this.order == task.order ? 0 : 1);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (this.done) {
+                return false;
+            }
+            this.cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return this.done || this.cancelled;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package net.ericsson.emovs.playback.techs.ExoPlayer;
+
+import android.net.Uri;
+import android.util.Pair;
+
+import com.google.android.exoplayer2.source.dash.manifest.DashManifest;
+import com.google.android.exoplayer2.source.dash.manifest.DashManifestParser;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.ParsingLoadable;
+
+import junit.framework.Assert;
+
+import net.ericsson.emovs.utilities.drm.DashDetails;
+import net.ericsson.emovs.utilities.system.ParameterizedRunnable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Manifest sideloading into DashMediaSource and ContentProtection extraction of fetched manifests
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DashManifestLoaderTest {
+    private static final String MANIFEST_URL = "https://cdn.example.com/live/channel1/.mpd";
+    private static final String UTC_TIMING_URL = "https://time.example.com/iso";
+    private static final String LICENSE_URL = "https://license.example.com/widevine";
+    private static final String PSSH = "AAAAW3Bzc2gAAAAA7e+LqXnWSs6jyCfc1R0h7QAAADsIARIQ";
+
+    private static String buildManifest(String publishTime) {
+        return "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+               "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" xmlns:cenc=\"urn:mpeg:cenc:2013\" xmlns:ms=\"urn:microsoft\" " +
+               "type=\"dynamic\" availabilityStartTime=\"1970-01-01T00:00:00Z\" publishTime=\"" + publishTime + "\" " +
+               "minimumUpdatePeriod=\"PT2S\" timeShiftBufferDepth=\"PT1H\" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\">" +
+               "<Period id=\"1\" start=\"PT0S\">" +
+               "<AdaptationSet mimeType=\"video/mp4\" segmentAlignment=\"true\">" +
+               "<ContentProtection schemeIdUri=\"urn:mpeg:dash:mp4protection:2011\" value=\"cenc\"/>" +
+               "<ContentProtection schemeIdUri=\"urn:uuid:EDEF8BA9-79D6-4ACE-A3C8-27DCD51D21ED\">" +
+               "<cenc:pssh>" + PSSH + "</cenc:pssh>" +
+               "<ms:laurl licenseUrl=\"" + LICENSE_URL + "\"/>" +
+               "</ContentProtection>" +
+               "<SegmentTemplate timescale=\"1000\" media=\"video-$Time$.m4s\" initialization=\"video-init.mp4\">" +
+               "<SegmentTimeline><S t=\"0\" d=\"2000\" r=\"10\"/></SegmentTimeline>" +
+               "</SegmentTemplate>" +
+               "<Representation id=\"v1\" bandwidth=\"1000000\" codecs=\"avc1.4d401f\" width=\"1280\" height=\"720\"/>" +
+               "</AdaptationSet>" +
+               "</Period>" +
+               "<UTCTiming schemeIdUri=\"urn:mpeg:dash:utc:http-iso:2014\" value=\"" + UTC_TIMING_URL + "\"/>" +
+               "</MPD>";
+    }
+
+    private static DashManifestLoader.LoadedManifest loadManifest(byte[] data) throws Exception {
+        Uri uri = Uri.parse(MANIFEST_URL);
+        DashManifest manifest = new DashManifestParser().parse(uri, new ByteArrayInputStream(data));
+        return new DashManifestLoader.LoadedManifest(uri, data, manifest, System.currentTimeMillis());
+    }
+
+    @Test
+    public void manifest_refresh_test() throws Exception {
+        byte[] fetched = buildManifest("2018-03-12T10:00:00Z").getBytes("UTF-8");
+        final byte[] refreshed = buildManifest("2018-03-12T10:00:02Z").getBytes("UTF-8");
+        final byte[] utcTiming = "2018-03-12T10:00:03Z".getBytes("UTF-8");
+        final ArrayList<Uri> networkRequests = new ArrayList<>();
+        DataSource.Factory network = new DataSource.Factory() {
+            @Override
+            public DataSource createDataSource() {
+                return new DataSource() {
+                    private ByteArrayDataSource response;
+
+                    @Override
+                    public long open(DataSpec dataSpec) throws IOException {
+                        networkRequests.add(dataSpec.uri);
+                        this.response = new ByteArrayDataSource(UTC_TIMING_URL.equals(dataSpec.uri.toString()) ? utcTiming : refreshed);
+                        return this.response.open(dataSpec);
+                    }
+
+                    @Override
+                    public int read(byte[] buffer, int offset, int readLength) throws IOException {
+                        return this.response.read(buffer, offset, readLength);
+                    }
+
+                    @Override
+                    public Uri getUri() {
+                        return this.response == null ? null : this.response.getUri();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        if (this.response != null) {
+                            this.response.close();
+                        }
+                    }
+                };
+            }
+        };
+
+        DashManifestLoader.LoadedManifest loaded = loadManifest(fetched);
+        ParsingLoadable.Parser<DashManifest> parser = loaded.newParser();
+        // DashMediaSource creates one manifest DataSource and reuses it for every manifest and UTCTiming load
+        DataSource dataSource = loaded.newDataSourceFactory(network).createDataSource();
+
+        // First load: served from memory, parsed manifest reused
+        Assert.assertEquals(fetched.length, dataSource.open(new DataSpec(Uri.parse(MANIFEST_URL))));
+        Assert.assertTrue(parser.parse(Uri.parse(MANIFEST_URL), new ByteArrayInputStream(readAll(dataSource))) == loaded.manifest);
+        dataSource.close();
+        Assert.assertEquals(0, networkRequests.size());
+
+        // UTCTiming and refreshes of the dynamic manifest go to the network
+        dataSource.open(new DataSpec(Uri.parse(UTC_TIMING_URL)));
+        Assert.assertEquals("2018-03-12T10:00:03Z", new String(readAll(dataSource), "UTF-8"));
+        dataSource.close();
+        for (int i = 0; i < 2; ++i) {
+            dataSource.open(new DataSpec(Uri.parse(MANIFEST_URL)));
+            DashManifest refresh = parser.parse(Uri.parse(MANIFEST_URL), new ByteArrayInputStream(readAll(dataSource)));
+            dataSource.close();
+            Assert.assertTrue(refresh != loaded.manifest);
+            Assert.assertTrue(refresh.publishTimeMs > loaded.manifest.publishTimeMs);
+        }
+        Assert.assertEquals(3, networkRequests.size());
+    }
+
+    @Test
+    public void license_details_test() throws Exception {
+        byte[] data = buildManifest("2018-03-12T10:00:00Z").getBytes("UTF-8");
+        Pair<String, String> details = getLicenseDetails(loadManifest(data));
+        Assert.assertNotNull(details);
+        Assert.assertEquals(LICENSE_URL, details.first);
+        Assert.assertEquals(PSSH, details.second);
+
+        // Same outcome as the DashDetails parsing of the same document stored as an offline manifest
+        Pair<String, String> dashDetails = getDashDetails(data);
+        Assert.assertNotNull(dashDetails);
+        Assert.assertEquals(dashDetails.first, details.first);
+        Assert.assertEquals(dashDetails.second, details.second);
+
+        // No Widevine license URL: same outcome as DashDetails too
+        byte[] withoutLicenseUrl = new String(data, "UTF-8").replace("licenseUrl=\"" + LICENSE_URL + "\"", "").getBytes("UTF-8");
+        Pair<String, String> noLicenseDetails = getLicenseDetails(loadManifest(withoutLicenseUrl));
+        Pair<String, String> noLicenseDashDetails = getDashDetails(withoutLicenseUrl);
+        Assert.assertEquals(noLicenseDashDetails == null, noLicenseDetails == null);
+        if (noLicenseDetails != null) {
+            Assert.assertEquals(noLicenseDashDetails.first, noLicenseDetails.first);
+        }
+    }
+
+    @Test
+    public void loaded_manifest_reuse_test() throws Exception {
+        // A manifest loaded (e.g. prefetched for the next program) is handed out as it is within the reuse window
+        File manifestFile = File.createTempFile("manifest", ".mpd");
+        manifestFile.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(manifestFile);
+        try {
+            output.write(buildManifest("2018-03-12T10:00:00Z").getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+        String manifestUrl = Uri.fromFile(manifestFile).toString();
+        DashManifestLoader loader = new DashManifestLoader() {};
+        Assert.assertNull(loader.getLoaded(manifestUrl));
+
+        final ArrayList<DashManifestLoader.LoadedManifest> loaded = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        loader.load(RuntimeEnvironment.application, manifestUrl, new DashManifestLoader.Callback() {
+            @Override
+            public void onManifest(DashManifestLoader.LoadedManifest manifest) {
+                loaded.add(manifest);
+                done.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                done.countDown();
+            }
+        }, null);
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, loaded.size());
+        Assert.assertTrue(loader.getLoaded(manifestUrl) == loaded.get(0));
+        Assert.assertNull(loader.getLoaded(MANIFEST_URL));
+    }
+
+    private static Pair<String, String> getLicenseDetails(DashManifestLoader.LoadedManifest manifest) throws Exception {
+        final ArrayList<Pair<String, String>> details = new ArrayList<>();
+        final CountDownLatch parsed = new CountDownLatch(1);
+        manifest.getLicenseDetails(null, new ParameterizedRunnable<Pair<String, String>>() {
+            @Override
+            public void run(Pair<String, String> licenseDetails) {
+                details.add(licenseDetails);
+                parsed.countDown();
+            }
+        });
+        Assert.assertTrue(parsed.await(5, TimeUnit.SECONDS));
+        return details.get(0);
+    }
+
+    private static Pair<String, String> getDashDetails(byte[] data) throws Exception {
+        File manifestFile = File.createTempFile("manifest", ".mpd");
+        manifestFile.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(manifestFile);
+        try {
+            output.write(data);
+        }
+        finally {
+            output.close();
+        }
+        final ArrayList<Pair<String, String>> details = new ArrayList<>();
+        final CountDownLatch parsed = new CountDownLatch(1);
+        DashDetails.getLicenseDetails(manifestFile.getAbsolutePath(), true, new ParameterizedRunnable<Pair<String, String>>() {
+            @Override
+            public void run(Pair<String, String> licenseDetails) {
+                details.add(licenseDetails);
+                parsed.countDown();
+            }
+        });
+        Assert.assertTrue(parsed.await(5, TimeUnit.SECONDS));
+        return details.get(0);
+    }
+
+    private static byte[] readAll(DataSource dataSource) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int bytesRead;
+        while ((bytesRead = dataSource.read(buffer, 0, buffer.length)) != -1) {
+            output.write(buffer, 0, bytesRead);
+        }
+        return output.toByteArray();
+    }
+}
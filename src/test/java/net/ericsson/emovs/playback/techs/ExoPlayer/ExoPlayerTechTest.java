@@ -0,0 +1,66 @@
+package net.ericsson.emovs.playback.techs.ExoPlayer;
+
+import android.app.Activity;
+import android.net.Uri;
+
+import junit.framework.Assert;
+
+import net.ericsson.emovs.playback.PlaybackProperties;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Player creation of the ExoPlayer tech
+ */
+@RunWith(RobolectricTestRunner.class)
+public class ExoPlayerTechTest {
+    // Clear (no ContentProtection) live manifest whose segments do not exist
+    private static final String CLEAR_MANIFEST =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"dynamic\" availabilityStartTime=\"1970-01-01T00:00:00Z\" " +
+            "publishTime=\"2018-03-12T10:00:00Z\" minimumUpdatePeriod=\"PT2S\" timeShiftBufferDepth=\"PT1H\" " +
+            "profiles=\"urn:mpeg:dash:profile:isoff-live:2011\">" +
+            "<Period id=\"1\" start=\"PT0S\">" +
+            "<AdaptationSet mimeType=\"video/mp4\" segmentAlignment=\"true\">" +
+            "<SegmentTemplate timescale=\"1000\" duration=\"2000\" media=\"video-$Number$.m4s\" initialization=\"video-init.mp4\"/>" +
+            "<Representation id=\"v1\" bandwidth=\"1000000\" codecs=\"avc1.4d401f\" width=\"1280\" height=\"720\"/>" +
+            "</AdaptationSet>" +
+            "</Period>" +
+            "</MPD>";
+
+    @Test
+    public void preload_clear_stream_test() throws Exception {
+        // A player built without DRM reports its timeline (window start) and failures while preloading, like a DRM one
+        File manifestFile = File.createTempFile("clear", ".mpd");
+        manifestFile.deleteOnExit();
+        FileOutputStream output = new FileOutputStream(manifestFile);
+        try {
+            output.write(CLEAR_MANIFEST.getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        ExoPlayerTech tech = new ExoPlayerTech();
+        tech.preload(null, activity, "playToken", new PlaybackProperties(), "clear", Uri.fromFile(manifestFile).toString(), 5000L);
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (System.currentTimeMillis() < deadline && tech.windowStartTimeMs <= 0 && tech.preloadFailed == false) {
+            ShadowLooper.idleMainLooper();
+            Thread.sleep(10);
+        }
+
+        Assert.assertNotNull(tech.player);
+        Assert.assertTrue(tech.drmCallback == null);
+        Assert.assertTrue("No player event reached the preloading tech", tech.windowStartTimeMs > 0 || tech.preloadFailed);
+        tech.release();
+    }
+}